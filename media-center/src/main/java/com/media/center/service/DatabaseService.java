@@ -7,7 +7,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DatabaseService {
     private static final String DB_URL = "jdbc:sqlite:mediacenter.db";
@@ -41,6 +43,28 @@ public class DatabaseService {
                     "progress REAL)";
             stmt.execute(sqlSessions);
 
+            // Peers that delivered data, per torrent, for reconnecting on resume
+            String sqlPeers = "CREATE TABLE IF NOT EXISTS torrent_peers (" +
+                    "info_hash TEXT, " +
+                    "ip TEXT, " +
+                    "port INTEGER, " +
+                    "score INTEGER, " +
+                    "last_seen INTEGER, " +
+                    "PRIMARY KEY(info_hash, ip, port))";
+            stmt.execute(sqlPeers);
+
+            // How each tracker URL has behaved, so dead ones can be skipped
+            String sqlTrackers = "CREATE TABLE IF NOT EXISTS tracker_stats (" +
+                    "url TEXT PRIMARY KEY, " +
+                    "announces INTEGER, " +
+                    "successes INTEGER, " +
+                    "total_latency_ms INTEGER, " +
+                    "peers_yielded INTEGER, " +
+                    "consecutive_failures INTEGER, " +
+                    "last_success INTEGER, " +
+                    "last_attempt INTEGER)";
+            stmt.execute(sqlTrackers);
+
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -116,6 +140,125 @@ public class DatabaseService {
         return sessions;
     }
 
+    /**
+     * Add delivered bytes to each peer's score for this torrent. Peers not
+     * heard from in 30 days are dropped.
+     */
+    public void savePeers(String infoHash, List<PeerRecord> peers) {
+        String upsert = "INSERT INTO torrent_peers(info_hash, ip, port, score, last_seen) VALUES(?, ?, ?, ?, ?) " +
+                "ON CONFLICT(info_hash, ip, port) DO UPDATE SET " +
+                "score = score + excluded.score, last_seen = excluded.last_seen";
+        String prune = "DELETE FROM torrent_peers WHERE info_hash = ? AND last_seen < ?";
+        long now = System.currentTimeMillis();
+        try (Connection conn = DriverManager.getConnection(DB_URL)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(upsert)) {
+                for (PeerRecord p : peers) {
+                    pstmt.setString(1, infoHash);
+                    pstmt.setString(2, p.getIp());
+                    pstmt.setInt(3, p.getPort());
+                    pstmt.setLong(4, p.getScore());
+                    pstmt.setLong(5, now);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement(prune)) {
+                pstmt.setString(1, infoHash);
+                pstmt.setLong(2, now - 30L * 24 * 3600 * 1000);
+                pstmt.executeUpdate();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Best peers for a torrent, highest score first. */
+    public List<PeerRecord> loadPeers(String infoHash, int limit) {
+        List<PeerRecord> peers = new ArrayList<>();
+        String sql = "SELECT ip, port, score FROM torrent_peers WHERE info_hash = ? " +
+                "ORDER BY score DESC, last_seen DESC LIMIT ?";
+        try (Connection conn = DriverManager.getConnection(DB_URL);
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, infoHash);
+            pstmt.setInt(2, limit);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                peers.add(new PeerRecord(rs.getString("ip"), rs.getInt("port"), rs.getLong("score")));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return peers;
+    }
+
+    public void deletePeers(String infoHash) {
+        String sql = "DELETE FROM torrent_peers WHERE info_hash = ?";
+        try (Connection conn = DriverManager.getConnection(DB_URL);
+                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, infoHash);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Merge this session's tracker results into the stored stats. */
+    public void saveTrackerStats(List<TrackerStats> stats) {
+        String upsert = "INSERT INTO tracker_stats(url, announces, successes, total_latency_ms, peers_yielded, " +
+                "consecutive_failures, last_success, last_attempt) VALUES(?, ?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT(url) DO UPDATE SET " +
+                "announces = announces + excluded.announces, " +
+                "successes = successes + excluded.successes, " +
+                "total_latency_ms = total_latency_ms + excluded.total_latency_ms, " +
+                "peers_yielded = peers_yielded + excluded.peers_yielded, " +
+                "consecutive_failures = excluded.consecutive_failures, " +
+                "last_success = MAX(last_success, excluded.last_success), " +
+                "last_attempt = MAX(last_attempt, excluded.last_attempt)";
+        try (Connection conn = DriverManager.getConnection(DB_URL)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(upsert)) {
+                for (TrackerStats t : stats) {
+                    pstmt.setString(1, t.getUrl());
+                    pstmt.setLong(2, t.getAnnounces());
+                    pstmt.setLong(3, t.getSuccesses());
+                    pstmt.setLong(4, t.getTotalLatencyMs());
+                    pstmt.setLong(5, t.getPeersYielded());
+                    pstmt.setInt(6, t.getConsecutiveFailures());
+                    pstmt.setLong(7, t.getLastSuccess());
+                    pstmt.setLong(8, t.getLastAttempt());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Stored stats for every tracker we have talked to, by URL. */
+    public Map<String, TrackerStats> loadTrackerStats() {
+        Map<String, TrackerStats> stats = new HashMap<>();
+        String sql = "SELECT url, announces, successes, total_latency_ms, peers_yielded, " +
+                "consecutive_failures, last_success, last_attempt FROM tracker_stats";
+        try (Connection conn = DriverManager.getConnection(DB_URL);
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                String url = rs.getString("url");
+                stats.put(url, new TrackerStats(url, rs.getLong("announces"), rs.getLong("successes"),
+                        rs.getLong("total_latency_ms"), rs.getLong("peers_yielded"),
+                        rs.getInt("consecutive_failures"), rs.getLong("last_success"),
+                        rs.getLong("last_attempt")));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return stats;
+    }
+
     public void deleteSession(DownloadSession session) {
         String sql = "DELETE FROM download_sessions WHERE magnet_link = ?";
         try (Connection conn = DriverManager.getConnection(DB_URL);
@@ -72,26 +72,7 @@ public class DlnaService {
                 InetAddress group = InetAddress.getByName(SSDP_ADDR);
                 InetSocketAddress groupAddr = new InetSocketAddress(group, SSDP_PORT);
 
-                try (MulticastSocket socket = new MulticastSocket(null)) {
-                    socket.setReuseAddress(true);
-
-                    // Bind to the specific interface if provided
-                    if (bindAddress != null) {
-                        socket.bind(new InetSocketAddress(bindAddress, 0));
-                        NetworkInterface ni = NetworkInterface.getByInetAddress(bindAddress);
-                        if (ni != null) {
-                            socket.setNetworkInterface(ni);
-                            socket.joinGroup(groupAddr, ni);
-                            System.out.println("DLNA: Joined multicast on " + ni.getDisplayName()
-                                    + " (" + bindAddress.getHostAddress() + ")");
-                        } else {
-                            socket.joinGroup(groupAddr, null);
-                        }
-                    } else {
-                        socket.bind(new InetSocketAddress(0));
-                        socket.joinGroup(groupAddr, null);
-                    }
-
+                try (MulticastSocket socket = Multicast.join(groupAddr, bindAddress, 0)) {
                     socket.setSoTimeout(4000);
                     socket.setTimeToLive(4);
 
@@ -138,16 +119,7 @@ public class DlnaService {
                         }
                     }
 
-                    // Leave the multicast group
-                    try {
-                        if (bindAddress != null) {
-                            NetworkInterface ni = NetworkInterface.getByInetAddress(bindAddress);
-                            socket.leaveGroup(groupAddr, ni);
-                        } else {
-                            socket.leaveGroup(groupAddr, null);
-                        }
-                    } catch (Exception ignored) {
-                    }
+                    Multicast.leave(socket, groupAddr, bindAddress);
                 }
             } catch (Exception e) {
                 System.err.println("DLNA: Discovery error: " + e.getMessage());
@@ -182,6 +154,8 @@ public class DlnaService {
     private DeviceModel fetchDeviceDescription(String locationUrl) {
         try {
             URL url = new URL(locationUrl);
+            // Connect/read timeouts don't cover name lookup; bound it here
+            HostResolver.resolve(url.getHost(), 3000);
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
             conn.setConnectTimeout(3000);
             conn.setReadTimeout(3000);
@@ -0,0 +1,138 @@
+package com.media.center.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared asynchronous DNS resolver with a bounded TTL cache.
+ *
+ * Lookups run on a few dedicated threads, so a slow resolver never holds up
+ * the caller. Concurrent requests for the same name share one lookup,
+ * answers are kept for a few minutes, and failures are remembered briefly
+ * so a dead tracker name doesn't cost a fresh timeout on every announce.
+ * IP literals are returned immediately without a lookup.
+ */
+public final class HostResolver {
+
+    private static final long TTL_MS = 5 * 60_000;
+    private static final long NEGATIVE_TTL_MS = 60_000;
+    private static final int MAX_ENTRIES = 1024;
+
+    private static class Entry {
+        final InetAddress address; // null for a failed lookup
+        final long expiresAt;
+
+        Entry(InetAddress address, long ttlMs) {
+            this.address = address;
+            this.expiresAt = System.currentTimeMillis() + ttlMs;
+        }
+    }
+
+    private static final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private static final Map<String, CompletableFuture<InetAddress>> inFlight = new ConcurrentHashMap<>();
+
+    private static final ExecutorService LOOKUPS = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "DnsLookup");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private HostResolver() {
+    }
+
+    /** Resolve a host name or IP literal; fails with UnknownHostException. */
+    public static CompletableFuture<InetAddress> resolve(String host) {
+        if (host == null || host.isEmpty())
+            return CompletableFuture.failedFuture(new UnknownHostException("empty host"));
+        if (isLiteral(host)) {
+            try {
+                // Literals are parsed, never looked up
+                return CompletableFuture.completedFuture(InetAddress.getByName(host));
+            } catch (UnknownHostException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        String key = host.toLowerCase();
+        Entry cached = cache.get(key);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached.address != null ? CompletableFuture.completedFuture(cached.address)
+                    : CompletableFuture.failedFuture(new UnknownHostException(host + " (cached failure)"));
+        }
+
+        CompletableFuture<InetAddress> mine = new CompletableFuture<>();
+        CompletableFuture<InetAddress> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null)
+            return existing;
+
+        LOOKUPS.execute(() -> {
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                store(key, new Entry(address, TTL_MS));
+                mine.complete(address);
+            } catch (UnknownHostException e) {
+                store(key, new Entry(null, NEGATIVE_TTL_MS));
+                mine.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                mine.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        });
+        return mine;
+    }
+
+    /**
+     * Resolve, waiting at most {@code timeoutMs}. For blocking code paths
+     * whose socket timeouts don't cover the DNS lookup.
+     */
+    public static InetAddress resolve(String host, long timeoutMs) throws UnknownHostException {
+        try {
+            return resolve(host).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + " (interrupted)");
+        } catch (Exception e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException)
+                throw (UnknownHostException) cause;
+            throw new UnknownHostException(host + (cause == null ? " (timed out)" : " (" + cause.getMessage() + ")"));
+        }
+    }
+
+    private static void store(String key, Entry entry) {
+        if (cache.size() >= MAX_ENTRIES) {
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(e -> e.expiresAt <= now);
+            // Still full of live entries: drop some rather than grow
+            Iterator<String> it = cache.keySet().iterator();
+            while (cache.size() >= MAX_ENTRIES && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        cache.put(key, entry);
+    }
+
+    /** IPv4 dotted quad or anything with a colon (IPv6). */
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0)
+            return true;
+        int dots = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '.')
+                dots++;
+            else if (c < '0' || c > '9')
+                return false;
+        }
+        return dots == 3;
+    }
+}
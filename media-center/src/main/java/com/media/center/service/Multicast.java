@@ -0,0 +1,61 @@
+package com.media.center.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+
+/**
+ * Joining and leaving a multicast group, shared by SSDP (DLNA discovery)
+ * and BitTorrent Local Service Discovery.
+ *
+ * With a bind address the socket is tied to that interface, so a machine
+ * with several networks can pick the one the other side is on; without one
+ * the system's default multicast interface is used.
+ */
+public final class Multicast {
+
+    private Multicast() {
+    }
+
+    /**
+     * Open a socket on {@code port} (0 for any) joined to {@code group}. The
+     * address is reusable, so other programs (or other parts of this one)
+     * can listen on the same group port.
+     */
+    public static MulticastSocket join(InetSocketAddress group, InetAddress bindAddress, int port) throws IOException {
+        MulticastSocket socket = new MulticastSocket(null);
+        try {
+            socket.setReuseAddress(true);
+            if (bindAddress != null) {
+                socket.bind(new InetSocketAddress(bindAddress, port));
+                NetworkInterface ni = NetworkInterface.getByInetAddress(bindAddress);
+                if (ni != null) {
+                    socket.setNetworkInterface(ni);
+                    socket.joinGroup(group, ni);
+                    System.out.println("Multicast: joined " + group.getAddress().getHostAddress() + " on "
+                            + ni.getDisplayName() + " (" + bindAddress.getHostAddress() + ")");
+                } else {
+                    socket.joinGroup(group, null);
+                }
+            } else {
+                socket.bind(new InetSocketAddress(port));
+                socket.joinGroup(group, null);
+            }
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** Leave the group joined by {@link #join}, ignoring errors. */
+    public static void leave(MulticastSocket socket, InetSocketAddress group, InetAddress bindAddress) {
+        try {
+            NetworkInterface ni = bindAddress != null ? NetworkInterface.getByInetAddress(bindAddress) : null;
+            socket.leaveGroup(group, ni);
+        } catch (Exception ignored) {
+        }
+    }
+}
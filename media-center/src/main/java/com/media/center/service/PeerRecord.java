@@ -0,0 +1,27 @@
+package com.media.center.service;
+
+/** A peer remembered for one torrent, with how much it has delivered. */
+public class PeerRecord {
+    private final String ip;
+    private final int port;
+    private final long score;
+
+    public PeerRecord(String ip, int port, long score) {
+        this.ip = ip;
+        this.port = port;
+        this.score = score;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Bytes received from this peer across sessions. */
+    public long getScore() {
+        return score;
+    }
+}
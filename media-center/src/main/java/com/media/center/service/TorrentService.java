@@ -40,7 +40,8 @@ public class TorrentService {
             System.out.println("Parsed magnet: " + magnet.getDisplayName());
 
             // Use our custom MetadataFetcher
-            return com.media.center.service.torrent.MetadataFetcher.fetchFiles(magnet, extraTrackers, isCancelled);
+            return com.media.center.service.torrent.MetadataFetcher.fetchFiles(magnet, extraTrackers, databaseService,
+                    isCancelled);
 
         } catch (Exception e) {
             System.err.println("Invalid magnet link or fetch failed: " + e.getMessage());
@@ -99,6 +100,7 @@ public class TorrentService {
 
         TorrentDownloader downloader = new TorrentDownloader(
                 session, magnetLink, extraTrackers, downloadDir, selectedFiles);
+        downloader.setDatabase(databaseService);
         activeDownloaders.put(session, downloader);
 
         Thread thread = new Thread(downloader, "Downloader-" + session.getName());
@@ -172,6 +174,10 @@ public class TorrentService {
 
         downloads.remove(session);
         databaseService.deleteSession(session);
+        try {
+            databaseService.deletePeers(new MagnetLink(session.getMagnetLink()).getHexInfoHash());
+        } catch (IllegalArgumentException ignored) {
+        }
     }
 
     private void deleteRecursive(java.io.File file) {
@@ -0,0 +1,63 @@
+package com.media.center.service;
+
+/**
+ * How a tracker URL has behaved, across torrents and sessions. Saved
+ * counters are deltas that get added to the stored row; the failure streak
+ * and timestamps replace it.
+ */
+public class TrackerStats {
+    private final String url;
+    private final long announces;
+    private final long successes;
+    private final long totalLatencyMs;
+    private final long peersYielded;
+    private final int consecutiveFailures;
+    private final long lastSuccess;
+    private final long lastAttempt;
+
+    public TrackerStats(String url, long announces, long successes, long totalLatencyMs, long peersYielded,
+            int consecutiveFailures, long lastSuccess, long lastAttempt) {
+        this.url = url;
+        this.announces = announces;
+        this.successes = successes;
+        this.totalLatencyMs = totalLatencyMs;
+        this.peersYielded = peersYielded;
+        this.consecutiveFailures = consecutiveFailures;
+        this.lastSuccess = lastSuccess;
+        this.lastAttempt = lastAttempt;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getAnnounces() {
+        return announces;
+    }
+
+    public long getSuccesses() {
+        return successes;
+    }
+
+    /** Sum of reply times of successful announces. */
+    public long getTotalLatencyMs() {
+        return totalLatencyMs;
+    }
+
+    /** New peers this tracker has returned. */
+    public long getPeersYielded() {
+        return peersYielded;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    public long getLastAttempt() {
+        return lastAttempt;
+    }
+}
@@ -0,0 +1,39 @@
+package com.media.center.service.torrent;
+
+/** Transfer state reported to a tracker with one announce. */
+class AnnounceParams {
+
+    enum Event {
+        NONE(0, null),
+        COMPLETED(1, "completed"),
+        STARTED(2, "started"),
+        STOPPED(3, "stopped");
+
+        final int udpId; // BEP 15 event code
+        final String httpName; // BEP 3 event parameter, null to omit
+
+        Event(int udpId, String httpName) {
+            this.udpId = udpId;
+            this.httpName = httpName;
+        }
+    }
+
+    // Reported as "left" while the size is still unknown (magnet without
+    // metadata). Must be non-zero: left=0 claims we are a seed, and trackers
+    // then hand out fewer seeders.
+    static final long UNKNOWN_LEFT = 16384;
+
+    final long downloaded;
+    final long uploaded;
+    final long left;
+    final Event event;
+    final int numWant; // -1 for the tracker's default
+
+    AnnounceParams(long downloaded, long uploaded, long left, Event event, int numWant) {
+        this.downloaded = downloaded;
+        this.uploaded = uploaded;
+        this.left = left;
+        this.event = event;
+        this.numWant = numWant;
+    }
+}
@@ -2,127 +2,290 @@ package com.media.center.service.torrent;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
+/**
+ * Zero-copy bencode decoder.
+ *
+ * {@link #parse(byte[])} checks the input is well-formed in one pass and
+ * returns a {@link Value}, which is nothing more than a position in the
+ * source array. Nothing is copied or converted up front: dictionary lookups
+ * scan the encoded entries and compare key bytes in place, byte strings come
+ * back as read-only {@link ByteBuffer} views, and text or numbers are only
+ * produced by the accessor that asks for them. Binary fields such as
+ * {@code pieces}, {@code peers} or {@code peers6} stay raw bytes throughout.
+ */
 public class BencodeParser {
 
-    public static Object decode(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        return decode(buffer);
+    // Nesting limit, so hostile input can't blow the stack
+    private static final int MAX_DEPTH = 256;
+
+    /** Parse a complete bencoded value. Trailing bytes are not allowed. */
+    public static Value parse(byte[] data) {
+        Value v = parsePrefix(data, 0);
+        if (v.end != data.length)
+            throw new IllegalArgumentException("Trailing data after bencoded value");
+        return v;
     }
 
-    private static Object decode(ByteBuffer buffer) {
-        if (!buffer.hasRemaining()) {
-            return null;
+    /**
+     * Parse the value starting at {@code offset}, which may be followed by
+     * other data (e.g. the raw piece after a ut_metadata header).
+     * {@link Value#end()} tells where it stopped.
+     */
+    public static Value parsePrefix(byte[] data, int offset) {
+        int end = skip(data, offset, data.length, 0);
+        return new Value(data, offset, end);
+    }
+
+    /** A decoded element: a view of {@code src[start, end)}. */
+    public static final class Value {
+        private final byte[] src;
+        private final int start;
+        private final int end;
+
+        private Value(byte[] src, int start, int end) {
+            this.src = src;
+            this.start = start;
+            this.end = end;
         }
 
-        byte b = buffer.get(buffer.position());
+        public boolean isInteger() {
+            return src[start] == 'i';
+        }
 
-        if (Character.isDigit(b)) {
-            return decodeString(buffer);
-        } else if (b == 'i') {
-            return decodeInteger(buffer);
-        } else if (b == 'l') {
-            return decodeList(buffer);
-        } else if (b == 'd') {
-            return decodeDictionary(buffer);
-        } else {
-            throw new IllegalArgumentException("Invalid bencode format");
+        public boolean isString() {
+            return isDigit(src[start]);
         }
-    }
 
-    private static byte[] decodeStringBoxed(ByteBuffer buffer) {
-        int colonIndex = -1;
-        int start = buffer.position();
+        public boolean isList() {
+            return src[start] == 'l';
+        }
 
-        // Find colon
-        while (buffer.hasRemaining()) {
-            if (buffer.get() == ':') {
-                colonIndex = buffer.position() - 1;
-                break;
-            }
+        public boolean isDictionary() {
+            return src[start] == 'd';
         }
 
-        if (colonIndex == -1) {
-            throw new IllegalArgumentException("Invalid string length format");
+        /** Index just past this value in the source array. */
+        public int end() {
+            return end;
         }
 
-        buffer.position(start);
-        byte[] lenBytes = new byte[colonIndex - start];
-        buffer.get(lenBytes);
-        int length = Integer.parseInt(new String(lenBytes));
+        /** The encoded bytes of this whole value (e.g. to hash an info dict). */
+        public ByteBuffer encoded() {
+            return ByteBuffer.wrap(src, start, end - start).slice().asReadOnlyBuffer();
+        }
 
-        // Skip colon
-        buffer.get();
+        // ----- integers -----
 
-        byte[] strBytes = new byte[length];
-        if (buffer.remaining() < length) {
-            throw new IllegalArgumentException(
-                    "String length " + length + " exceeds remaining buffer " + buffer.remaining());
+        public long asLong() {
+            if (!isInteger())
+                throw new IllegalStateException("Not an integer");
+            int p = start + 1;
+            boolean negative = src[p] == '-';
+            if (negative)
+                p++;
+            long v = 0;
+            while (src[p] != 'e')
+                v = v * 10 + (src[p++] - '0');
+            return negative ? -v : v;
         }
-        buffer.get(strBytes);
-        return strBytes;
-    }
 
-    private static String decodeString(ByteBuffer buffer) {
-        // Use ISO_8859_1 (1:1 byte mapping) to preserve binary data like SHA1 hashes.
-        // Bencode strings are raw byte sequences, not necessarily text.
-        return new String(decodeStringBoxed(buffer), StandardCharsets.ISO_8859_1);
-    }
+        // ----- strings -----
+
+        private int payloadStart() {
+            int p = start;
+            while (src[p] != ':')
+                p++;
+            return p + 1;
+        }
+
+        /** String payload as a read-only view into the source (no copy). */
+        public ByteBuffer asBuffer() {
+            if (!isString())
+                throw new IllegalStateException("Not a string");
+            int p = payloadStart();
+            return ByteBuffer.wrap(src, p, end - p).slice().asReadOnlyBuffer();
+        }
+
+        /** String payload copied out. */
+        public byte[] asBytes() {
+            if (!isString())
+                throw new IllegalStateException("Not a string");
+            int p = payloadStart();
+            byte[] out = new byte[end - p];
+            System.arraycopy(src, p, out, 0, out.length);
+            return out;
+        }
+
+        /** String payload decoded as UTF-8 text. */
+        public String asString() {
+            if (!isString())
+                throw new IllegalStateException("Not a string");
+            int p = payloadStart();
+            return new String(src, p, end - p, StandardCharsets.UTF_8);
+        }
+
+        // ----- lists -----
+
+        /** Elements of a list, as views. */
+        public List<Value> list() {
+            if (!isList())
+                throw new IllegalStateException("Not a list");
+            List<Value> items = new ArrayList<>();
+            int p = start + 1;
+            while (src[p] != 'e') {
+                int next = skip(src, p, end, 0);
+                items.add(new Value(src, p, next));
+                p = next;
+            }
+            return items;
+        }
+
+        // ----- dictionaries -----
 
-    private static Long decodeInteger(ByteBuffer buffer) {
-        buffer.get(); // consume 'i'
-        int start = buffer.position();
-        int end = -1;
-        while (buffer.hasRemaining()) {
-            if (buffer.get() == 'e') {
-                end = buffer.position() - 1;
-                break;
+        /** Look up a key by scanning the encoded entries; null if absent. */
+        public Value get(String key) {
+            if (!isDictionary())
+                return null;
+            int p = start + 1;
+            while (src[p] != 'e') {
+                int keyEnd = skip(src, p, end, 0);
+                int valueEnd = skip(src, keyEnd, end, 0);
+                if (keyEquals(p, keyEnd, key))
+                    return new Value(src, keyEnd, valueEnd);
+                p = valueEnd;
             }
+            return null;
         }
 
-        if (end == -1)
-            throw new IllegalArgumentException("Invalid integer format");
+        public boolean containsKey(String key) {
+            return get(key) != null;
+        }
 
-        buffer.position(start);
-        byte[] numBytes = new byte[end - start];
-        buffer.get(numBytes);
-        buffer.get(); // consume 'e'
+        /** Values of a dictionary in encoded order, as views. */
+        public List<Value> values() {
+            if (!isDictionary())
+                throw new IllegalStateException("Not a dictionary");
+            List<Value> items = new ArrayList<>();
+            int p = start + 1;
+            while (src[p] != 'e') {
+                int keyEnd = skip(src, p, end, 0);
+                int valueEnd = skip(src, keyEnd, end, 0);
+                items.add(new Value(src, keyEnd, valueEnd));
+                p = valueEnd;
+            }
+            return items;
+        }
 
-        return Long.parseLong(new String(numBytes));
-    }
+        /** Keys (decoded as UTF-8) and values of a dictionary in encoded order. */
+        public List<Map.Entry<String, Value>> entries() {
+            if (!isDictionary())
+                throw new IllegalStateException("Not a dictionary");
+            List<Map.Entry<String, Value>> items = new ArrayList<>();
+            int p = start + 1;
+            while (src[p] != 'e') {
+                int keyEnd = skip(src, p, end, 0);
+                int valueEnd = skip(src, keyEnd, end, 0);
+                items.add(new AbstractMap.SimpleImmutableEntry<>(new Value(src, p, keyEnd).asString(),
+                        new Value(src, keyEnd, valueEnd)));
+                p = valueEnd;
+            }
+            return items;
+        }
+
+        /** Integer under key, or fallback if missing or not an integer. */
+        public long getLong(String key, long fallback) {
+            Value v = get(key);
+            return v != null && v.isInteger() ? v.asLong() : fallback;
+        }
+
+        /** Text under key, or fallback if missing or not a string. */
+        public String getString(String key, String fallback) {
+            Value v = get(key);
+            return v != null && v.isString() ? v.asString() : fallback;
+        }
 
-    private static List<Object> decodeList(ByteBuffer buffer) {
-        buffer.get(); // consume 'l'
-        List<Object> list = new ArrayList<>();
-        while (buffer.hasRemaining()) {
-            if (buffer.get(buffer.position()) == 'e') {
-                buffer.get(); // consume 'e'
-                return list;
+        private boolean keyEquals(int keyStart, int keyEnd, String key) {
+            int p = keyStart;
+            while (src[p] != ':')
+                p++;
+            p++;
+            if (keyEnd - p != key.length())
+                return false;
+            for (int i = 0; i < key.length(); i++) {
+                if ((src[p + i] & 0xFF) != key.charAt(i))
+                    return false;
             }
-            list.add(decode(buffer));
+            return true;
         }
-        throw new IllegalArgumentException("Unterminated list");
     }
 
-    private static Map<String, Object> decodeDictionary(ByteBuffer buffer) {
-        buffer.get(); // consume 'd'
-        Map<String, Object> map = new TreeMap<>(); // Keys must be sorted in Bencode, but we just store them
-        while (buffer.hasRemaining()) {
-            if (buffer.get(buffer.position()) == 'e') {
-                buffer.get(); // consume 'e'
-                return map;
+    /**
+     * Return the index just past the value at {@code pos}, validating it on
+     * the way. Throws IllegalArgumentException for malformed input.
+     */
+    private static int skip(byte[] s, int pos, int limit, int depth) {
+        if (pos >= limit)
+            throw new IllegalArgumentException("Unexpected end of data");
+        byte b = s[pos];
+
+        if (b == 'i') {
+            int p = pos + 1;
+            if (p < limit && s[p] == '-')
+                p++;
+            int digits = p;
+            while (p < limit && isDigit(s[p]))
+                p++;
+            if (p == digits || p >= limit || s[p] != 'e')
+                throw new IllegalArgumentException("Invalid integer format");
+            return p + 1;
+        }
+
+        if (isDigit(b)) {
+            long length = 0;
+            int p = pos;
+            while (p < limit && isDigit(s[p])) {
+                length = length * 10 + (s[p] - '0');
+                if (length > limit)
+                    throw new IllegalArgumentException("String length exceeds data");
+                p++;
             }
+            if (p >= limit || s[p] != ':')
+                throw new IllegalArgumentException("Invalid string length format");
+            p++;
+            if (p + length > limit)
+                throw new IllegalArgumentException(
+                        "String length " + length + " exceeds remaining buffer " + (limit - p));
+            return (int) (p + length);
+        }
 
-            // Keys are always strings
-            String key = decodeString(buffer);
-            Object value = decode(buffer);
-            map.put(key, value);
+        if (b == 'l' || b == 'd') {
+            if (depth >= MAX_DEPTH)
+                throw new IllegalArgumentException("Nesting too deep");
+            int p = pos + 1;
+            while (true) {
+                if (p >= limit)
+                    throw new IllegalArgumentException(b == 'l' ? "Unterminated list" : "Unterminated dictionary");
+                if (s[p] == 'e')
+                    return p + 1;
+                if (b == 'd') {
+                    // Keys are always strings
+                    if (!isDigit(s[p]))
+                        throw new IllegalArgumentException("Dictionary key is not a string");
+                    p = skip(s, p, limit, depth + 1);
+                }
+                p = skip(s, p, limit, depth + 1);
+            }
         }
-        throw new IllegalArgumentException("Unterminated dictionary");
+
+        throw new IllegalArgumentException("Invalid bencode format");
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
     }
 }
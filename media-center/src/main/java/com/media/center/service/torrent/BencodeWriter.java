@@ -0,0 +1,213 @@
+package com.media.center.service.torrent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming bencode encoder that writes straight into a {@link ByteBuffer}.
+ *
+ * Nothing is built up in memory first: integers are written digit by digit,
+ * byte strings are copied from the caller's array or buffer, and text is
+ * encoded to UTF-8 in place. Dictionary keys must be written in sorted
+ * order (raw byte order, as the spec requires); a key out of order throws
+ * rather than producing a dictionary other clients would reject. A full
+ * buffer throws {@link java.nio.BufferOverflowException}.
+ *
+ * <pre>
+ * w.startDict()
+ *      .key("m").startDict().key("ut_metadata").value(1).end()
+ *      .key("v").value("MediaCenter")
+ *  .end();
+ * </pre>
+ */
+final class BencodeWriter {
+
+    private static final int MAX_DEPTH = 32;
+
+    private final ByteBuffer buf;
+    // Per open container: last key written (dicts only), or null
+    private final String[] lastKey = new String[MAX_DEPTH];
+    private final boolean[] isDict = new boolean[MAX_DEPTH];
+    private int depth = 0;
+    private boolean expectValue = false;
+
+    BencodeWriter(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    ByteBuffer buffer() {
+        return buf;
+    }
+
+    /** Forget any open containers so the writer can be reused for a new value. */
+    BencodeWriter reset() {
+        depth = 0;
+        expectValue = false;
+        return this;
+    }
+
+    // =====================================================================
+    // CONTAINERS
+    // =====================================================================
+
+    BencodeWriter startDict() {
+        return open('d', true);
+    }
+
+    BencodeWriter startList() {
+        return open('l', false);
+    }
+
+    /** Close the innermost dictionary or list. */
+    BencodeWriter end() {
+        if (depth == 0 || expectValue)
+            throw new IllegalStateException(depth == 0 ? "Nothing to end" : "Key without value");
+        depth--;
+        buf.put((byte) 'e');
+        return this;
+    }
+
+    /** Dictionary key; must sort after the previous key of the same dictionary. */
+    BencodeWriter key(String key) {
+        if (depth == 0 || !isDict[depth - 1] || expectValue)
+            throw new IllegalStateException("Key outside a dictionary");
+        String prev = lastKey[depth - 1];
+        // UTF-16 order equals byte order for the ASCII keys the protocols use
+        if (prev != null && prev.compareTo(key) >= 0)
+            throw new IllegalStateException("Key '" + key + "' not after '" + prev + "'");
+        lastKey[depth - 1] = key;
+        writeText(key);
+        expectValue = true;
+        return this;
+    }
+
+    // =====================================================================
+    // VALUES
+    // =====================================================================
+
+    BencodeWriter value(long v) {
+        beforeValue();
+        buf.put((byte) 'i');
+        writeDecimal(v);
+        buf.put((byte) 'e');
+        return this;
+    }
+
+    /** Byte string. */
+    BencodeWriter value(byte[] data) {
+        return value(data, 0, data.length);
+    }
+
+    BencodeWriter value(byte[] data, int offset, int length) {
+        beforeValue();
+        writeDecimal(length);
+        buf.put((byte) ':');
+        buf.put(data, offset, length);
+        return this;
+    }
+
+    /** Byte string from the remaining bytes of a buffer (its position is untouched). */
+    BencodeWriter value(ByteBuffer data) {
+        beforeValue();
+        writeDecimal(data.remaining());
+        buf.put((byte) ':');
+        buf.put(data.duplicate());
+        return this;
+    }
+
+    /** Text, encoded as UTF-8. */
+    BencodeWriter value(String text) {
+        beforeValue();
+        writeText(text);
+        return this;
+    }
+
+    // =====================================================================
+    // INTERNALS
+    // =====================================================================
+
+    private BencodeWriter open(char type, boolean dict) {
+        beforeValue();
+        if (depth == MAX_DEPTH)
+            throw new IllegalStateException("Nesting too deep");
+        isDict[depth] = dict;
+        lastKey[depth] = null;
+        depth++;
+        buf.put((byte) type);
+        return this;
+    }
+
+    private void beforeValue() {
+        if (depth > 0 && isDict[depth - 1] && !expectValue)
+            throw new IllegalStateException("Value without key");
+        expectValue = false;
+    }
+
+    private void writeText(String s) {
+        writeDecimal(utf8Length(s));
+        buf.put((byte) ':');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xF0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                // Lone surrogates become '?', as String.getBytes would do
+                if (Character.isSurrogate(c))
+                    c = '?';
+                if (c < 0x80) {
+                    buf.put((byte) c);
+                } else {
+                    buf.put((byte) (0xE0 | (c >> 12)));
+                    buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buf.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return n;
+    }
+
+    private void writeDecimal(long v) {
+        if (v == Long.MIN_VALUE) {
+            // Can't be negated; rare enough to take the slow path
+            for (char c : Long.toString(v).toCharArray())
+                buf.put((byte) c);
+            return;
+        }
+        if (v < 0) {
+            buf.put((byte) '-');
+            v = -v;
+        }
+        long div = 1;
+        while (v / div >= 10)
+            div *= 10;
+        for (; div > 0; div /= 10)
+            buf.put((byte) ('0' + (v / div) % 10));
+    }
+}
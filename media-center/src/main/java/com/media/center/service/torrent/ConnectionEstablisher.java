@@ -0,0 +1,504 @@
+package com.media.center.service.torrent;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Races many non-blocking TCP connects + BT handshakes on a single selector
+ * thread, and hands whichever peers finish first to the download engine.
+ *
+ * At most {@code halfOpenLimit} attempts are in flight at once. Peers that
+ * complete the handshake are switched back to blocking mode and queued in
+ * {@link #take(long)}; the engine promotes them to active download slots.
+ * Connections always go direct, matching {@link ProxyConfig#getPeerProxy()}.
+ *
+ * With a {@link UtpManager} each peer is tried over uTP first, which backs
+ * off as soon as it sees queueing delay instead of filling the router's
+ * buffers. TCP follows a few hundred ms later and whichever handshake
+ * completes first is kept, so a peer without uTP costs little more than a
+ * plain TCP dial. Peers known not to speak uTP, from ut_pex flags or from
+ * an earlier attempt in this process, are dialed over TCP alone.
+ */
+class ConnectionEstablisher implements AutoCloseable {
+
+    /** Notified when an attempt fails, so the engine can track bad peers. */
+    interface FailureListener {
+        /**
+         * @param protocolError true if the peer answered but spoke garbage or
+         *                      the wrong torrent; false for refused/timed out
+         */
+        void onFailed(TrackerClient.Peer peer, boolean protocolError);
+    }
+
+    /** A peer that completed the BT handshake, ready for the wire protocol. */
+    static class Established {
+        final TrackerClient.Peer peer;
+        final Socket socket;
+        final byte[] reserved; // remote handshake reserved bytes
+        final long establishedAt;
+        // Set when the connection was handed over from a metadata fetch
+        final PeerConnection origin;
+
+        Established(TrackerClient.Peer peer, Socket socket, byte[] reserved, PeerConnection origin) {
+            this.peer = peer;
+            this.socket = socket;
+            this.reserved = reserved;
+            this.origin = origin;
+            this.establishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private static final int HANDSHAKE_LEN = 68;
+    private static final long CONNECT_TIMEOUT_MS = 8000;
+    private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    // Established peers nobody picked up go stale (remote side times us out)
+    private static final long READY_MAX_AGE_MS = 20000;
+    // How long a uTP SYN goes unanswered before the same peer is dialed over TCP too
+    private static final long TCP_HEAD_START_MS = 300;
+    private static final int MAX_UTP_HINTS = 50_000;
+
+    // Packed IPv4 key -> whether the peer speaks uTP, shared by every download
+    private static final Map<Long, Boolean> utpSupport = new ConcurrentHashMap<>();
+
+    private final byte[] infoHash;
+    private final byte[] ourHandshake;
+    private final int halfOpenLimit;
+    private final FailureListener failureListener;
+    private final UtpManager utp; // null = TCP only
+    // Races waiting for their TCP leg, started by the selector thread once due
+    private final ConcurrentLinkedQueue<Race> tcpLegs = new ConcurrentLinkedQueue<>();
+    // uTP handshakes are short blocking exchanges, run off the selector thread
+    private final ExecutorService utpHandshakes = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "UtpHandshake");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<TrackerClient.Peer> toDial = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<Established> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Thread selectorThread;
+    private volatile boolean closed = false;
+    // Handshakes completed during the current select round (selector thread only)
+    private final List<Attempt> completed = new ArrayList<>();
+
+    /** Per-attempt state attached to the selection key. */
+    private static class Attempt {
+        final TrackerClient.Peer peer;
+        final SocketChannel channel;
+        final Race race; // null for a TCP-only dial
+        final ByteBuffer outBuf;
+        final ByteBuffer inBuf = ByteBuffer.allocate(HANDSHAKE_LEN);
+        long deadline;
+
+        Attempt(TrackerClient.Peer peer, SocketChannel channel, Race race, byte[] handshake) {
+            this.peer = peer;
+            this.channel = channel;
+            this.race = race;
+            this.outBuf = ByteBuffer.wrap(handshake);
+            this.deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        }
+    }
+
+    /**
+     * One peer dialed over uTP and TCP at once. It holds a single half-open
+     * slot until a leg completes the handshake or both have failed.
+     */
+    private static class Race {
+        final TrackerClient.Peer peer;
+        volatile long tcpStartAt;
+        private int legsLeft = 2;
+        private boolean settled = false;
+        private boolean protocolError = false;
+
+        Race(TrackerClient.Peer peer) {
+            this.peer = peer;
+            this.tcpStartAt = System.currentTimeMillis() + TCP_HEAD_START_MS;
+        }
+
+        synchronized boolean isSettled() {
+            return settled;
+        }
+
+        /** True for the first leg to get here: that connection is kept. */
+        synchronized boolean win() {
+            if (settled)
+                return false;
+            settled = true;
+            return true;
+        }
+
+        /** True once the last leg has failed and the race is lost. */
+        synchronized boolean legFailed(boolean protocolError) {
+            this.protocolError |= protocolError;
+            if (--legsLeft > 0 || settled)
+                return false;
+            settled = true;
+            return true;
+        }
+    }
+
+    ConnectionEstablisher(byte[] infoHash, byte[] peerId, byte[] reserved, int halfOpenLimit,
+            FailureListener failureListener, UtpManager utp) throws IOException {
+        this.infoHash = infoHash;
+        this.halfOpenLimit = halfOpenLimit;
+        this.failureListener = failureListener;
+        this.utp = utp;
+
+        ByteBuffer hs = ByteBuffer.allocate(HANDSHAKE_LEN);
+        hs.put((byte) 19);
+        hs.put("BitTorrent protocol".getBytes(StandardCharsets.US_ASCII));
+        hs.put(reserved, 0, 8);
+        hs.put(infoHash, 0, 20);
+        hs.put(peerId, 0, 20);
+        this.ourHandshake = hs.array();
+
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(this::selectLoop, "PeerConnector");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /**
+     * Record what ut_pex said about a peer's uTP support. What our own dials
+     * found out takes precedence.
+     */
+    static void hintUtp(long key, boolean supported) {
+        if (key != 0 && utpSupport.size() < MAX_UTP_HINTS)
+            utpSupport.putIfAbsent(key, supported);
+    }
+
+    /** Record that a peer did or didn't answer over uTP. */
+    private static void learnUtp(long key, boolean supported) {
+        if (key == 0)
+            return;
+        if (utpSupport.size() >= MAX_UTP_HINTS)
+            utpSupport.clear();
+        utpSupport.put(key, supported);
+    }
+
+    /** Queue a peer to be dialed as soon as a half-open slot frees up. */
+    void dial(TrackerClient.Peer peer) {
+        toDial.add(peer);
+        selector.wakeup();
+    }
+
+    /**
+     * Hand over a connection that is already past the BT handshake (e.g. the
+     * one that just delivered metadata), so a worker slot picks it up first.
+     */
+    void offer(PeerConnection conn, TrackerClient.Peer peer) {
+        ready.add(new Established(peer, conn.getSocket(), conn.getRemoteReserved(), conn));
+    }
+
+    /** Attempts queued or in progress, plus established peers not yet taken. */
+    int pendingCount() {
+        return toDial.size() + inFlight.get() + ready.size();
+    }
+
+    int getHalfOpenLimit() {
+        return halfOpenLimit;
+    }
+
+    /** Wait for the next handshaken peer, or null on timeout. */
+    Established take(long timeoutMs) throws InterruptedException {
+        while (true) {
+            Established e = ready.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (e == null)
+                return null;
+            if (System.currentTimeMillis() - e.establishedAt < READY_MAX_AGE_MS && !e.socket.isClosed())
+                return e;
+            closeQuietly(e.socket);
+        }
+    }
+
+    private void selectLoop() {
+        while (!closed) {
+            try {
+                startQueuedAttempts();
+                // Wake up in time to start pending TCP legs near their due time
+                selector.select(tcpLegs.isEmpty() ? 250 : 50);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Attempt a = (Attempt) key.attachment();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isConnectable())
+                            onConnectable(key, a);
+                        else if (key.isWritable())
+                            onWritable(key, a);
+                        else if (key.isReadable())
+                            onReadable(key, a);
+                    } catch (IOException e) {
+                        fail(key, a, false);
+                    }
+                }
+
+                promoteCompleted();
+                expireAttempts();
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Peer connector error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void startQueuedAttempts() {
+        startDueTcpLegs();
+        while (inFlight.get() < halfOpenLimit) {
+            TrackerClient.Peer peer = toDial.poll();
+            if (peer == null)
+                return;
+            if (utp != null && !Boolean.FALSE.equals(utpSupport.get(peer.key))) {
+                race(peer);
+                continue;
+            }
+            inFlight.incrementAndGet();
+            dialTcp(peer, null);
+        }
+    }
+
+    /** Dial the TCP leg of every race whose uTP head start is over. */
+    private void startDueTcpLegs() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Race> it = tcpLegs.iterator(); it.hasNext();) {
+            Race race = it.next();
+            if (race.isSettled()) {
+                it.remove(); // uTP won before TCP was needed
+            } else if (now >= race.tcpStartAt) {
+                it.remove();
+                dialTcp(race.peer, race);
+            }
+        }
+    }
+
+    /** Start a non-blocking TCP connect, on its own or as a race's second leg. */
+    private void dialTcp(TrackerClient.Peer peer, Race race) {
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ch.setOption(StandardSocketOptions.SO_RCVBUF, 256 * 1024);
+            ch.setOption(StandardSocketOptions.SO_SNDBUF, 64 * 1024);
+            Attempt a = new Attempt(peer, ch, race, ourHandshake);
+            if (ch.connect(new InetSocketAddress(peer.ip, peer.port))) {
+                a.deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+                ch.register(selector, SelectionKey.OP_WRITE, a);
+            } else {
+                ch.register(selector, SelectionKey.OP_CONNECT, a);
+            }
+        } catch (Exception e) {
+            closeQuietly(ch);
+            failed(peer, race, false);
+        }
+    }
+
+    /** Send the uTP SYN now; the TCP leg follows after the head start. */
+    private void race(TrackerClient.Peer peer) {
+        Race race = new Race(peer);
+        inFlight.incrementAndGet();
+        tcpLegs.add(race);
+        utp.connect(new InetSocketAddress(peer.ip, peer.port)).whenComplete((socket, err) -> {
+            if (err != null) {
+                learnUtp(peer.key, false);
+                // Nothing to wait for: let TCP go now if it hasn't yet
+                race.tcpStartAt = 0;
+                selector.wakeup();
+                failed(peer, race, false);
+                return;
+            }
+            learnUtp(peer.key, true);
+            if (race.isSettled()) {
+                closeQuietly(socket); // TCP got there first
+                return;
+            }
+            try {
+                utpHandshakes.execute(() -> handshakeUtp(race, socket));
+            } catch (RuntimeException e) { // shut down
+                closeQuietly(socket);
+                failed(peer, race, false);
+            }
+        });
+    }
+
+    private void handshakeUtp(Race race, UtpSocket socket) {
+        try {
+            socket.setSoTimeout((int) HANDSHAKE_TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            out.write(ourHandshake);
+            out.flush();
+            byte[] resp = new byte[HANDSHAKE_LEN];
+            new DataInputStream(socket.getInputStream()).readFully(resp);
+            if (!validHandshake(resp)) {
+                closeQuietly(socket);
+                failed(race.peer, race, true);
+                return;
+            }
+            if (!race.win()) {
+                closeQuietly(socket);
+                return;
+            }
+            inFlight.decrementAndGet();
+            ready.add(new Established(race.peer, socket, Arrays.copyOfRange(resp, 20, 28), null));
+        } catch (IOException e) {
+            closeQuietly(socket);
+            failed(race.peer, race, false);
+        }
+    }
+
+    /**
+     * One dial failed. A lone TCP attempt gives its slot back and reports;
+     * a race only does so once its other leg has failed too.
+     */
+    private void failed(TrackerClient.Peer peer, Race race, boolean protocolError) {
+        if (race != null) {
+            if (!race.legFailed(protocolError))
+                return;
+            protocolError = race.protocolError;
+        }
+        inFlight.decrementAndGet();
+        failureListener.onFailed(peer, protocolError);
+    }
+
+    private boolean validHandshake(byte[] resp) {
+        return resp[0] == 19
+                && "BitTorrent protocol".equals(new String(resp, 1, 19, StandardCharsets.US_ASCII))
+                && Arrays.equals(Arrays.copyOfRange(resp, 28, 48), infoHash);
+    }
+
+    private void onConnectable(SelectionKey key, Attempt a) throws IOException {
+        if (!a.channel.finishConnect())
+            return;
+        a.deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+        key.interestOps(SelectionKey.OP_WRITE);
+        onWritable(key, a);
+    }
+
+    private void onWritable(SelectionKey key, Attempt a) throws IOException {
+        a.channel.write(a.outBuf);
+        if (!a.outBuf.hasRemaining())
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void onReadable(SelectionKey key, Attempt a) throws IOException {
+        if (a.channel.read(a.inBuf) < 0)
+            throw new IOException("Closed during handshake");
+        if (a.inBuf.hasRemaining())
+            return;
+
+        if (!validHandshake(a.inBuf.array())) {
+            fail(key, a, true);
+            return;
+        }
+
+        key.cancel();
+        if (a.race != null && !a.race.win()) {
+            closeQuietly(a.channel); // uTP got there first
+            return;
+        }
+        inFlight.decrementAndGet();
+        completed.add(a);
+    }
+
+    /** Switch freshly handshaken channels to blocking mode and publish them. */
+    private void promoteCompleted() throws IOException {
+        if (completed.isEmpty())
+            return;
+        // Flush the cancelled keys so the channels can leave non-blocking mode
+        selector.selectNow();
+        for (Attempt a : completed) {
+            try {
+                a.channel.configureBlocking(true);
+                byte[] resp = a.inBuf.array();
+                ready.add(new Established(a.peer, a.channel.socket(), Arrays.copyOfRange(resp, 20, 28), null));
+            } catch (IOException e) {
+                closeQuietly(a.channel);
+                failureListener.onFailed(a.peer, false);
+            }
+        }
+        completed.clear();
+    }
+
+    /** Fail attempts past their deadline, and drop TCP legs of races uTP has won. */
+    private void expireAttempts() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Attempt a = (Attempt) key.attachment();
+            if (a == null || !key.isValid())
+                continue;
+            if (a.race != null && a.race.isSettled()) {
+                key.cancel();
+                closeQuietly(a.channel);
+            } else if (now > a.deadline) {
+                fail(key, a, false);
+            }
+        }
+    }
+
+    private void fail(SelectionKey key, Attempt a, boolean protocolError) {
+        key.cancel();
+        closeQuietly(a.channel);
+        failed(a.peer, a.race, protocolError);
+    }
+
+    private static void closeQuietly(java.io.Closeable ch) {
+        if (ch == null)
+            return;
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        tcpLegs.clear();
+        utpHandshakes.shutdownNow();
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException ignored) {
+        }
+        for (SelectionKey key : selector.keys()) {
+            Attempt a = (Attempt) key.attachment();
+            if (a != null)
+                closeQuietly(a.channel);
+        }
+        Established e;
+        while ((e = ready.poll()) != null)
+            closeQuietly(e.socket);
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.media.center.service.torrent;
+
+/**
+ * Sizes the active connection pool by hill-climbing on download throughput.
+ *
+ * Every evaluation period it compares the change in throughput with the
+ * change in connected peers. While each extra connection still brings a
+ * worthwhile share of bandwidth the limit keeps growing; once the marginal
+ * gain flattens out (saturated uplink, disk, or swarm) it backs off. A high
+ * connect-failure rate stops growth, since more slots would only mean more
+ * dead dials.
+ */
+class ConnectionPoolController {
+
+    static final int MIN_CONNECTIONS = 4;
+    private static final int INITIAL_CONNECTIONS = 16;
+    private static final long EVAL_INTERVAL_MS = 5000;
+    // An added connection must bring at least this fraction of the current
+    // average per-connection rate to be worth keeping
+    private static final double MIN_MARGINAL_SHARE = 0.5;
+    private static final double HIGH_FAILURE_RATE = 0.8;
+    // Below this the measurement is noise (stalled, paused, or just starting)
+    private static final double MIN_RATE_BYTES = 16 * 1024;
+    // After backing off, probe upwards again once things have been stable this long
+    private static final int HOLD_PERIODS_BEFORE_PROBE = 6;
+
+    private final int cap;
+    private int limit;
+
+    private long lastEvalTime;
+    private long lastBytes;
+    private double lastRate = -1;
+    private int lastActive;
+    private long lastAttempts;
+    private long lastFailures;
+    private boolean lastMoveWasGrow = true;
+    private int holdPeriods = 0;
+
+    ConnectionPoolController(int cap) {
+        this.cap = Math.max(MIN_CONNECTIONS, cap);
+        this.limit = Math.min(INITIAL_CONNECTIONS, this.cap);
+        this.lastEvalTime = System.currentTimeMillis();
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Feed the latest counters and get the (possibly new) connection limit.
+     *
+     * @param totalBytes    bytes downloaded since the session started
+     * @param active        connections currently transferring
+     * @param totalAttempts connect attempts since the session started
+     * @param totalFailures failed connect attempts since the session started
+     */
+    int update(long totalBytes, int active, long totalAttempts, long totalFailures) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastEvalTime;
+        if (elapsed < EVAL_INTERVAL_MS)
+            return limit;
+
+        double rate = (totalBytes - lastBytes) * 1000.0 / elapsed;
+        long attempts = totalAttempts - lastAttempts;
+        double failureRate = attempts > 0 ? (double) (totalFailures - lastFailures) / attempts : 0;
+        int step = Math.max(2, limit / 4);
+
+        if (lastRate >= 0 && rate >= MIN_RATE_BYTES) {
+            double perConn = active > 0 ? rate / active : 0;
+            int deltaConn = active - lastActive;
+
+            if (active < limit * 3 / 4) {
+                // Slots are not even filled; more of them won't help. Trim
+                // only when dialing is mostly failing anyway.
+                if (failureRate > HIGH_FAILURE_RATE)
+                    shrink(step / 2);
+            } else if (deltaConn > 0) {
+                double marginal = (rate - lastRate) / deltaConn;
+                if (marginal > MIN_MARGINAL_SHARE * perConn && failureRate < HIGH_FAILURE_RATE)
+                    grow(step);
+                else
+                    shrink(step / 2);
+            } else if (deltaConn < 0) {
+                double marginalLoss = (lastRate - rate) / -deltaConn;
+                if (marginalLoss > MIN_MARGINAL_SHARE * perConn)
+                    grow(step); // dropping those peers cost real bandwidth
+                else
+                    shrink(step / 2);
+            } else if (failureRate < HIGH_FAILURE_RATE
+                    && (lastMoveWasGrow || ++holdPeriods >= HOLD_PERIODS_BEFORE_PROBE)) {
+                // Full and stable: probe upwards
+                grow(step);
+            }
+        }
+
+        lastEvalTime = now;
+        lastBytes = totalBytes;
+        lastRate = rate;
+        lastActive = active;
+        lastAttempts = totalAttempts;
+        lastFailures = totalFailures;
+        return limit;
+    }
+
+    private void grow(int step) {
+        limit = Math.min(cap, limit + step);
+        lastMoveWasGrow = true;
+        holdPeriods = 0;
+    }
+
+    private void shrink(int step) {
+        limit = Math.max(MIN_CONNECTIONS, limit - Math.max(1, step));
+        lastMoveWasGrow = false;
+        holdPeriods = 0;
+    }
+}
@@ -0,0 +1,912 @@
+package com.media.center.service.torrent;
+
+import com.media.center.service.HostResolver;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Mainline DHT node (BEP 5), for finding peers without a tracker.
+ * https://www.bittorrent.org/beps/bep_0005.html
+ *
+ * A Kademlia node on one non-blocking UDP socket, served by a single
+ * selector thread like {@link UdpTrackerClient}. The routing table keeps up
+ * to {@link #K} nodes per bucket, bucketed by how many leading bits their ID
+ * shares with ours; long-lived nodes are kept over newcomers. Lookups walk
+ * towards the target with at most {@link #ALPHA} queries in flight and end
+ * once the K closest nodes seen have all answered. Peers are handed over as
+ * each reply arrives. Queries from other nodes are answered too, so this is
+ * a full member of the DHT rather than a read-only client.
+ *
+ * The node ID and the routing table are saved to a file, so the next start
+ * bootstraps from nodes it already knows as well as the public routers.
+ */
+class DhtNode {
+
+    /** Bucket size, and how many closest nodes a lookup converges on. */
+    static final int K = 8;
+    /** Queries a lookup keeps in flight at once. */
+    static final int ALPHA = 3;
+
+    static final List<String> BOOTSTRAP_ROUTERS = List.of(
+            "router.bittorrent.com:6881",
+            "router.utorrent.com:6881",
+            "dht.transmissionbt.com:6881",
+            "dht.libtorrent.org:25401");
+
+    private static final Path STATE_FILE = Paths.get("dht_state.dat");
+
+    private static final int ID_LENGTH = 20;
+    private static final int NODE_INFO_LENGTH = 26; // id + IPv4 + port
+    private static final long QUERY_TIMEOUT_MS = 3000;
+    // A lookup never sends more than this many queries
+    private static final int MAX_LOOKUP_QUERIES = 128;
+    // Unanswered queries in a row before a node leaves the routing table
+    private static final int MAX_NODE_FAILURES = 3;
+    private static final long TOKEN_ROTATE_MS = 5 * 60_000;
+    private static final long PEER_TTL_MS = 30 * 60_000;
+    private static final int MAX_STORED_TORRENTS = 2000;
+    private static final int MAX_STORED_PEERS = 100;
+    // Keeps a get_peers reply well inside one unfragmented datagram
+    private static final int MAX_VALUES_PER_REPLY = 50;
+    private static final long REFRESH_INTERVAL_MS = 15 * 60_000;
+    private static final long SAVE_INTERVAL_MS = 10 * 60_000;
+    private static final int MAX_SAVED_NODES = 200;
+    private static final int PACKET_SIZE = 1500;
+
+    /** One entry of the routing table. */
+    private static final class Node {
+        final byte[] id;
+        final InetSocketAddress address;
+        int failures = 0;
+
+        Node(byte[] id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    /** One query waiting for its reply. */
+    private static final class Query {
+        final InetSocketAddress target;
+        final long deadline = System.currentTimeMillis() + QUERY_TIMEOUT_MS;
+        final CompletableFuture<BencodeParser.Value> reply = new CompletableFuture<>();
+
+        Query(InetSocketAddress target) {
+            this.target = target;
+        }
+    }
+
+    private static DhtNode shared;
+    private static boolean sharedFailed = false;
+
+    private final Path stateFile; // null: nothing is persisted
+    private final byte[] ownId = new byte[ID_LENGTH];
+    private final List<String> routers;
+    // Indexed by the number of leading bits shared with ownId; also the table's lock
+    private final List<List<Node>> buckets = new ArrayList<>();
+    private final Map<Integer, Query> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTransaction;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final CompletableFuture<Void> ready;
+    private volatile List<InetSocketAddress> resolvedRouters = new ArrayList<>();
+    private volatile boolean closed = false;
+    // Gets datagrams that aren't KRPC, e.g. uTP sharing the port
+    private volatile BiConsumer<InetSocketAddress, byte[]> foreignHandler;
+
+    // Selector thread only: token secrets and peers announced to us
+    private final SecureRandom random = new SecureRandom();
+    private byte[] tokenSecret = new byte[8];
+    private byte[] previousTokenSecret = new byte[8];
+    // Keyed by info-hash (ByteBuffer compares by content)
+    private final Map<ByteBuffer, Map<Long, Long>> announced = new LinkedHashMap<>();
+    private long lastRotateAt = System.currentTimeMillis();
+    private long lastRefreshAt = System.currentTimeMillis();
+    private long lastSaveAt = System.currentTimeMillis();
+
+    /**
+     * Start a node and begin bootstrapping in the background.
+     *
+     * @param port      UDP port to bind; another free port is used if it's taken
+     * @param stateFile where the node ID and routing table are kept, or null
+     * @param routers   "host:port" entry points into the network
+     */
+    DhtNode(int port, Path stateFile, List<String> routers) throws IOException {
+        this.stateFile = stateFile;
+        this.routers = routers;
+        for (int i = 0; i < ID_LENGTH * 8; i++)
+            buckets.add(new ArrayList<>());
+        random.nextBytes(tokenSecret);
+        random.nextBytes(previousTokenSecret);
+        nextTransaction = new AtomicInteger(random.nextInt());
+
+        List<Node> saved = loadState();
+
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (BindException e) {
+            System.err.println("DHT: UDP port " + port + " in use, using another one.");
+            channel.bind(new InetSocketAddress(0));
+        }
+        channel.register(selector, SelectionKey.OP_READ);
+        Thread thread = new Thread(this::selectLoop, "Dht");
+        thread.setDaemon(true);
+        thread.start();
+
+        ready = bootstrap(saved);
+    }
+
+    /**
+     * The process-wide node, on the download listen port (UDP) and started
+     * on first use; null if no socket could be opened.
+     */
+    static synchronized DhtNode shared() {
+        if (shared == null && !sharedFailed) {
+            try {
+                shared = new DhtNode(TorrentDownloader.getListenPort(), STATE_FILE, BOOTSTRAP_ROUTERS);
+                Runtime.getRuntime().addShutdownHook(new Thread(shared::saveState, "DhtSave"));
+            } catch (IOException e) {
+                System.err.println("DHT disabled: " + e.getMessage());
+                sharedFailed = true;
+            }
+        }
+        return shared;
+    }
+
+    int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** Completes once the first bootstrap lookup has finished, however well it went. */
+    CompletableFuture<Void> ready() {
+        return ready;
+    }
+
+    /** Hand datagrams on this socket that aren't KRPC to {@code handler} (on the DHT thread). */
+    void setForeignPacketHandler(BiConsumer<InetSocketAddress, byte[]> handler) {
+        foreignHandler = handler;
+    }
+
+    /** Send a datagram that isn't KRPC from this node's socket. */
+    void sendRaw(ByteBuffer packet, InetSocketAddress to) throws IOException {
+        channel.send(packet, to);
+    }
+
+    int nodeCount() {
+        synchronized (buckets) {
+            int n = 0;
+            for (List<Node> bucket : buckets)
+                n += bucket.size();
+            return n;
+        }
+    }
+
+    /**
+     * Look up peers for a torrent. Each peer is passed to {@code onPeer} (on
+     * the DHT thread) as soon as a node returns it. With {@code announcePort}
+     * above zero, the closest nodes are then told we have the torrent on
+     * that port. Completes with the number of distinct peers found.
+     */
+    CompletableFuture<Integer> getPeers(byte[] infoHash, Consumer<TrackerClient.Peer> onPeer, int announcePort) {
+        return ready.thenCompose(v -> {
+            Lookup lookup = new Lookup(infoHash, true, onPeer);
+            seed(lookup);
+            return lookup.run().thenApply(closest -> {
+                if (announcePort > 0)
+                    announcePeer(infoHash, closest, announcePort);
+                return lookup.peersFound.size();
+            });
+        });
+    }
+
+    /** Stop answering and sending, and save the routing table. */
+    void close() {
+        closed = true;
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (Query q : pending.values())
+            q.reply.completeExceptionally(new IOException("DHT closed"));
+        pending.clear();
+        saveState();
+    }
+
+    // =====================================================================
+    // ROUTING TABLE
+    // =====================================================================
+
+    /** A node answered or queried us: add it, or mark it good again. */
+    private void nodeSeen(byte[] id, InetSocketAddress address) {
+        if (id == null || Arrays.equals(id, ownId) || !(address.getAddress() instanceof Inet4Address))
+            return;
+        synchronized (buckets) {
+            List<Node> bucket = buckets.get(bucketIndex(id));
+            for (Iterator<Node> it = bucket.iterator(); it.hasNext();) {
+                Node n = it.next();
+                if (n.address.equals(address) && Arrays.equals(n.id, id)) {
+                    n.failures = 0;
+                    return;
+                }
+                if (n.address.equals(address))
+                    it.remove(); // restarted with a new ID
+            }
+            if (bucket.size() >= K) {
+                // Nodes that stay up tend to keep staying up: only evict ones that stopped answering
+                Node worst = null;
+                for (Node n : bucket) {
+                    if (n.failures > 0 && (worst == null || n.failures > worst.failures))
+                        worst = n;
+                }
+                if (worst == null)
+                    return;
+                bucket.remove(worst);
+            }
+            bucket.add(new Node(id.clone(), address));
+        }
+    }
+
+    private void nodeFailed(byte[] id, InetSocketAddress address) {
+        if (id == null)
+            return;
+        synchronized (buckets) {
+            List<Node> bucket = buckets.get(bucketIndex(id));
+            for (Iterator<Node> it = bucket.iterator(); it.hasNext();) {
+                Node n = it.next();
+                if (n.address.equals(address) && ++n.failures >= MAX_NODE_FAILURES)
+                    it.remove();
+            }
+        }
+    }
+
+    /** The {@code count} known nodes closest to target, closest first. */
+    private List<Node> closest(byte[] target, int count) {
+        List<Node> all = new ArrayList<>();
+        synchronized (buckets) {
+            for (List<Node> bucket : buckets)
+                all.addAll(bucket);
+        }
+        all.sort((a, b) -> compareDistance(target, a.id, b.id));
+        return all.size() > count ? new ArrayList<>(all.subList(0, count)) : all;
+    }
+
+    private int bucketIndex(byte[] id) {
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int x = (id[i] ^ ownId[i]) & 0xff;
+            if (x != 0)
+                return i * 8 + Integer.numberOfLeadingZeros(x) - 24;
+        }
+        return ID_LENGTH * 8 - 1;
+    }
+
+    /** Negative if {@code a} is closer to target than {@code b} (XOR metric); unknown IDs sort last. */
+    static int compareDistance(byte[] target, byte[] a, byte[] b) {
+        if (a == null || b == null)
+            return a == null ? (b == null ? 0 : 1) : -1;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int da = (a[i] ^ target[i]) & 0xff;
+            int db = (b[i] ^ target[i]) & 0xff;
+            if (da != db)
+                return da - db;
+        }
+        return 0;
+    }
+
+    // =====================================================================
+    // LOOKUPS
+    // =====================================================================
+
+    private enum CandidateState { NEW, QUERIED, ANSWERED, FAILED }
+
+    private static final class Candidate {
+        byte[] id; // null for a bootstrap router until it answers
+        final InetSocketAddress address;
+        CandidateState state = CandidateState.NEW;
+        byte[] token;
+
+        Candidate(byte[] id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    /** One iterative find_node or get_peers walk towards a target. */
+    private final class Lookup {
+        final byte[] target;
+        final boolean getPeers;
+        final Consumer<TrackerClient.Peer> onPeer;
+        // Closest first; guarded by this
+        final List<Candidate> candidates = new ArrayList<>();
+        final Set<InetSocketAddress> known = new HashSet<>();
+        final Set<Long> peersFound = ConcurrentHashMap.newKeySet();
+        final CompletableFuture<List<Candidate>> done = new CompletableFuture<>();
+        int inFlight = 0;
+        int sent = 0;
+
+        Lookup(byte[] target, boolean getPeers, Consumer<TrackerClient.Peer> onPeer) {
+            this.target = target;
+            this.getPeers = getPeers;
+            this.onPeer = onPeer;
+        }
+
+        synchronized void add(byte[] id, InetSocketAddress address) {
+            if (!known.add(address) || (id != null && Arrays.equals(id, ownId)))
+                return;
+            int i = 0;
+            while (i < candidates.size() && compareDistance(target, candidates.get(i).id, id) <= 0)
+                i++;
+            candidates.add(i, new Candidate(id, address));
+        }
+
+        CompletableFuture<List<Candidate>> run() {
+            step();
+            return done;
+        }
+
+        /**
+         * Query the closest unqueried candidates while fewer than ALPHA are
+         * in flight; finish once the K closest live ones have all answered,
+         * or nothing is left to ask.
+         */
+        void step() {
+            List<Candidate> toQuery = new ArrayList<>();
+            synchronized (this) {
+                if (done.isDone())
+                    return;
+                boolean allAnswered = true;
+                int considered = 0;
+                for (Candidate c : candidates) {
+                    if (c.state == CandidateState.FAILED)
+                        continue;
+                    if (considered++ == K)
+                        break;
+                    if (c.state == CandidateState.NEW) {
+                        allAnswered = false;
+                        if (inFlight < ALPHA && sent < MAX_LOOKUP_QUERIES) {
+                            c.state = CandidateState.QUERIED;
+                            inFlight++;
+                            sent++;
+                            toQuery.add(c);
+                        }
+                    } else if (c.state == CandidateState.QUERIED) {
+                        allAnswered = false;
+                    }
+                }
+                if (allAnswered || (toQuery.isEmpty() && inFlight == 0)) {
+                    List<Candidate> closest = new ArrayList<>();
+                    for (Candidate c : candidates) {
+                        if (c.state == CandidateState.ANSWERED && closest.size() < K)
+                            closest.add(c);
+                    }
+                    done.complete(closest);
+                    return;
+                }
+            }
+            for (Candidate c : toQuery) {
+                query(c.address, getPeers ? "get_peers" : "find_node",
+                        w -> w.key(getPeers ? "info_hash" : "target").value(target))
+                        .whenComplete((r, err) -> {
+                            if (err != null)
+                                onFailed(c);
+                            else
+                                onAnswered(c, r);
+                        });
+            }
+        }
+
+        private void onAnswered(Candidate c, BencodeParser.Value r) {
+            synchronized (this) {
+                inFlight--;
+                c.state = CandidateState.ANSWERED;
+                if (c.id == null)
+                    c.id = nodeId(r.get("id"));
+                BencodeParser.Value token = r.get("token");
+                if (token != null && token.isString())
+                    c.token = token.asBytes();
+            }
+            BencodeParser.Value nodes = r.get("nodes");
+            if (nodes != null && nodes.isString()) {
+                ByteBuffer data = nodes.asBuffer();
+                byte[] entry = new byte[NODE_INFO_LENGTH];
+                while (data.remaining() >= NODE_INFO_LENGTH) {
+                    data.get(entry);
+                    InetSocketAddress address = compactAddress(entry, ID_LENGTH);
+                    if (address != null)
+                        add(Arrays.copyOf(entry, ID_LENGTH), address);
+                }
+            }
+            BencodeParser.Value values = r.get("values");
+            if (getPeers && values != null && values.isList()) {
+                for (BencodeParser.Value v : values.list()) {
+                    if (!v.isString() || v.asBuffer().remaining() != 6)
+                        continue;
+                    TrackerClient.Peer peer = TrackerClient.Peer.fromCompact(v.asBytes(), 0);
+                    if (peer != null && peersFound.add(peer.key) && onPeer != null)
+                        onPeer.accept(peer);
+                }
+            }
+            step();
+        }
+
+        private void onFailed(Candidate c) {
+            synchronized (this) {
+                inFlight--;
+                c.state = CandidateState.FAILED;
+            }
+            nodeFailed(c.id, c.address);
+            step();
+        }
+    }
+
+    /** Start a lookup from the closest nodes we know, plus the routers if we know few. */
+    private void seed(Lookup lookup) {
+        List<Node> start = closest(lookup.target, K * 2);
+        for (Node n : start)
+            lookup.add(n.id, n.address);
+        if (start.size() < K) {
+            for (InetSocketAddress router : resolvedRouters)
+                lookup.add(null, router);
+        }
+    }
+
+    /** Resolve the routers, then look up our own ID to fill the routing table. */
+    private CompletableFuture<Void> bootstrap(List<Node> saved) {
+        List<CompletableFuture<InetSocketAddress>> lookups = new ArrayList<>();
+        for (String router : routers) {
+            int colon = router.lastIndexOf(':');
+            int port = Integer.parseInt(router.substring(colon + 1));
+            lookups.add(HostResolver.resolve(router.substring(0, colon))
+                    .thenApply(address -> new InetSocketAddress(address, port))
+                    .exceptionally(e -> null));
+        }
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenCompose(v -> {
+            List<InetSocketAddress> resolved = new ArrayList<>();
+            for (CompletableFuture<InetSocketAddress> f : lookups) {
+                if (f.join() != null)
+                    resolved.add(f.join());
+            }
+            resolvedRouters = resolved;
+            Lookup lookup = new Lookup(ownId, false, null);
+            for (Node n : saved)
+                lookup.add(n.id, n.address);
+            seed(lookup);
+            return lookup.run();
+        }).handle((closest, err) -> {
+            System.out.println("DHT bootstrapped on UDP port " + getPort() + ": " + nodeCount() + " nodes.");
+            return null;
+        });
+    }
+
+    /** Refresh the table: walk towards a random ID, or rebootstrap if it has run low. */
+    private void refresh() {
+        byte[] target = new byte[ID_LENGTH];
+        random.nextBytes(target);
+        Lookup lookup = new Lookup(nodeCount() < K ? ownId : target, false, null);
+        seed(lookup);
+        lookup.run();
+    }
+
+    private void announcePeer(byte[] infoHash, List<Candidate> closest, int port) {
+        for (Candidate c : closest) {
+            if (c.token == null)
+                continue;
+            byte[] token = c.token;
+            // Fire and forget: a lost announce only means one node doesn't list us
+            query(c.address, "announce_peer", w -> w
+                    .key("info_hash").value(infoHash)
+                    .key("port").value(port)
+                    .key("token").value(token));
+        }
+    }
+
+    // =====================================================================
+    // KRPC
+    // =====================================================================
+
+    /** Send a query; {@code args} writes the arguments that sort after "id". */
+    private CompletableFuture<BencodeParser.Value> query(InetSocketAddress target, String method,
+            Consumer<BencodeWriter> args) {
+        if (closed)
+            return CompletableFuture.failedFuture(new IOException("DHT closed"));
+        Query q = new Query(target);
+        int tid;
+        do {
+            tid = nextTransaction.getAndIncrement() & 0xFFFF;
+        } while (pending.putIfAbsent(tid, q) != null);
+
+        ByteBuffer buf = ByteBuffer.allocate(PACKET_SIZE);
+        BencodeWriter w = new BencodeWriter(buf);
+        w.startDict().key("a").startDict().key("id").value(ownId);
+        args.accept(w);
+        w.end()
+                .key("q").value(method)
+                .key("t").value(new byte[] { (byte) (tid >>> 8), (byte) tid })
+                .key("y").value("q")
+                .end();
+        try {
+            // A full send buffer drops the packet; the timeout covers that
+            channel.send(buf.flip(), target);
+        } catch (IOException e) {
+            pending.remove(tid);
+            q.reply.completeExceptionally(e);
+        }
+        return q.reply;
+    }
+
+    private void dispatch(InetSocketAddress from, byte[] packet) {
+        if (packet.length == 0)
+            return;
+        if (packet[0] != 'd') {
+            // Every KRPC message is a dictionary; anything else belongs to someone sharing the port
+            BiConsumer<InetSocketAddress, byte[]> handler = foreignHandler;
+            if (handler != null)
+                handler.accept(from, packet);
+            return;
+        }
+        BencodeParser.Value msg;
+        try {
+            msg = BencodeParser.parse(packet);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (!msg.isDictionary())
+            return;
+        String type = msg.getString("y", "");
+        if (type.equals("q"))
+            handleQuery(from, msg);
+        else if (type.equals("r") || type.equals("e"))
+            handleReply(from, msg, type.equals("e"));
+    }
+
+    private void handleReply(InetSocketAddress from, BencodeParser.Value msg, boolean isError) {
+        BencodeParser.Value t = msg.get("t");
+        if (t == null || !t.isString() || t.asBuffer().remaining() != 2)
+            return;
+        ByteBuffer tb = t.asBuffer();
+        int tid = ((tb.get(0) & 0xff) << 8) | (tb.get(1) & 0xff);
+        Query q = pending.get(tid);
+        if (q == null || !q.target.equals(from))
+            return; // late duplicate, or someone spoofing
+        pending.remove(tid);
+
+        if (isError) {
+            // e: [code, message]
+            BencodeParser.Value e = msg.get("e");
+            List<BencodeParser.Value> parts = e != null && e.isList() ? e.list() : List.of();
+            long code = !parts.isEmpty() && parts.get(0).isInteger() ? parts.get(0).asLong() : 0;
+            String message = parts.size() > 1 && parts.get(1).isString() ? parts.get(1).asString() : "";
+            q.reply.completeExceptionally(new IOException("DHT error " + code + " " + message));
+            return;
+        }
+        BencodeParser.Value r = msg.get("r");
+        byte[] id = r != null ? nodeId(r.get("id")) : null;
+        if (id == null) {
+            q.reply.completeExceptionally(new IOException("malformed DHT reply"));
+            return;
+        }
+        nodeSeen(id, from);
+        q.reply.complete(r);
+    }
+
+    /** Answer ping, find_node, get_peers and announce_peer. */
+    private void handleQuery(InetSocketAddress from, BencodeParser.Value msg) {
+        BencodeParser.Value t = msg.get("t");
+        BencodeParser.Value a = msg.get("a");
+        String method = msg.getString("q", "");
+        if (t == null || !t.isString() || !(from.getAddress() instanceof Inet4Address))
+            return;
+        byte[] senderId = a != null ? nodeId(a.get("id")) : null;
+        if (senderId == null) {
+            sendError(from, t, 203, "Protocol Error");
+            return;
+        }
+        // Read-only nodes (BEP 43) can't be queried back, so they stay out of the table
+        if (a.getLong("ro", 0) != 1)
+            nodeSeen(senderId, from);
+
+        ByteBuffer buf = ByteBuffer.allocate(PACKET_SIZE);
+        BencodeWriter w = new BencodeWriter(buf);
+        switch (method) {
+            case "ping":
+                w.startDict().key("r").startDict().key("id").value(ownId);
+                break;
+            case "find_node": {
+                byte[] target = nodeId(a.get("target"));
+                if (target == null) {
+                    sendError(from, t, 203, "Protocol Error");
+                    return;
+                }
+                w.startDict().key("r").startDict().key("id").value(ownId)
+                        .key("nodes").value(compactNodes(closest(target, K)));
+                break;
+            }
+            case "get_peers": {
+                byte[] infoHash = nodeId(a.get("info_hash"));
+                if (infoHash == null) {
+                    sendError(from, t, 203, "Protocol Error");
+                    return;
+                }
+                Map<Long, Long> peers = announced.get(ByteBuffer.wrap(infoHash));
+                w.startDict().key("r").startDict().key("id").value(ownId);
+                if (peers == null || peers.isEmpty())
+                    w.key("nodes").value(compactNodes(closest(infoHash, K)));
+                w.key("token").value(token(from, tokenSecret));
+                if (peers != null && !peers.isEmpty()) {
+                    w.key("values").startList();
+                    byte[] compact = new byte[6];
+                    int n = 0;
+                    for (long key : peers.keySet()) {
+                        if (n++ == MAX_VALUES_PER_REPLY)
+                            break;
+                        PeerExchange.putCompact(compact, 0, key);
+                        w.value(compact);
+                    }
+                    w.end();
+                }
+                break;
+            }
+            case "announce_peer": {
+                byte[] infoHash = nodeId(a.get("info_hash"));
+                BencodeParser.Value token = a.get("token");
+                if (infoHash == null || token == null || !token.isString() || !validToken(from, token.asBytes())) {
+                    sendError(from, t, 203, "Bad token");
+                    return;
+                }
+                int port = a.getLong("implied_port", 0) == 1 ? from.getPort() : (int) a.getLong("port", 0);
+                if (port <= 0 || port > 65535) {
+                    sendError(from, t, 203, "Protocol Error");
+                    return;
+                }
+                storePeer(infoHash, from, port);
+                w.startDict().key("r").startDict().key("id").value(ownId);
+                break;
+            }
+            default:
+                sendError(from, t, 204, "Method Unknown");
+                return;
+        }
+        w.end().key("t").value(t.asBuffer()).key("y").value("r").end();
+        send(buf.flip(), from);
+    }
+
+    private void sendError(InetSocketAddress to, BencodeParser.Value t, int code, String message) {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        new BencodeWriter(buf).startDict()
+                .key("e").startList().value(code).value(message).end()
+                .key("t").value(t.asBuffer())
+                .key("y").value("e")
+                .end();
+        send(buf.flip(), to);
+    }
+
+    private void send(ByteBuffer packet, InetSocketAddress to) {
+        try {
+            channel.send(packet, to);
+        } catch (IOException e) {
+            // Answers are best effort; the asker will time out and move on
+        }
+    }
+
+    // =====================================================================
+    // TOKENS + ANNOUNCED PEERS (selector thread)
+    // =====================================================================
+
+    /** Token tying an announce to the address that asked get_peers: SHA-1(secret + IP), cut to 8 bytes. */
+    private static byte[] token(InetSocketAddress who, byte[] secret) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(secret);
+            sha1.update(who.getAddress().getAddress());
+            return Arrays.copyOf(sha1.digest(), 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Tokens stay good for one rotation after the one they were handed out in. */
+    private boolean validToken(InetSocketAddress who, byte[] token) {
+        return Arrays.equals(token, token(who, tokenSecret)) || Arrays.equals(token, token(who, previousTokenSecret));
+    }
+
+    private void storePeer(byte[] infoHash, InetSocketAddress from, int port) {
+        byte[] compact = Arrays.copyOf(from.getAddress().getAddress(), 6);
+        compact[4] = (byte) (port >>> 8);
+        compact[5] = (byte) port;
+        ByteBuffer key = ByteBuffer.wrap(infoHash);
+        Map<Long, Long> peers = announced.get(key);
+        if (peers == null) {
+            if (announced.size() >= MAX_STORED_TORRENTS)
+                return;
+            peers = new LinkedHashMap<>();
+            announced.put(key, peers);
+        }
+        long peer = PeerTable.pack(compact, 0);
+        peers.remove(peer); // re-inserted last, so the oldest announce goes first when full
+        if (peers.size() >= MAX_STORED_PEERS)
+            peers.remove(peers.keySet().iterator().next());
+        peers.put(peer, System.currentTimeMillis() + PEER_TTL_MS);
+    }
+
+    // =====================================================================
+    // SELECTOR THREAD
+    // =====================================================================
+
+    private void selectLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        while (!closed) {
+            try {
+                selector.select(500);
+                selector.selectedKeys().clear();
+                SocketAddress from;
+                while ((from = channel.receive(buf.clear())) != null) {
+                    buf.flip();
+                    // Copied out: replies are parsed as views and handed to other threads
+                    byte[] packet = new byte[buf.remaining()];
+                    buf.get(packet);
+                    dispatch((InetSocketAddress) from, packet);
+                }
+                maintain();
+            } catch (Exception e) {
+                if (!closed)
+                    System.err.println("DHT socket error: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Expire queries, rotate token secrets, forget stale peers, refresh and save the table. */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, Query> e : pending.entrySet()) {
+            Query q = e.getValue();
+            if (now >= q.deadline && pending.remove(e.getKey(), q))
+                q.reply.completeExceptionally(new IOException("timed out"));
+        }
+        if (now - lastRotateAt >= TOKEN_ROTATE_MS) {
+            lastRotateAt = now;
+            previousTokenSecret = tokenSecret;
+            tokenSecret = new byte[8];
+            random.nextBytes(tokenSecret);
+            for (Iterator<Map<Long, Long>> it = announced.values().iterator(); it.hasNext();) {
+                Map<Long, Long> peers = it.next();
+                peers.values().removeIf(expiresAt -> expiresAt <= now);
+                if (peers.isEmpty())
+                    it.remove();
+            }
+        }
+        if (now - lastRefreshAt >= REFRESH_INTERVAL_MS && ready.isDone()) {
+            lastRefreshAt = now;
+            refresh();
+        }
+        if (now - lastSaveAt >= SAVE_INTERVAL_MS) {
+            lastSaveAt = now;
+            saveState();
+        }
+    }
+
+    // =====================================================================
+    // STATE FILE
+    // =====================================================================
+
+    /** Read our ID and the saved nodes; a missing or corrupt file starts a fresh identity. */
+    private List<Node> loadState() {
+        List<Node> nodes = new ArrayList<>();
+        random.nextBytes(ownId);
+        if (stateFile == null || !Files.isRegularFile(stateFile))
+            return nodes;
+        try {
+            BencodeParser.Value state = BencodeParser.parse(Files.readAllBytes(stateFile));
+            byte[] id = nodeId(state.get("id"));
+            BencodeParser.Value saved = state.get("nodes");
+            if (id == null || saved == null || !saved.isString())
+                throw new IllegalArgumentException("missing fields");
+            System.arraycopy(id, 0, ownId, 0, ID_LENGTH);
+            ByteBuffer data = saved.asBuffer();
+            byte[] entry = new byte[NODE_INFO_LENGTH];
+            while (data.remaining() >= NODE_INFO_LENGTH) {
+                data.get(entry);
+                InetSocketAddress address = compactAddress(entry, ID_LENGTH);
+                if (address != null)
+                    nodes.add(new Node(Arrays.copyOf(entry, ID_LENGTH), address));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Discarding DHT state " + stateFile + ": " + e.getMessage());
+        }
+        return nodes;
+    }
+
+    private void saveState() {
+        if (stateFile == null)
+            return;
+        List<Node> nodes = new ArrayList<>();
+        synchronized (buckets) {
+            for (List<Node> bucket : buckets) {
+                for (Node n : bucket) {
+                    if (n.failures == 0 && nodes.size() < MAX_SAVED_NODES)
+                        nodes.add(n);
+                }
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64 + MAX_SAVED_NODES * NODE_INFO_LENGTH);
+        new BencodeWriter(buf).startDict()
+                .key("id").value(ownId)
+                .key("nodes").value(compactNodes(nodes))
+                .end();
+        try {
+            Path dir = stateFile.toAbsolutePath().getParent();
+            Path tmp = Files.createTempFile(dir, "dht", ".tmp");
+            Files.write(tmp, Arrays.copyOf(buf.array(), buf.position()));
+            Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save DHT state: " + e.getMessage());
+        }
+    }
+
+    // =====================================================================
+    // COMPACT ENCODING
+    // =====================================================================
+
+    /** A 20-byte ID from a bencoded string, or null if it isn't one. */
+    private static byte[] nodeId(BencodeParser.Value v) {
+        if (v == null || !v.isString() || v.asBuffer().remaining() != ID_LENGTH)
+            return null;
+        return v.asBytes();
+    }
+
+    /** 26 bytes per node: ID, IPv4 address, port. */
+    private static byte[] compactNodes(List<Node> nodes) {
+        byte[] out = new byte[nodes.size() * NODE_INFO_LENGTH];
+        int n = 0;
+        for (Node node : nodes) {
+            if (!(node.address.getAddress() instanceof Inet4Address))
+                continue;
+            System.arraycopy(node.id, 0, out, n, ID_LENGTH);
+            System.arraycopy(node.address.getAddress().getAddress(), 0, out, n + ID_LENGTH, 4);
+            out[n + 24] = (byte) (node.address.getPort() >>> 8);
+            out[n + 25] = (byte) node.address.getPort();
+            n += NODE_INFO_LENGTH;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /** Address from 6 bytes of compact IPv4 + port; null for bogus entries. */
+    private static InetSocketAddress compactAddress(byte[] data, int offset) {
+        TrackerClient.Peer peer = TrackerClient.Peer.fromCompact(data, offset);
+        return peer != null ? new InetSocketAddress(peer.ip, peer.port) : null;
+    }
+}
@@ -0,0 +1,88 @@
+package com.media.center.service.torrent;
+
+/**
+ * LEDBAT congestion window for one uTP connection (BEP 29, RFC 6817).
+ *
+ * The window grows while the one-way delay our packets see stays below a
+ * 100 ms target above the lowest delay observed (the "base delay"), and
+ * shrinks as soon as queueing pushes it over. A full router buffer shows up
+ * as delay long before it shows up as loss, so bulk transfers yield to
+ * interactive traffic on the same link. Losses halve the window and a
+ * timeout collapses it to one packet, as in TCP.
+ *
+ * Not thread-safe; the owning connection serialises calls.
+ */
+final class LedbatController {
+
+    static final long TARGET_DELAY_MICROS = 100_000;
+    // Most the window can grow per round trip when there is no queueing at all
+    static final int MAX_CWND_INCREASE_BYTES_PER_RTT = 3000;
+    static final int MIN_WINDOW = UtpSocket.MAX_PACKET_SIZE;
+    static final int INITIAL_WINDOW = 3 * UtpSocket.MAX_PACKET_SIZE;
+    static final int MAX_WINDOW = 1024 * 1024;
+    // Base delay is the minimum over the last two of these periods, so a
+    // route change (or clock drift) is forgotten within a couple of minutes
+    private static final long BASE_DELAY_PERIOD_MS = 60_000;
+
+    private double window = INITIAL_WINDOW;
+    private final long[] baseDelayHistory = { Long.MAX_VALUE, Long.MAX_VALUE };
+    private int historySlot = 0;
+    private long periodStartedAt = 0;
+    private long queueingDelay = 0;
+
+    /** Congestion window in bytes. */
+    int window() {
+        return (int) window;
+    }
+
+    /** Latest estimate of the queueing delay our packets see, in microseconds. */
+    long queueingDelayMicros() {
+        return queueingDelay;
+    }
+
+    /**
+     * Packets were acknowledged.
+     *
+     * @param bytesAcked    payload bytes newly acknowledged
+     * @param delayMicros   one-way delay the remote measured for our packets
+     *                      (its timestamp difference), 0 if it didn't say
+     * @param flightBefore  bytes in flight before this ack
+     */
+    void onAck(int bytesAcked, long delayMicros, int flightBefore, long nowMs) {
+        if (delayMicros > 0) {
+            addDelaySample(delayMicros, nowMs);
+            queueingDelay = delayMicros - baseDelay();
+        }
+        double offTarget = (TARGET_DELAY_MICROS - queueingDelay) / (double) TARGET_DELAY_MICROS;
+        double windowFactor = Math.min(bytesAcked, window) / Math.max(window, bytesAcked);
+        double gain = MAX_CWND_INCREASE_BYTES_PER_RTT * offTarget * windowFactor;
+        // An application-limited sender proves nothing about spare capacity
+        if (gain > 0 && flightBefore + UtpSocket.MAX_PAYLOAD < window)
+            gain = 0;
+        window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window + gain));
+    }
+
+    /** A packet was lost (duplicate or selective acks): halve the window. */
+    void onLoss() {
+        window = Math.max(MIN_WINDOW, window / 2);
+    }
+
+    /** Nothing was acknowledged for a whole timeout: start again from one packet. */
+    void onTimeout() {
+        window = MIN_WINDOW;
+    }
+
+    private void addDelaySample(long delayMicros, long nowMs) {
+        if (nowMs - periodStartedAt >= BASE_DELAY_PERIOD_MS) {
+            periodStartedAt = nowMs;
+            historySlot ^= 1;
+            baseDelayHistory[historySlot] = delayMicros;
+        } else if (delayMicros < baseDelayHistory[historySlot]) {
+            baseDelayHistory[historySlot] = delayMicros;
+        }
+    }
+
+    private long baseDelay() {
+        return Math.min(baseDelayHistory[0], baseDelayHistory[1]);
+    }
+}
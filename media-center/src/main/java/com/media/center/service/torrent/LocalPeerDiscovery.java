@@ -0,0 +1,216 @@
+package com.media.center.service.torrent;
+
+import com.media.center.service.Multicast;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Local Service Discovery (BEP 14): finds peers for the same torrents on
+ * the LAN by multicast, so machines next to each other trade directly
+ * instead of through the router's public side.
+ * https://www.bittorrent.org/beps/bep_0014.html
+ *
+ * One socket joined to 239.192.152.143:6771 serves every torrent. A
+ * registered torrent is announced at once and then every five minutes, never
+ * more than once a minute, with several info-hashes sharing a message.
+ * Announces from other hosts for a registered torrent become peers at the
+ * sender's address. Our own announces loop back to us and are recognised by
+ * a per-instance cookie.
+ */
+class LocalPeerDiscovery {
+
+    private static final String GROUP = "239.192.152.143";
+    private static final int GROUP_PORT = 6771;
+    private static final long ANNOUNCE_INTERVAL_MS = 5 * 60_000;
+    private static final long MIN_ANNOUNCE_INTERVAL_MS = 60_000;
+    // Keeps a message well under one unfragmented datagram
+    private static final int MAX_HASHES_PER_MESSAGE = 20;
+
+    /** One torrent we announce and listen for. */
+    private static class Registration {
+        final String hexHash;
+        final int port;
+        final Consumer<TrackerClient.Peer> listener;
+        long lastAnnounceAt = 0;
+        long nextAnnounceAt = 0;
+
+        Registration(String hexHash, int port, Consumer<TrackerClient.Peer> listener) {
+            this.hexHash = hexHash;
+            this.port = port;
+            this.listener = listener;
+        }
+    }
+
+    private static LocalPeerDiscovery shared;
+    private static boolean sharedFailed = false;
+
+    // Keyed by lower-case hex info-hash
+    private final Map<String, Registration> torrents = new ConcurrentHashMap<>();
+    private final String cookie = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final InetSocketAddress group;
+    private final MulticastSocket socket;
+    private volatile boolean closed = false;
+
+    /** Join the LSD group on the default multicast interface and start listening. */
+    LocalPeerDiscovery() throws IOException {
+        group = new InetSocketAddress(InetAddress.getByName(GROUP), GROUP_PORT);
+        socket = Multicast.join(group, null, GROUP_PORT);
+        socket.setTimeToLive(1); // BEP 14: link-local only
+        socket.setSoTimeout(1000);
+        Thread thread = new Thread(this::receiveLoop, "LocalPeerDiscovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** The process-wide instance, started on first use; null if multicast is unavailable. */
+    static synchronized LocalPeerDiscovery shared() {
+        if (shared == null && !sharedFailed) {
+            try {
+                shared = new LocalPeerDiscovery();
+            } catch (IOException e) {
+                System.err.println("Local peer discovery disabled: " + e.getMessage());
+                sharedFailed = true;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Announce a torrent on the LAN (we accept peers on {@code port}) and
+     * pass every LAN peer announcing it to {@code listener}, on the
+     * discovery thread.
+     */
+    void register(byte[] infoHash, int port, Consumer<TrackerClient.Peer> listener) {
+        String hex = toHex(infoHash);
+        torrents.put(hex, new Registration(hex, port, listener));
+        // The receive loop wakes within a second and sends the first announce
+    }
+
+    void unregister(byte[] infoHash) {
+        torrents.remove(toHex(infoHash));
+    }
+
+    void close() {
+        closed = true;
+        Multicast.leave(socket, group, null);
+        socket.close();
+    }
+
+    // =====================================================================
+    // RECEIVE THREAD
+    // =====================================================================
+
+    private void receiveLoop() {
+        byte[] buf = new byte[2048];
+        while (!closed) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                socket.receive(packet);
+                handle(packet);
+            } catch (SocketTimeoutException e) {
+                // Fall through to the announce schedule
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Local peer discovery error: " + e.getMessage());
+            }
+            if (!closed)
+                announceDue();
+        }
+    }
+
+    /** Parse one BT-SEARCH message and hand its sender to the torrents it names. */
+    private void handle(DatagramPacket packet) {
+        if (!(packet.getAddress() instanceof Inet4Address))
+            return;
+        String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.US_ASCII);
+        String[] lines = message.split("\r\n");
+        if (lines.length == 0 || !lines[0].startsWith("BT-SEARCH * HTTP/1.1"))
+            return;
+
+        int port = -1;
+        List<String> hashes = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("cookie") && value.equals(cookie))
+                return; // our own announce
+            if (name.equalsIgnoreCase("Port")) {
+                try {
+                    port = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+            } else if (name.equalsIgnoreCase("Infohash") && value.length() == 40) {
+                hashes.add(value.toLowerCase());
+            }
+        }
+        if (port <= 0 || port >= 65535)
+            return;
+
+        TrackerClient.Peer peer = new TrackerClient.Peer(packet.getAddress().getHostAddress(), port);
+        for (String hash : hashes) {
+            Registration r = torrents.get(hash);
+            if (r != null)
+                r.listener.accept(peer);
+        }
+    }
+
+    /** Send announces for torrents whose turn has come, batched by port. */
+    private void announceDue() {
+        long now = System.currentTimeMillis();
+        Map<Integer, List<Registration>> byPort = new HashMap<>();
+        for (Registration r : torrents.values()) {
+            if (now >= r.nextAnnounceAt && now - r.lastAnnounceAt >= MIN_ANNOUNCE_INTERVAL_MS)
+                byPort.computeIfAbsent(r.port, p -> new ArrayList<>()).add(r);
+        }
+        for (Map.Entry<Integer, List<Registration>> e : byPort.entrySet()) {
+            List<Registration> due = e.getValue();
+            for (int from = 0; from < due.size(); from += MAX_HASHES_PER_MESSAGE) {
+                List<Registration> batch = due.subList(from, Math.min(due.size(), from + MAX_HASHES_PER_MESSAGE));
+                try {
+                    byte[] data = announceMessage(e.getKey(), batch).getBytes(StandardCharsets.US_ASCII);
+                    socket.send(new DatagramPacket(data, data.length, group));
+                } catch (IOException ex) {
+                    System.err.println("Local peer discovery announce failed: " + ex.getMessage());
+                }
+                for (Registration r : batch) {
+                    r.lastAnnounceAt = now;
+                    r.nextAnnounceAt = now + ANNOUNCE_INTERVAL_MS;
+                }
+            }
+        }
+    }
+
+    private String announceMessage(int port, List<Registration> batch) {
+        StringBuilder sb = new StringBuilder("BT-SEARCH * HTTP/1.1\r\n")
+                .append("Host: ").append(GROUP).append(':').append(GROUP_PORT).append("\r\n")
+                .append("Port: ").append(port).append("\r\n");
+        for (Registration r : batch)
+            sb.append("Infohash: ").append(r.hexHash).append("\r\n");
+        return sb.append("cookie: ").append(cookie).append("\r\n\r\n\r\n").toString();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
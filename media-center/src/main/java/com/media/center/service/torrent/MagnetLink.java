@@ -4,6 +4,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,7 +14,9 @@ public class MagnetLink {
     private String xt; // Exact Topic (URN usually containing hash)
     private String dn; // Display Name
     private final List<String> tr = new ArrayList<>(); // Trackers
+    private final List<String> ws = new ArrayList<>(); // Web seeds (BEP 19)
     private byte[] infoHash;
+    private byte[] infoHashV2; // Full SHA-256 info-hash of a v2 torrent (BEP 52)
 
     public MagnetLink(String magnetLink) {
         this.rawLink = magnetLink;
@@ -48,13 +51,20 @@ public class MagnetLink {
                 this.dn = value;
             } else if ("tr".equals(key)) {
                 this.tr.add(value);
+            } else if ("ws".equals(key)) {
+                this.ws.add(value);
             }
         }
     }
 
     private void parseInfoHash(String urn) {
-        // expect urn:btih:<hash>
-        if (urn.startsWith("urn:btih:")) {
+        // expect urn:btih:<hash>, or urn:btmh:<multihash> for v2 torrents
+        if (urn.startsWith("urn:btmh:")) {
+            // Multihash: 0x12 (SHA-256), 0x20 (32 bytes), then the digest
+            String hash = urn.substring(9);
+            if (hash.length() == 68 && hash.regionMatches(true, 0, "1220", 0, 4))
+                this.infoHashV2 = hexStringToByteArray(hash.substring(4));
+        } else if (urn.startsWith("urn:btih:")) {
             String hash = urn.substring(9);
             if (hash.length() == 40) {
                 this.infoHash = hexStringToByteArray(hash);
@@ -87,15 +97,31 @@ public class MagnetLink {
         return dn;
     }
 
+    /**
+     * Info-hash as used on the wire: the v1 hash, or for a v2-only magnet the
+     * SHA-256 info-hash truncated to 20 bytes. Hybrid magnets carry both.
+     */
     public byte[] getInfoHash() {
+        if (infoHash == null && infoHashV2 != null)
+            return Arrays.copyOf(infoHashV2, 20);
         return infoHash;
     }
 
+    /** Full SHA-256 info-hash, or null if the magnet has no btmh topic. */
+    public byte[] getInfoHashV2() {
+        return infoHashV2;
+    }
+
+    /** Hex of {@link #getInfoHash()}, so v2-only magnets get a key too. */
     public String getHexInfoHash() {
-        return byteArrayToHexString(infoHash);
+        return byteArrayToHexString(getInfoHash());
     }
 
     public List<String> getTrackers() {
         return tr;
     }
+
+    public List<String> getWebSeeds() {
+        return ws;
+    }
 }
@@ -0,0 +1,321 @@
+package com.media.center.service.torrent;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The BitTorrent v2 side of a torrent (BEP 52): the file tree, each file's
+ * merkle root, and the piece layers learned from peers.
+ * https://www.bittorrent.org/beps/bep_0052.html
+ *
+ * Every file has its own SHA-256 merkle tree over 16 KiB blocks, padded
+ * with zero hashes to a power of two. The info dict holds only the roots
+ * ("pieces root"). The hashes of the layer where one node covers one piece
+ * (the piece layer) come from peers with hash requests, checked against the
+ * root before they are kept. With a piece's hash known, the block hashes
+ * under it can be asked for and checked the same way, and then every block
+ * can be verified alone as it arrives.
+ *
+ * Files start on a piece boundary, so a piece never spans two files; piece
+ * indexes run through the files in tree order, as in a hybrid torrent's v1
+ * layout with its padding files. Thread-safe.
+ */
+final class MerkleHashes {
+
+    static final int BLOCK_SIZE = 16 * 1024;
+    static final int HASH_SIZE = 32;
+    // Most hashes one request may ask for
+    static final int MAX_REQUEST_HASHES = 512;
+
+    /** One file of the v2 file tree. */
+    static final class FileNode {
+        final String path; // segments joined with the platform separator
+        final long length;
+        final byte[] piecesRoot; // null for empty files
+        final long offset; // piece-aligned position within the torrent
+        final int firstPiece;
+        final int numPieces;
+        // Verified piece layer, 32 bytes per piece, filled in as peers send
+        // parts of it; pieceKnown marks which hashes are there
+        private byte[] pieceLayer;
+        private final BitSet pieceKnown = new BitSet();
+
+        FileNode(String path, long length, byte[] piecesRoot, long offset, int firstPiece, int numPieces) {
+            this.path = path;
+            this.length = length;
+            this.piecesRoot = piecesRoot;
+            this.offset = offset;
+            this.firstPiece = firstPiece;
+            this.numPieces = numPieces;
+        }
+    }
+
+    /** Parameters of one hash request message. */
+    static final class HashRequest {
+        final byte[] piecesRoot;
+        final int baseLayer;
+        final int index;
+        final int length;
+        final int proofLayers;
+
+        HashRequest(byte[] piecesRoot, int baseLayer, int index, int length, int proofLayers) {
+            this.piecesRoot = piecesRoot;
+            this.baseLayer = baseLayer;
+            this.index = index;
+            this.length = length;
+            this.proofLayers = proofLayers;
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int pieceLength;
+    private final int blocksPerPiece;
+    // Layer of the tree where one node covers one piece (0 = blocks)
+    private final int pieceLayerBase;
+    private final List<FileNode> files;
+    private final FileNode[] fileOfPiece;
+    private final Map<ByteBuffer, FileNode> byRoot = new HashMap<>();
+
+    private MerkleHashes(int pieceLength, List<FileNode> files, int numPieces) {
+        this.pieceLength = pieceLength;
+        this.blocksPerPiece = pieceLength / BLOCK_SIZE;
+        this.pieceLayerBase = Integer.numberOfTrailingZeros(blocksPerPiece);
+        this.files = files;
+        this.fileOfPiece = new FileNode[numPieces];
+        for (FileNode f : files) {
+            if (f.piecesRoot != null)
+                byRoot.put(ByteBuffer.wrap(f.piecesRoot), f);
+            Arrays.fill(fileOfPiece, f.firstPiece, f.firstPiece + f.numPieces, f);
+        }
+    }
+
+    /**
+     * The v2 view of an info dict, or null if it has none ("meta version" 2
+     * with a "file tree"). Throws IllegalArgumentException if the tree is
+     * malformed.
+     */
+    static MerkleHashes parse(BencodeParser.Value info) {
+        if (info.getLong("meta version", 1) != 2 || !info.containsKey("file tree"))
+            return null;
+        long pieceLength = info.getLong("piece length", -1);
+        // A power of two, at least one block
+        if (pieceLength < BLOCK_SIZE || pieceLength > (1 << 30) || Long.bitCount(pieceLength) != 1)
+            throw new IllegalArgumentException("bad v2 piece length " + pieceLength);
+
+        List<FileNode> files = new ArrayList<>();
+        long[] position = { 0, 0 }; // offset, next piece
+        collect(info.get("file tree"), "", (int) pieceLength, files, position);
+        if (files.isEmpty())
+            throw new IllegalArgumentException("empty file tree");
+        return new MerkleHashes((int) pieceLength, files, (int) position[1]);
+    }
+
+    /** Walk the tree in key order; a file is a dict whose "" key holds its length and root. */
+    private static void collect(BencodeParser.Value dir, String prefix, int pieceLength, List<FileNode> out,
+            long[] position) {
+        if (dir == null || !dir.isDictionary())
+            throw new IllegalArgumentException("file tree node is not a dictionary");
+        for (Map.Entry<String, BencodeParser.Value> e : dir.entries()) {
+            String name = e.getKey();
+            BencodeParser.Value node = e.getValue();
+            if (name.isEmpty()) {
+                if (!node.isDictionary())
+                    throw new IllegalArgumentException("bad file entry in " + prefix);
+                long length = node.getLong("length", -1);
+                if (length < 0)
+                    throw new IllegalArgumentException("no length for " + prefix);
+                byte[] root = null;
+                BencodeParser.Value r = node.get("pieces root");
+                if (length > 0) {
+                    if (r == null || !r.isString() || r.asBuffer().remaining() != HASH_SIZE)
+                        throw new IllegalArgumentException("no pieces root for " + prefix);
+                    root = new byte[HASH_SIZE];
+                    r.asBuffer().get(root);
+                }
+                int numPieces = (int) ((length + pieceLength - 1) / pieceLength);
+                out.add(new FileNode(prefix, length, root, position[0], (int) position[1], numPieces));
+                position[0] += (long) numPieces * pieceLength;
+                position[1] += numPieces;
+            } else {
+                if (name.equals("..") || name.equals(".") || name.contains("/") || name.contains("\\"))
+                    throw new IllegalArgumentException("unsafe path component " + name);
+                collect(node, prefix.isEmpty() ? name : prefix + File.separator + name, pieceLength, out, position);
+            }
+        }
+    }
+
+    List<FileNode> files() {
+        return files;
+    }
+
+    int numPieces() {
+        return fileOfPiece.length;
+    }
+
+    /** Bytes in a piece; the last piece of each file is usually short. */
+    int pieceSize(int piece) {
+        FileNode f = fileOfPiece[piece];
+        long start = (long) (piece - f.firstPiece) * pieceLength;
+        return (int) Math.min(pieceLength, f.length - start);
+    }
+
+    // =====================================================================
+    // PIECE AND BLOCK HASHES
+    // =====================================================================
+
+    /**
+     * Hash a piece must have: its node in the file's piece layer, or the file's
+     * root if the file is a single piece. Null while the piece layer is unknown.
+     */
+    synchronized byte[] pieceHash(int piece) {
+        FileNode f = fileOfPiece[piece];
+        if (f.numPieces == 1)
+            return f.piecesRoot;
+        int i = piece - f.firstPiece;
+        if (!f.pieceKnown.get(i))
+            return null;
+        return Arrays.copyOfRange(f.pieceLayer, i * HASH_SIZE, (i + 1) * HASH_SIZE);
+    }
+
+    /** Number of block hashes under {@link #pieceHash}, padding included. */
+    int leafCount(int piece) {
+        FileNode f = fileOfPiece[piece];
+        if (f.numPieces > 1)
+            return blocksPerPiece;
+        int blocks = (int) ((f.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        return Integer.highestOneBit(Math.max(1, blocks) * 2 - 1);
+    }
+
+    /**
+     * The request that brings {@link #pieceHash} for this piece: the part of
+     * its file's piece layer that contains it, with the proof up to the root.
+     */
+    HashRequest pieceLayerRequest(int piece) {
+        FileNode f = fileOfPiece[piece];
+        int width = Integer.highestOneBit(f.numPieces * 2 - 1);
+        int length = Math.min(width, MAX_REQUEST_HASHES);
+        int index = (piece - f.firstPiece) / length * length;
+        // Counted from the base layer; the responder leaves out what the hashes cover themselves
+        int proofLayers = Integer.numberOfTrailingZeros(width);
+        return new HashRequest(f.piecesRoot, pieceLayerBase, index, length, proofLayers);
+    }
+
+    /** The request for a piece's block hashes, or null if there are too many for one. */
+    HashRequest blockHashesRequest(int piece) {
+        FileNode f = fileOfPiece[piece];
+        int count = leafCount(piece);
+        if (count > MAX_REQUEST_HASHES)
+            return null;
+        return new HashRequest(f.piecesRoot, 0, (piece - f.firstPiece) * blocksPerPiece, count, 0);
+    }
+
+    /**
+     * Take the hashes from a HASHES message. A piece layer part is kept if it
+     * proves out against its file's root. Block hashes for {@code wantPiece}
+     * are returned (32 bytes each) if they add up to its piece hash. Returns
+     * null for anything else or anything that doesn't check out.
+     */
+    byte[] accept(byte[] piecesRoot, int baseLayer, int index, int length, byte[] hashes, int wantPiece) {
+        FileNode f = byRoot.get(ByteBuffer.wrap(piecesRoot));
+        if (f == null || length <= 0 || Integer.bitCount(length) != 1 || index < 0 || index % length != 0
+                || hashes.length % HASH_SIZE != 0 || hashes.length / HASH_SIZE < length)
+            return null;
+        int uncles = hashes.length / HASH_SIZE - length;
+
+        if (baseLayer == pieceLayerBase && f.numPieces > 1) {
+            int width = Integer.highestOneBit(f.numPieces * 2 - 1);
+            if (index >= f.numPieces || Integer.numberOfTrailingZeros(length) + uncles != Integer.numberOfTrailingZeros(width))
+                return null;
+            byte[] node = root(hashes, 0, length);
+            int position = index / length;
+            for (int k = 0; k < uncles; k++) {
+                byte[] uncle = Arrays.copyOfRange(hashes, (length + k) * HASH_SIZE, (length + k + 1) * HASH_SIZE);
+                node = (position & 1) == 0 ? hashPair(node, uncle) : hashPair(uncle, node);
+                position >>= 1;
+            }
+            if (!Arrays.equals(node, f.piecesRoot))
+                return null;
+            synchronized (this) {
+                if (f.pieceLayer == null)
+                    f.pieceLayer = new byte[f.numPieces * HASH_SIZE];
+                int count = Math.min(length, f.numPieces - index);
+                System.arraycopy(hashes, 0, f.pieceLayer, index * HASH_SIZE, count * HASH_SIZE);
+                f.pieceKnown.set(index, index + count);
+            }
+            return null;
+        }
+
+        if (baseLayer == 0 && wantPiece >= 0 && fileOfPiece[wantPiece] == f && uncles == 0
+                && index == (wantPiece - f.firstPiece) * blocksPerPiece && length == leafCount(wantPiece)) {
+            byte[] expected = pieceHash(wantPiece);
+            if (expected != null && Arrays.equals(root(hashes, 0, length), expected))
+                return hashes;
+        }
+        return null;
+    }
+
+    /** SHA-256 of one block (the last block of a file may be short). */
+    static byte[] blockHash(byte[] data, int offset, int length) {
+        MessageDigest sha = SHA256.get();
+        sha.update(data, offset, length);
+        return sha.digest();
+    }
+
+    /** True if block {@code i} of a piece matches the piece's block hashes. */
+    static boolean blockMatches(byte[] leaves, int i, byte[] data, int offset, int length) {
+        byte[] hash = blockHash(data, offset, length);
+        return Arrays.equals(hash, 0, HASH_SIZE, leaves, i * HASH_SIZE, (i + 1) * HASH_SIZE);
+    }
+
+    /** True if a whole piece hashes up to its piece hash; false if that isn't known yet. */
+    boolean verifyPiece(int piece, byte[] data) {
+        byte[] expected = pieceHash(piece);
+        if (expected == null || data.length != pieceSize(piece))
+            return false;
+        int count = leafCount(piece);
+        byte[] leaves = new byte[count * HASH_SIZE];
+        for (int i = 0; i * BLOCK_SIZE < data.length; i++) {
+            int off = i * BLOCK_SIZE;
+            System.arraycopy(blockHash(data, off, Math.min(BLOCK_SIZE, data.length - off)), 0, leaves, i * HASH_SIZE,
+                    HASH_SIZE);
+        }
+        // Blocks past the end of the file stay zero hashes
+        return Arrays.equals(root(leaves, 0, count), expected);
+    }
+
+    /** Root of {@code count} (a power of two) consecutive hashes. */
+    private static byte[] root(byte[] hashes, int first, int count) {
+        byte[] layer = Arrays.copyOfRange(hashes, first * HASH_SIZE, (first + count) * HASH_SIZE);
+        for (int n = count; n > 1; n /= 2) {
+            MessageDigest sha = SHA256.get();
+            for (int i = 0; i < n / 2; i++) {
+                sha.update(layer, 2 * i * HASH_SIZE, 2 * HASH_SIZE);
+                byte[] parent = sha.digest();
+                System.arraycopy(parent, 0, layer, i * HASH_SIZE, HASH_SIZE);
+            }
+        }
+        return Arrays.copyOf(layer, HASH_SIZE);
+    }
+
+    private static byte[] hashPair(byte[] left, byte[] right) {
+        MessageDigest sha = SHA256.get();
+        sha.update(left);
+        sha.update(right);
+        return sha.digest();
+    }
+}
@@ -0,0 +1,92 @@
+package com.media.center.service.torrent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Content-addressed on-disk cache of raw info dictionaries.
+ *
+ * Files are named by the hex info-hash and only ever hold bytes that hash to
+ * it, both when stored and when read back, so a cached entry
+ * can be trusted exactly like metadata fetched from the swarm. This lets the
+ * file-selection preview, the download that follows it, and any later resume
+ * share a single metadata fetch.
+ */
+class MetadataCache {
+
+    private static final Path CACHE_DIR = Paths.get("metadata_cache");
+
+    private MetadataCache() {
+    }
+
+    /** Cached info dict for this hash, or null if missing or corrupt. */
+    static byte[] get(byte[] infoHash) {
+        Path file = fileFor(infoHash);
+        if (!Files.isRegularFile(file))
+            return null;
+        try {
+            byte[] data = Files.readAllBytes(file);
+            if (matches(infoHash, data))
+                return data;
+            System.err.println("Discarding corrupt metadata cache entry " + file.getFileName());
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Metadata cache read error: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Store an info dict if it hashes to infoHash.
+     *
+     * @return false if the data does not match the hash (bad peer); such data
+     *         must not be used
+     */
+    static boolean put(byte[] infoHash, byte[] data) {
+        if (!matches(infoHash, data))
+            return false;
+        Path file = fileFor(infoHash);
+        if (Files.isRegularFile(file))
+            return true;
+        try {
+            Files.createDirectories(CACHE_DIR);
+            // Write under a temp name first so a crash never leaves a partial entry
+            Path tmp = Files.createTempFile(CACHE_DIR, "meta", ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Metadata cache write error: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * True if data is the info dict identified by infoHash: its SHA-1, or for
+     * v2 torrents (BEP 52) its SHA-256 truncated to 20 bytes as on the wire.
+     */
+    static boolean matches(byte[] infoHash, byte[] data) {
+        if (infoHash == null || data == null)
+            return false;
+        try {
+            if (Arrays.equals(MessageDigest.getInstance("SHA-1").digest(data), infoHash))
+                return true;
+            byte[] v2 = MessageDigest.getInstance("SHA-256").digest(data);
+            return Arrays.equals(v2, 0, infoHash.length, infoHash, 0, infoHash.length);
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    private static Path fileFor(byte[] infoHash) {
+        StringBuilder sb = new StringBuilder(40);
+        for (byte b : infoHash)
+            sb.append(String.format("%02x", b));
+        return CACHE_DIR.resolve(sb.append(".info").toString());
+    }
+}
@@ -0,0 +1,244 @@
+package com.media.center.service.torrent;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assembles one info dict from many peers at once (BEP 9).
+ *
+ * Every peer connection claims ut_metadata pieces nobody else has asked for
+ * yet, so a large dict arrives from several peers in parallel; pieces that
+ * stall are handed to whoever asks next. The result future completes as soon
+ * as a full dict verifies against the info hash, and all other connections
+ * are closed right away, which also unblocks their pending reads. It
+ * completes with null once every peer has been tried without success.
+ */
+class MetadataSwarm {
+
+    static final int PIECE_SIZE = 16384; // 16 KB per BEP 9
+    private static final int MAX_METADATA_SIZE = 16 * 1024 * 1024;
+    // A claimed piece not delivered within this time may be asked of another peer
+    private static final long STALL_MS = 5000;
+
+    private final byte[] infoHash;
+    private final ExecutorService pool;
+    private final boolean keepWinner;
+    private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    private final Map<PeerConnection, TrackerClient.Peer> open = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingPeers = new AtomicInteger();
+    private volatile boolean noMorePeers = false;
+
+    // Assembly state, guarded by this
+    private int metadataSize = -1;
+    private byte[][] pieces;
+    private long[] requestedAt;
+    private int received = 0;
+    private PeerConnection completedBy;
+    private TrackerClient.Peer completedByPeer;
+    private boolean winnerTaken = false;
+
+    /**
+     * @param keepWinner leave the connection that completed the dict open so
+     *                   it can be taken with {@link #takeWinner()}
+     */
+    MetadataSwarm(byte[] infoHash, ExecutorService pool, boolean keepWinner) {
+        this.infoHash = infoHash;
+        this.pool = pool;
+        this.keepWinner = keepWinner;
+    }
+
+    /** Completes with the verified info dict, or null if no peer could supply it. */
+    CompletableFuture<byte[]> result() {
+        return result;
+    }
+
+    boolean isDone() {
+        return result.isDone();
+    }
+
+    // =====================================================================
+    // PEERS
+    // =====================================================================
+
+    /** Start trying a peer on the pool. */
+    void addPeer(TrackerClient.Peer peer) {
+        if (result.isDone())
+            return;
+        pendingPeers.incrementAndGet();
+        try {
+            pool.execute(() -> tryPeer(peer));
+        } catch (RejectedExecutionException e) {
+            peerDone();
+        }
+    }
+
+    /** No further peers will be added; finish with null once the current ones fail. */
+    void noMorePeers() {
+        noMorePeers = true;
+        if (pendingPeers.get() == 0)
+            result.complete(null);
+    }
+
+    /** Abort: complete with null (if still running) and close every connection. */
+    void cancel() {
+        result.complete(null);
+        closeOthers();
+    }
+
+    /** The connection that delivered the dict, once; null if none or not kept. */
+    synchronized PeerConnection takeWinner() {
+        if (!keepWinner || winnerTaken)
+            return null;
+        winnerTaken = true;
+        return completedBy;
+    }
+
+    synchronized TrackerClient.Peer getWinnerPeer() {
+        return completedByPeer;
+    }
+
+    private void tryPeer(TrackerClient.Peer peer) {
+        PeerConnection conn = null;
+        try {
+            if (result.isDone())
+                return;
+            conn = new PeerConnection(peer.ip, peer.port, infoHash, TrackerClient.getPeerId());
+            open.put(conn, peer);
+            if (result.isDone())
+                return; // completed while we registered; finally closes it
+            conn.connect();
+            conn.fetchMetadata(this);
+        } catch (Exception ignored) {
+            // Dead peer, timeout, or closed because another peer finished first
+        } finally {
+            if (conn != null) {
+                open.remove(conn);
+                boolean isWinner;
+                synchronized (this) {
+                    isWinner = keepWinner && conn == completedBy;
+                }
+                if (!isWinner)
+                    closeQuietly(conn);
+            }
+            peerDone();
+        }
+    }
+
+    private void peerDone() {
+        if (pendingPeers.decrementAndGet() == 0 && noMorePeers)
+            result.complete(null);
+    }
+
+    private void closeOthers() {
+        PeerConnection keep;
+        synchronized (this) {
+            keep = keepWinner ? completedBy : null;
+        }
+        for (PeerConnection c : open.keySet()) {
+            if (c != keep)
+                closeQuietly(c);
+        }
+    }
+
+    private static void closeQuietly(PeerConnection c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // =====================================================================
+    // PIECE ASSEMBLY (called from PeerConnection)
+    // =====================================================================
+
+    /**
+     * Record the size a peer advertised in its extension handshake. The first
+     * plausible size wins; false means this peer disagrees and is useless.
+     */
+    synchronized boolean setSize(int size) {
+        if (metadataSize < 0) {
+            if (size <= 0 || size > MAX_METADATA_SIZE)
+                return false;
+            metadataSize = size;
+            int count = (size + PIECE_SIZE - 1) / PIECE_SIZE;
+            pieces = new byte[count][];
+            requestedAt = new long[count];
+            return true;
+        }
+        return size == metadataSize;
+    }
+
+    /** Next piece this peer should request, or -1 if all are delivered or in flight. */
+    synchronized int claim() {
+        if (pieces == null || result.isDone())
+            return -1;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i] == null && requestedAt[i] == 0) {
+                requestedAt[i] = now;
+                return i;
+            }
+        }
+        // Everything is in flight: take over a piece someone is sitting on
+        for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i] == null && now - requestedAt[i] > STALL_MS) {
+                requestedAt[i] = now;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Give back pieces a peer was asked for but did not deliver. */
+    synchronized void release(Collection<Integer> claimed) {
+        if (pieces == null)
+            return;
+        for (int idx : claimed) {
+            if (idx >= 0 && idx < pieces.length && pieces[idx] == null)
+                requestedAt[idx] = 0;
+        }
+    }
+
+    /**
+     * Store a delivered piece. Returns true if it completed and verified the
+     * dict, i.e. the calling connection is the winner.
+     */
+    boolean onPiece(PeerConnection conn, int idx, byte[] data) {
+        byte[] dict;
+        synchronized (this) {
+            if (pieces == null || result.isDone() || idx < 0 || idx >= pieces.length || pieces[idx] != null)
+                return false;
+            int expected = idx == pieces.length - 1 ? metadataSize - idx * PIECE_SIZE : PIECE_SIZE;
+            if (data.length != expected) {
+                requestedAt[idx] = 0;
+                return false;
+            }
+            pieces[idx] = data;
+            if (++received < pieces.length)
+                return false;
+
+            dict = new byte[metadataSize];
+            for (int i = 0; i < pieces.length; i++)
+                System.arraycopy(pieces[i], 0, dict, i * PIECE_SIZE, pieces[i].length);
+            if (!MetadataCache.matches(infoHash, dict)) {
+                // Some peer sent garbage; we can't tell which, so start over
+                System.err.println("Assembled metadata does not match info hash, refetching");
+                pieces = new byte[pieces.length][];
+                requestedAt = new long[pieces.length];
+                received = 0;
+                return false;
+            }
+            completedBy = conn;
+            completedByPeer = open.get(conn);
+        }
+        result.complete(dict);
+        closeOthers();
+        return true;
+    }
+}
@@ -7,9 +7,13 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class PeerConnection implements AutoCloseable {
 
@@ -28,6 +32,13 @@ public class PeerConnection implements AutoCloseable {
     private Map<Long, Byte> extensionIds = new HashMap<>(); // Extension Name -> ID
     private Integer metadataSize = null;
 
+    // What the remote side told us while we were fetching metadata, so the
+    // connection can be handed to the piece engine without losing it
+    private byte[] remoteReserved = new byte[8];
+    private byte[] remoteBitfield;
+    private final List<Integer> remoteHaves = new ArrayList<>();
+    private boolean remoteUnchoked = false;
+
     public PeerConnection(String peerIp, int peerPort, byte[] infoHash, String peerId) {
         this.peerIp = peerIp;
         this.peerPort = peerPort;
@@ -81,7 +92,7 @@ public class PeerConnection implements AutoCloseable {
             throw new IOException("Invalid protocol name");
         }
 
-        byte[] peerReserved = new byte[8];
+        byte[] peerReserved = remoteReserved;
         in.readFully(peerReserved);
 
         byte[] peerInfoHash = new byte[20];
@@ -99,78 +110,53 @@ public class PeerConnection implements AutoCloseable {
         }
     }
 
-    private void sendExtensionHandshake() throws IOException {
-        // ID 20 (Extended)
-        // Msg ID 00 (Handshake)
-        // Dictionary: { "m": { "ut_metadata": 1 } }
-
-        Map<String, Object> m = new HashMap<>();
-        m.put("ut_metadata", 1);
-
-        Map<String, Object> handshake = new HashMap<>();
-        handshake.put("m", m);
+    // Outgoing extension messages are encoded here, one at a time, with no
+    // per-message allocation
+    private final ByteBuffer extOut = ByteBuffer.allocate(1024);
+    private final BencodeWriter extWriter = new BencodeWriter(extOut);
 
-        String bencoded = mapToBencode(handshake); // Need encoder... simple one for now
-        byte[] data = bencoded.getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * Start an extended message (BEP 10) in {@link #extOut}: length prefix
+     * placeholder, message ID 20, then the extension's ID. Write the bencoded
+     * payload with the returned writer and finish with {@link #writeExtended()}.
+     */
+    private BencodeWriter beginExtended(int extId) {
+        extOut.clear();
+        extOut.putInt(0); // length, patched in writeExtended
+        extOut.put((byte) 20);
+        extOut.put((byte) extId);
+        return extWriter.reset();
+    }
 
-        int len = 2 + data.length; // 1 byte ID + 1 byte MsgID + data
-        out.writeInt(len);
-        out.write(20);
-        out.write(0);
-        out.write(data);
-        out.flush();
+    private void writeExtended() throws IOException {
+        extOut.putInt(0, extOut.position() - 4);
+        out.write(extOut.array(), 0, extOut.position());
     }
 
-    // Very simple Bencode encoder for this specific Map<String, Map<String,
-    // Integer>> case
-    private String mapToBencode(Map<String, Object> map) {
-        StringBuilder sb = new StringBuilder();
-        sb.append('d');
-        // m dictionary
-        if (map.containsKey("m")) {
-            sb.append("1:m");
-            sb.append('d');
-            Map<String, Integer> m = (Map<String, Integer>) map.get("m");
-            if (m.containsKey("ut_metadata")) {
-                sb.append("11:ut_metadatai").append(m.get("ut_metadata")).append('e');
-            }
-            sb.append('e');
-        }
-        // For requestMetadataPieces
-        if (map.containsKey("msg_type")) {
-            sb.append("8:msg_typei").append(map.get("msg_type")).append('e');
-        }
-        if (map.containsKey("piece")) {
-            sb.append("5:piecei").append(map.get("piece")).append('e');
-        }
-        sb.append('e');
-        return sb.toString();
+    private void sendExtensionHandshake() throws IOException {
+        // Msg ID 0 (Handshake): { "m": { "ut_metadata": 1 } }
+        beginExtended(0)
+                .startDict()
+                .key("m").startDict().key("ut_metadata").value(1).end()
+                .end();
+        writeExtended();
+        out.flush();
     }
 
     private int utMetadataId = -1; // The ID peer expects for ut_metadata messages
+    private int remotePexId = 0; // Kept for the piece engine after handover
 
     private void handleExtensionHandshake(byte[] payload) {
         try {
-            Object decoded = BencodeParser.decode(payload);
-            if (decoded instanceof Map) {
-                Map<String, Object> map = (Map<String, Object>) decoded;
-                if (map.containsKey("metadata_size")) {
-                    Object sizeObj = map.get("metadata_size");
-                    if (sizeObj instanceof Long)
-                        this.metadataSize = ((Long) sizeObj).intValue();
-                    else if (sizeObj instanceof Integer)
-                        this.metadataSize = (Integer) sizeObj;
-                }
-                if (map.containsKey("m")) {
-                    Map<String, Object> m = (Map<String, Object>) map.get("m");
-                    if (m != null && m.containsKey("ut_metadata")) {
-                        Object idObj = m.get("ut_metadata");
-                        if (idObj instanceof Long) {
-                            this.utMetadataId = ((Long) idObj).intValue();
-                        } else if (idObj instanceof Integer) {
-                            this.utMetadataId = (Integer) idObj;
-                        }
-                    }
+            BencodeParser.Value map = BencodeParser.parse(payload);
+            if (map.isDictionary()) {
+                long size = map.getLong("metadata_size", -1);
+                if (size >= 0)
+                    this.metadataSize = (int) size;
+                BencodeParser.Value m = map.get("m");
+                if (m != null) {
+                    this.utMetadataId = (int) m.getLong("ut_metadata", utMetadataId);
+                    this.remotePexId = (int) m.getLong("ut_pex", remotePexId);
                 }
             }
         } catch (Exception e) {
@@ -178,74 +164,54 @@ public class PeerConnection implements AutoCloseable {
         }
     }
 
-    private static final int METADATA_PIECE_SIZE = 16384; // 16 KB per BEP 9
-
-    private void requestMetadataPiece(int piece) throws IOException {
-        if (utMetadataId == -1)
-            return;
-
-        Map<String, Object> request = new HashMap<>();
-        request.put("msg_type", 0);
-        request.put("piece", piece);
-
-        String bencoded = mapToBencode(request);
-        byte[] data = bencoded.getBytes(StandardCharsets.ISO_8859_1);
-
-        int len = 2 + data.length;
-        out.writeInt(len);
-        out.write(20); // Extension Protocol ID
-        out.write(utMetadataId); // Peer's ID for ut_metadata
-        out.write(data);
-        out.flush();
+    // ut_metadata requests a single peer may have outstanding at once
+    private static final int MAX_METADATA_REQUESTS = 4;
+
+    private void writeMetadataRequest(int piece) throws IOException {
+        // Peer's ID for ut_metadata; msg_type 0 = request
+        beginExtended(utMetadataId)
+                .startDict()
+                .key("msg_type").value(0)
+                .key("piece").value(piece)
+                .end();
+        writeExtended();
     }
 
-    private void requestAllMetadataPieces() throws IOException {
-        if (utMetadataId == -1 || metadataSize == null || metadataSize == 0)
-            return;
-
-        int numPieces = (metadataSize + METADATA_PIECE_SIZE - 1) / METADATA_PIECE_SIZE;
-        for (int i = 0; i < numPieces; i++) {
-            requestMetadataPiece(i);
+    /** Claim pieces from the swarm until this peer's request pipeline is full. */
+    private void requestMoreMetadata(MetadataSwarm swarm, Set<Integer> outstanding) throws IOException {
+        boolean sent = false;
+        while (outstanding.size() < MAX_METADATA_REQUESTS) {
+            int piece = swarm.claim();
+            if (piece < 0 || !outstanding.add(piece))
+                break;
+            writeMetadataRequest(piece);
+            sent = true;
         }
+        if (sent)
+            out.flush();
     }
 
     // Helper to decode extension message headers properly since they are
     // concatenated with data
     private MetadataPieceResult handleMetadataMessage(byte[] payload) {
-        // Payload is: Bencoded Dictionary + Binary Data
-        // We need to find where the dictionary ends and binary data begins
+        // Payload is: Bencoded Dictionary + Binary Data. The parser reports
+        // where the dictionary ends, which is where the binary data begins.
         try {
             if (payload.length == 0 || payload[0] != 'd')
                 return null;
 
-            // Proper bencode-aware scanner to find end of dictionary
-            int endOfDict = findBencodeEnd(payload, 0);
-
-            if (endOfDict != -1 && endOfDict <= payload.length) {
-                byte[] dictBytes = new byte[endOfDict];
-                System.arraycopy(payload, 0, dictBytes, 0, endOfDict);
-
-                Object decoded = BencodeParser.decode(dictBytes);
-                if (decoded instanceof Map) {
-                    Map<String, Object> map = (Map<String, Object>) decoded;
-                    if (map.containsKey("msg_type")) {
-                        long msgType = (Long) map.get("msg_type");
-                        if (msgType == 1) {
-                            // Data piece! Binary data follows dict
-                            int pieceIndex = 0;
-                            if (map.containsKey("piece")) {
-                                pieceIndex = ((Long) map.get("piece")).intValue();
-                            }
-                            int dataLen = payload.length - endOfDict;
-                            byte[] data = new byte[dataLen];
-                            System.arraycopy(payload, endOfDict, data, 0, dataLen);
-                            return new MetadataPieceResult(pieceIndex, data);
-                        } else if (msgType == 2) {
-                            // Reject - peer doesn't have metadata
-                            return null;
-                        }
-                    }
-                }
+            BencodeParser.Value map = BencodeParser.parsePrefix(payload, 0);
+            long msgType = map.getLong("msg_type", -1);
+            int pieceIndex = (int) map.getLong("piece", 0);
+            if (msgType == 1) {
+                // Data piece! Binary data follows dict
+                int endOfDict = map.end();
+                byte[] data = new byte[payload.length - endOfDict];
+                System.arraycopy(payload, endOfDict, data, 0, data.length);
+                return new MetadataPieceResult(pieceIndex, data);
+            } else if (msgType == 2) {
+                // Reject - peer doesn't have metadata
+                return new MetadataPieceResult(pieceIndex, null);
             }
         } catch (Exception e) {
             // Silently ignore parse errors — try next peer
@@ -253,7 +219,7 @@ public class PeerConnection implements AutoCloseable {
         return null;
     }
 
-    /** Simple holder for piece index + data */
+    /** Simple holder for piece index + data (null data for a reject) */
     private static class MetadataPieceResult {
         final int piece;
         final byte[] data;
@@ -265,145 +231,91 @@ public class PeerConnection implements AutoCloseable {
     }
 
     /**
-     * Scans a bencoded element starting at pos, returns the index AFTER the element
-     * ends.
-     * Returns -1 if malformed.
+     * Fetch ut_metadata pieces for the shared swarm until the dict is complete.
+     * Reads block on the socket (bounded by its read timeout); the swarm closes
+     * this connection as soon as another peer finishes, which ends the loop.
+     *
+     * @return true if this connection delivered the piece that completed the
+     *         verified dict
      */
-    private int findBencodeEnd(byte[] data, int pos) {
-        if (pos >= data.length)
-            return -1;
-        byte b = data[pos];
-
-        if (b == 'd' || b == 'l') {
-            // Dictionary or List: consume 'd'/'l', then elements, then 'e'
-            pos++;
-            while (pos < data.length) {
-                if (data[pos] == 'e') {
-                    return pos + 1; // past the 'e'
-                }
-                if (b == 'd') {
-                    // Key (string)
-                    pos = findBencodeEnd(data, pos);
-                    if (pos == -1)
-                        return -1;
+    boolean fetchMetadata(MetadataSwarm swarm) throws IOException {
+        long deadline = System.currentTimeMillis() + 30000;
+        Set<Integer> outstanding = new HashSet<>();
+
+        try {
+            while (!swarm.isDone() && System.currentTimeMillis() < deadline) {
+                int len = in.readInt();
+                if (len <= 0)
+                    continue; // Keep alive
+
+                byte id = in.readByte();
+                if (id == 20) { // Extended
+                    byte extMsgId = in.readByte();
+                    byte[] payload = new byte[len - 2];
+                    in.readFully(payload);
+
+                    if (extMsgId == 0) { // Handshake
+                        handleExtensionHandshake(payload);
+                        if (utMetadataId <= 0 || metadataSize == null || !swarm.setSize(metadataSize))
+                            return false; // can't or won't serve this dict
+                        requestMoreMetadata(swarm, outstanding);
+                    } else if (extMsgId == (byte) 1) {
+                        // ut_metadata response — we advertised ID 1, so peer sends us on ID 1
+                        MetadataPieceResult result = handleMetadataMessage(payload);
+                        if (result == null)
+                            continue;
+                        if (result.data == null)
+                            return false; // rejected: peer doesn't have it
+                        outstanding.remove(result.piece);
+                        if (swarm.onPiece(this, result.piece, result.data))
+                            return true;
+                        requestMoreMetadata(swarm, outstanding);
+                    }
+                } else if (id == 5) { // BITFIELD — remember for the piece engine
+                    remoteBitfield = new byte[len - 1];
+                    in.readFully(remoteBitfield);
+                } else if (id == 4 && len == 5) { // HAVE
+                    remoteHaves.add(in.readInt());
+                } else if (id == 1 || id == 0) { // UNCHOKE / CHOKE
+                    remoteUnchoked = id == 1;
+                } else {
+                    // Skip other messages
+                    long skipped = 0;
+                    while (skipped < len - 1) {
+                        skipped += in.skip(len - 1 - skipped);
+                    }
                 }
-                // Value
-                pos = findBencodeEnd(data, pos);
-                if (pos == -1)
-                    return -1;
-            }
-            return -1; // unterminated
-        } else if (b == 'i') {
-            // Integer: i<number>e
-            int eIdx = pos + 1;
-            while (eIdx < data.length && data[eIdx] != 'e')
-                eIdx++;
-            return (eIdx < data.length) ? eIdx + 1 : -1;
-        } else if (b >= '0' && b <= '9') {
-            // String: <length>:<data>
-            int colonIdx = pos;
-            while (colonIdx < data.length && data[colonIdx] != ':')
-                colonIdx++;
-            if (colonIdx >= data.length)
-                return -1;
-            int strLen;
-            try {
-                strLen = Integer.parseInt(new String(data, pos, colonIdx - pos));
-            } catch (NumberFormatException e) {
-                return -1;
             }
-            return colonIdx + 1 + strLen;
+            return false;
+        } finally {
+            swarm.release(outstanding);
         }
-        return -1; // unknown
     }
 
-    public byte[] fetchMetadata() throws IOException {
-        // Read loop until we get all metadata pieces or timeout
-        long startTime = System.currentTimeMillis();
-
-        // Pieces will be collected here once we know the count
-        Map<Integer, byte[]> pieces = new HashMap<>();
-        int totalPieces = -1;
-        boolean piecesRequested = false;
-
-        while (System.currentTimeMillis() - startTime < 15000) { // 15s wait
-            if (in.available() < 4) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                }
-                continue;
-            }
-
-            int len = in.readInt();
-            if (len <= 0)
-                continue; // Keep alive
+    Socket getSocket() {
+        return socket;
+    }
 
-            byte id = in.readByte();
-            if (id == 20) { // Extended
-                byte extMsgId = in.readByte();
-                byte[] payload = new byte[len - 2];
-                in.readFully(payload);
+    byte[] getRemoteReserved() {
+        return remoteReserved;
+    }
 
-                if (extMsgId == 0) { // Handshake
-                    handleExtensionHandshake(payload);
-                    if (metadataSize != null && metadataSize > 0) {
-                        totalPieces = (metadataSize + METADATA_PIECE_SIZE - 1) / METADATA_PIECE_SIZE;
-                    }
-                    try {
-                        Thread.sleep(100);
-                    } catch (Exception e) {
-                    }
-                    if (!piecesRequested) {
-                        requestAllMetadataPieces();
-                        piecesRequested = true;
-                    }
-                } else if (extMsgId == (byte) 1) {
-                    // ut_metadata response — we advertised ID 1, so peer sends us on ID 1
-                    MetadataPieceResult result = handleMetadataMessage(payload);
-                    if (result != null) {
-                        pieces.put(result.piece, result.data);
-
-                        // Check if we have all pieces
-                        if (totalPieces > 0 && pieces.size() >= totalPieces) {
-                            return reassembleMetadata(pieces, totalPieces);
-                        }
-                    }
-                }
-            } else {
-                // Skip other messages
-                long skipped = 0;
-                while (skipped < len - 1) {
-                    skipped += in.skip(len - 1 - skipped);
-                }
-            }
-        }
+    /** Raw BITFIELD payload received so far, or null if none arrived. */
+    byte[] getRemoteBitfield() {
+        return remoteBitfield;
+    }
 
-        // Timeout — return what we have if we got all pieces
-        if (totalPieces > 0 && pieces.size() >= totalPieces) {
-            return reassembleMetadata(pieces, totalPieces);
-        }
-        return null;
+    List<Integer> getRemoteHaves() {
+        return remoteHaves;
     }
 
-    private byte[] reassembleMetadata(Map<Integer, byte[]> pieces, int totalPieces) {
-        // Calculate total size
-        int totalSize = 0;
-        for (int i = 0; i < totalPieces; i++) {
-            byte[] piece = pieces.get(i);
-            if (piece == null)
-                return null; // Missing piece
-            totalSize += piece.length;
-        }
+    boolean isRemoteUnchoked() {
+        return remoteUnchoked;
+    }
 
-        byte[] metadata = new byte[totalSize];
-        int offset = 0;
-        for (int i = 0; i < totalPieces; i++) {
-            byte[] piece = pieces.get(i);
-            System.arraycopy(piece, 0, metadata, offset, piece.length);
-            offset += piece.length;
-        }
-        return metadata;
+    /** The peer's message ID for ut_pex, 0 if it didn't offer it. */
+    int getRemotePexId() {
+        return remotePexId;
     }
 
     @Override
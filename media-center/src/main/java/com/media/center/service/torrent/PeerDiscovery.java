@@ -0,0 +1,664 @@
+package com.media.center.service.torrent;
+
+import com.media.center.service.DatabaseService;
+import com.media.center.service.TrackerStats;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Announces to trackers and publishes every new peer the moment a tracker
+ * returns it, so metadata fetching and connecting can start on the first
+ * answers while slower trackers are still responding.
+ *
+ * Trackers are grouped into tiers (BEP 12). Within a tier they are ordered
+ * by their stored health (success rate, then reply time) and only the best
+ * few are used; the next one joins when one of them fails or is slow to
+ * answer its first announce. Trackers that have failed repeatedly across
+ * sessions are backed off for hours and only tried when nothing else in
+ * their tier is left. Tiers run side by side. Health is saved to the
+ * database when discovery closes.
+ *
+ * Each tracker in use runs on its own schedule: the next announce is due
+ * after the tracker's {@code interval}, extra announces for more peers never
+ * come sooner than its {@code min interval}, and failing trackers back off
+ * exponentially. Announces carry real transfer counters and the
+ * started/completed/stopped events. Peers are deduplicated across trackers
+ * and rounds.
+ *
+ * With {@link #useDht} the mainline DHT is one more source: a lookup runs
+ * with every round and then every quarter hour, so magnets without trackers
+ * (or with only dead ones) still find peers. With {@link #useLocalDiscovery}
+ * the torrent is also announced on the LAN and LAN announces become peers.
+ */
+class PeerDiscovery implements AutoCloseable {
+
+    /** Receives each newly discovered peer, on a tracker thread. */
+    interface Listener {
+        void onPeer(TrackerClient.Peer peer);
+    }
+
+    /** Transfer counters reported to trackers. */
+    interface TransferStats {
+        long downloaded();
+
+        long uploaded();
+
+        /** Bytes still needed, or -1 while the size is unknown. */
+        long left();
+    }
+
+    // A round is considered finished after this long even if trackers hang
+    private static final long ROUND_TIMEOUT_MS = 30_000;
+    // Used when a tracker doesn't say
+    private static final long DEFAULT_INTERVAL_MS = 30 * 60_000;
+    private static final long DEFAULT_MIN_INTERVAL_MS = 60_000;
+    private static final long MAX_BACKOFF_MS = 30 * 60_000;
+    private static final long STOP_WAIT_MS = 3000;
+
+    // Trackers per tier announced to at once
+    private static final int TIER_WIDTH = 3;
+    // A first announce still unanswered after this long lets the next tracker in
+    private static final long SLOW_TRACKER_MS = 8000;
+    // Failures in a row (across sessions) before a tracker counts as dead
+    private static final int DEAD_AFTER_FAILURES = 3;
+    private static final long DEAD_BACKOFF_MS = 60 * 60_000;
+    private static final long MAX_DEAD_BACKOFF_MS = 24 * 60 * 60_000;
+
+    // DHT lookups: on this schedule, or sooner (but not more often) when short of peers
+    private static final long DHT_INTERVAL_MS = 15 * 60_000;
+    private static final long DHT_MIN_INTERVAL_MS = 2 * 60_000;
+
+    // Tracker health is written out this often, not only on close
+    private static final long STATS_SAVE_MS = 60_000;
+
+    /** Per-tracker schedule, last known swarm numbers and health. */
+    private static class TrackerState {
+        final String url;
+        final List<TrackerState> tier;
+        final TrackerStats history; // null if never used before
+        boolean active = false; // chosen to be announced to in its tier
+        boolean answered = false; // has answered at least once this session
+        boolean started = false; // "started" accepted, so completed/stopped make sense
+        boolean inFlight = false;
+        // "completed" came while an announce was in flight; sent once it finishes
+        boolean completedPending = false;
+        long lastAnnounceAt = 0;
+        long nextAnnounceAt = 0;
+        long minIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+        int failures = 0;
+        int seeders = -1;
+        int leechers = -1;
+
+        // This session's results
+        long announces = 0;
+        long successes = 0;
+        long latencyMs = 0;
+        long peersYielded = 0;
+        // The part of them already written to the database
+        long savedAnnounces = 0;
+        long savedSuccesses = 0;
+        long savedLatencyMs = 0;
+        long savedPeersYielded = 0;
+        int failureStreak;
+        long lastSuccess;
+
+        TrackerState(String url, List<TrackerState> tier, TrackerStats history) {
+            this.url = url;
+            this.tier = tier;
+            this.history = history;
+            this.failureStreak = history != null ? history.getConsecutiveFailures() : 0;
+            this.lastSuccess = history != null ? history.getLastSuccess() : 0;
+        }
+
+        /** Failed repeatedly, and its backoff since the last attempt hasn't run out. */
+        boolean isDead(long now) {
+            if (failureStreak < DEAD_AFTER_FAILURES)
+                return false;
+            long lastAttempt = Math.max(lastAnnounceAt, history != null ? history.getLastAttempt() : 0);
+            int doublings = Math.min(failureStreak - DEAD_AFTER_FAILURES, 5);
+            return now < lastAttempt + Math.min(MAX_DEAD_BACKOFF_MS, DEAD_BACKOFF_MS << doublings);
+        }
+
+        /** Smoothed success rate; unknown trackers sit in the middle. */
+        double successRate() {
+            long a = announces + (history != null ? history.getAnnounces() : 0);
+            long s = successes + (history != null ? history.getSuccesses() : 0);
+            return (s + 1.0) / (a + 2.0);
+        }
+
+        long averageLatencyMs() {
+            long s = successes + (history != null ? history.getSuccesses() : 0);
+            long l = latencyMs + (history != null ? history.getTotalLatencyMs() : 0);
+            return s > 0 ? l / s : Long.MAX_VALUE;
+        }
+
+        /** Counts toward its tier's width: in use and not failing or stuck on its first reply. */
+        boolean isWorking(long now) {
+            if (!active || failures > 0)
+                return false;
+            return answered || !inFlight || now - lastAnnounceAt < SLOW_TRACKER_MS;
+        }
+    }
+
+    private final byte[] infoHash;
+    private final List<List<TrackerState>> tiers = new ArrayList<>();
+    // All trackers, across tiers; also the lock for every TrackerState
+    private final List<TrackerState> trackers = new ArrayList<>();
+    private final Map<List<TrackerState>, Integer> tierWidth = new HashMap<>();
+    private final Listener listener;
+    private final TransferStats stats;
+    private final DatabaseService database;
+    private final PeerTable seen = new PeerTable();
+    private volatile boolean closed = false;
+    private long lastWidenAt = 0;
+
+    private DhtNode dht; // null: trackers only
+    private boolean dhtAnnounce = false;
+    private boolean dhtInFlight = false;
+    private long lastDhtLookupAt = 0;
+    private long lastStatsSaveAt = System.currentTimeMillis();
+    private LocalPeerDiscovery lan; // null: no LAN announces
+
+    // Current announce round: completes once everything it started is done
+    private CompletableFuture<Void> round;
+    private int roundPending = 0;
+
+    /**
+     * @param trackerTiers tracker URLs, best tier first (see {@link #tiers})
+     * @param stats        transfer counters, or null to report nothing transferred
+     * @param database     where tracker health is kept, or null
+     */
+    PeerDiscovery(byte[] infoHash, List<List<String>> trackerTiers, Listener listener, TransferStats stats,
+            DatabaseService database) {
+        this.infoHash = infoHash;
+        this.listener = listener;
+        this.stats = stats;
+        this.database = database;
+
+        Map<String, TrackerStats> history = database != null ? database.loadTrackerStats() : new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (List<String> urls : trackerTiers) {
+            List<TrackerState> tier = new ArrayList<>();
+            for (String url : urls) {
+                // Skip unsupported protocols (wss is browser-only)
+                if (!url.startsWith("wss://"))
+                    tier.add(new TrackerState(url, tier, history.get(url)));
+            }
+            if (tier.isEmpty())
+                continue;
+            // Healthiest first; dead trackers last
+            tier.sort(Comparator.comparing((TrackerState t) -> t.isDead(now))
+                    .thenComparing(Comparator.comparingDouble(TrackerState::successRate).reversed())
+                    .thenComparingLong(TrackerState::averageLatencyMs));
+            tiers.add(tier);
+            tierWidth.put(tier, TIER_WIDTH);
+            trackers.addAll(tier);
+        }
+    }
+
+    /**
+     * Build tiers from lists of tracker URLs, best first. Blank entries and
+     * URLs already in an earlier tier are dropped.
+     */
+    @SafeVarargs
+    static List<List<String>> tiers(List<String>... groups) {
+        Set<String> seenUrls = new HashSet<>();
+        List<List<String>> tiers = new ArrayList<>();
+        for (List<String> group : groups) {
+            if (group == null)
+                continue;
+            List<String> tier = new ArrayList<>();
+            for (String url : group) {
+                if (url != null && !url.isEmpty() && seenUrls.add(url))
+                    tier.add(url);
+            }
+            if (!tier.isEmpty())
+                tiers.add(tier);
+        }
+        return tiers;
+    }
+
+    /**
+     * Also look peers up in the DHT. With {@code announce}, the DHT is told
+     * we have the torrent on the listen port, so only pass it when peers can
+     * actually connect to us. A null node is ignored.
+     */
+    void useDht(DhtNode node, boolean announce) {
+        synchronized (trackers) {
+            dht = node;
+            dhtAnnounce = announce;
+        }
+    }
+
+    /**
+     * Announce the torrent on the LAN (BEP 14) on the listen port, and
+     * publish peers from other hosts' LAN announces. A null instance is
+     * ignored.
+     */
+    void useLocalDiscovery(LocalPeerDiscovery node) {
+        if (node == null)
+            return;
+        synchronized (trackers) {
+            lan = node;
+        }
+        node.register(infoHash, TorrentDownloader.getListenPort(), p -> {
+            if (!closed && seen.add(p)) {
+                System.out.println("LAN peer " + p + " found by local discovery.");
+                listener.onPeer(p);
+            }
+        });
+    }
+
+    /**
+     * Announce to the chosen trackers of every tier (and look up the DHT) now. Peers are published
+     * as they arrive; the returned future completes when every announce the
+     * round started (including trackers brought in to replace failed or
+     * slow ones) has answered or failed, or after {@link #ROUND_TIMEOUT_MS}.
+     */
+    CompletableFuture<Void> announce() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        List<TrackerState> toAnnounce = new ArrayList<>();
+        synchronized (trackers) {
+            round = done;
+            roundPending = 0;
+            for (List<TrackerState> tier : tiers)
+                fillTier(tier);
+            for (TrackerState t : trackers) {
+                if (t.active)
+                    toAnnounce.add(t);
+            }
+        }
+        for (TrackerState t : toAnnounce)
+            announce(t, null);
+        lookupDht();
+        synchronized (trackers) {
+            if (roundPending == 0)
+                done.complete(null);
+        }
+        return done.completeOnTimeout(null, ROUND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Announce to trackers whose regular interval is up. Call periodically. */
+    void tick() {
+        long now = System.currentTimeMillis();
+        for (TrackerState t : trackers) {
+            if (t.active && now >= t.nextAnnounceAt)
+                announce(t, null);
+        }
+        if (now - lastDhtLookupAt >= DHT_INTERVAL_MS)
+            lookupDht();
+        if (now - lastStatsSaveAt >= STATS_SAVE_MS) {
+            lastStatsSaveAt = now;
+            saveStats();
+        }
+    }
+
+    /**
+     * We ran out of peers to dial: ask every tracker in use that allows it
+     * (its min interval has passed) for more, ahead of its regular schedule.
+     * At most once a minute, each tier also takes one more tracker.
+     */
+    void requestMorePeers() {
+        long now = System.currentTimeMillis();
+        synchronized (trackers) {
+            if (closed)
+                return;
+            if (now - lastWidenAt >= DEFAULT_MIN_INTERVAL_MS) {
+                lastWidenAt = now;
+                for (List<TrackerState> tier : tiers) {
+                    tierWidth.merge(tier, 1, Integer::sum);
+                    fillTier(tier);
+                }
+            }
+        }
+        // Trackers just brought in have never announced, so they qualify too
+        for (TrackerState t : trackers) {
+            if (t.active && t.failures == 0 && now - t.lastAnnounceAt >= t.minIntervalMs)
+                announce(t, null);
+        }
+        if (now - lastDhtLookupAt >= DHT_MIN_INTERVAL_MS)
+            lookupDht();
+    }
+
+    /**
+     * Tell trackers the download finished (event=completed). A tracker busy
+     * with another announce gets it as soon as that one finishes.
+     */
+    void completed() {
+        for (TrackerState t : trackers) {
+            if (t.started && announce(t, AnnounceParams.Event.COMPLETED) == null) {
+                synchronized (trackers) {
+                    if (!closed && t.inFlight)
+                        t.completedPending = true;
+                }
+            }
+        }
+    }
+
+    /** Ask each tracker in use for its swarm size; results show up in {@link #swarmSize()}. */
+    void scrape() {
+        for (TrackerState t : trackers) {
+            if (!t.active)
+                continue;
+            CompletableFuture<TrackerResponse> f = t.url.startsWith("udp://")
+                    ? UdpTrackerClient.scrape(t.url, infoHash)
+                    : TrackerClient.scrape(t.url, infoHash);
+            // Failures are ignored: scrape is optional and plenty of trackers don't support it
+            f.thenAccept(r -> recordSwarm(t, r));
+        }
+    }
+
+    /** Largest seeders + leechers any tracker reported, or -1 if unknown. */
+    int swarmSize() {
+        int best = -1;
+        synchronized (trackers) {
+            for (TrackerState t : trackers) {
+                if (t.seeders >= 0 && t.leechers >= 0)
+                    best = Math.max(best, t.seeders + t.leechers);
+            }
+        }
+        return best;
+    }
+
+    /** Unique peers published so far. */
+    int peerCount() {
+        return seen.size();
+    }
+
+    // =====================================================================
+    // TIERS
+    // =====================================================================
+
+    /**
+     * Bring trackers into use, in health order, until the tier has its width
+     * of working ones. Dead trackers are only used once nothing else in the
+     * tier works. Returns the trackers added; the caller announces to them.
+     * Caller holds the lock.
+     */
+    private List<TrackerState> fillTier(List<TrackerState> tier) {
+        long now = System.currentTimeMillis();
+        int width = tierWidth.get(tier);
+        int working = 0;
+        for (TrackerState t : tier) {
+            if (t.isWorking(now))
+                working++;
+        }
+        List<TrackerState> added = new ArrayList<>();
+        for (int pass = 0; pass < 2 && working < width; pass++) {
+            // Second pass: dead trackers, only if nothing in the tier works
+            if (pass == 1 && working > 0)
+                break;
+            for (TrackerState t : tier) {
+                if (working >= width)
+                    break;
+                if (t.active || (pass == 0 && t.isDead(now)))
+                    continue;
+                t.active = true;
+                added.add(t);
+                working++;
+            }
+        }
+        return added;
+    }
+
+    /** A tracker failed or is slow: let the next ones in its tier take over. */
+    private void refillTier(List<TrackerState> tier) {
+        List<TrackerState> added;
+        synchronized (trackers) {
+            if (closed)
+                return;
+            added = fillTier(tier);
+        }
+        for (TrackerState t : added)
+            announce(t, null);
+    }
+
+    // =====================================================================
+    // ANNOUNCE
+    // =====================================================================
+
+    /**
+     * Start one announce unless one is already running for this tracker.
+     * With event null, sends "started" until a tracker has accepted it.
+     */
+    private CompletableFuture<Void> announce(TrackerState t, AnnounceParams.Event forced) {
+        AnnounceParams params;
+        long sentAt = System.currentTimeMillis();
+        CompletableFuture<Void> inRound;
+        synchronized (trackers) {
+            if (closed || t.inFlight)
+                return null;
+            t.inFlight = true;
+            t.lastAnnounceAt = sentAt;
+            AnnounceParams.Event event = forced != null ? forced
+                    : t.started ? AnnounceParams.Event.NONE : AnnounceParams.Event.STARTED;
+            params = currentParams(event);
+            inRound = joinRound();
+        }
+        if (!t.answered && forced == null) {
+            // If this first announce drags on, don't let it hold the tier up
+            CompletableFuture.delayedExecutor(SLOW_TRACKER_MS, TimeUnit.MILLISECONDS)
+                    .execute(() -> refillTier(t.tier));
+        }
+
+        // Both clients are asynchronous: no thread waits on a reply
+        CompletableFuture<TrackerResponse> reply = t.url.startsWith("udp://")
+                ? UdpTrackerClient.announce(t.url, infoHash, params)
+                : TrackerClient.announce(t.url, infoHash, params);
+        return reply.handle((resp, err) -> {
+            onAnnounced(t, params.event, resp, err, System.currentTimeMillis() - sentAt);
+            roundTaskDone(inRound);
+            return null;
+        });
+    }
+
+    /** The current round, counting one more task in it; null if no round is open. Caller holds the lock. */
+    private CompletableFuture<Void> joinRound() {
+        if (round == null || round.isDone())
+            return null;
+        roundPending++;
+        return round;
+    }
+
+    private void roundTaskDone(CompletableFuture<Void> inRound) {
+        if (inRound == null)
+            return;
+        synchronized (trackers) {
+            if (--roundPending == 0)
+                inRound.complete(null);
+        }
+    }
+
+    private AnnounceParams currentParams(AnnounceParams.Event event) {
+        long downloaded = stats != null ? stats.downloaded() : 0;
+        long uploaded = stats != null ? stats.uploaded() : 0;
+        long left = stats != null ? stats.left() : -1;
+        if (left < 0)
+            left = AnnounceParams.UNKNOWN_LEFT;
+        // We won't connect to anyone after stopping; don't make the tracker pick peers
+        int numWant = event == AnnounceParams.Event.STOPPED ? 0 : -1;
+        return new AnnounceParams(downloaded, uploaded, left, event, numWant);
+    }
+
+    private void onAnnounced(TrackerState t, AnnounceParams.Event event, TrackerResponse resp, Throwable err,
+            long latencyMs) {
+        long now = System.currentTimeMillis();
+        boolean failed = err != null || resp == null;
+        boolean sendCompleted;
+        synchronized (trackers) {
+            t.inFlight = false;
+            sendCompleted = t.completedPending;
+            t.completedPending = false;
+            t.announces++;
+            if (failed) {
+                t.failures++;
+                t.failureStreak++;
+                t.nextAnnounceAt = now + Math.min(MAX_BACKOFF_MS, DEFAULT_MIN_INTERVAL_MS << Math.min(t.failures, 5));
+            } else {
+                t.answered = true;
+                t.failures = 0;
+                t.failureStreak = 0;
+                t.successes++;
+                t.latencyMs += latencyMs;
+                t.lastSuccess = now;
+                if (event == AnnounceParams.Event.STARTED)
+                    t.started = true;
+                else if (event == AnnounceParams.Event.STOPPED)
+                    t.started = false;
+                long interval = resp.interval > 0 ? resp.interval * 1000L : DEFAULT_INTERVAL_MS;
+                t.minIntervalMs = resp.minInterval > 0 ? resp.minInterval * 1000L : DEFAULT_MIN_INTERVAL_MS;
+                t.nextAnnounceAt = now + interval;
+                if (resp.seeders >= 0)
+                    t.seeders = resp.seeders;
+                if (resp.leechers >= 0)
+                    t.leechers = resp.leechers;
+            }
+        }
+        if (failed) {
+            if (event != AnnounceParams.Event.STOPPED) {
+                System.err.println("Tracker error: " + t.url + " - " + (err != null ? rootMessage(err) : "no reply"));
+                refillTier(t.tier);
+            }
+        } else {
+            int added = publish(t.url, resp.peers);
+            synchronized (trackers) {
+                t.peersYielded += added;
+            }
+        }
+        if (sendCompleted && t.started)
+            announce(t, AnnounceParams.Event.COMPLETED);
+    }
+
+    /** Start a DHT lookup unless one is running; its peers are published like a tracker's. */
+    private void lookupDht() {
+        DhtNode node;
+        int port;
+        CompletableFuture<Void> inRound;
+        synchronized (trackers) {
+            if (dht == null || closed || dhtInFlight)
+                return;
+            node = dht;
+            port = dhtAnnounce ? TorrentDownloader.getListenPort() : 0;
+            dhtInFlight = true;
+            lastDhtLookupAt = System.currentTimeMillis();
+            inRound = joinRound();
+        }
+        AtomicInteger added = new AtomicInteger();
+        node.getPeers(infoHash, p -> {
+            if (!closed && seen.add(p)) {
+                listener.onPeer(p);
+                added.incrementAndGet();
+            }
+        }, port).handle((found, err) -> {
+            synchronized (trackers) {
+                dhtInFlight = false;
+            }
+            if (err != null)
+                System.err.println("DHT lookup failed: " + rootMessage(err));
+            else
+                System.out.println("DHT returned " + found + " peers (" + added.get() + " new).");
+            roundTaskDone(inRound);
+            return null;
+        });
+    }
+
+    private void recordSwarm(TrackerState t, TrackerResponse r) {
+        if (r == null)
+            return;
+        synchronized (trackers) {
+            t.seeders = r.seeders;
+            t.leechers = r.leechers;
+        }
+    }
+
+    /** Hand new peers to the listener; returns how many were new. */
+    private int publish(String tr, List<TrackerClient.Peer> peers) {
+        if (peers == null || peers.isEmpty() || closed)
+            return 0;
+
+        int added = 0;
+        for (TrackerClient.Peer p : peers) {
+            if (seen.add(p)) {
+                listener.onPeer(p);
+                added++;
+            }
+        }
+        System.out.println("Tracker " + tr + " returned " + peers.size() + " peers (" + added + " new).");
+        return added;
+    }
+
+    private static String rootMessage(Throwable t) {
+        while (t.getCause() != null)
+            t = t.getCause();
+        return t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName();
+    }
+
+    // =====================================================================
+    // HEALTH
+    // =====================================================================
+
+    /**
+     * Add the tracker results gathered since the last save to the database.
+     * Runs from {@link #tick()} and on close, so a crash loses at most a minute.
+     */
+    private void saveStats() {
+        if (database == null)
+            return;
+        List<TrackerStats> batch = new ArrayList<>();
+        synchronized (trackers) {
+            for (TrackerState t : trackers) {
+                // Peers are credited just after the announce itself is counted
+                if (t.announces == t.savedAnnounces && t.peersYielded == t.savedPeersYielded)
+                    continue;
+                batch.add(new TrackerStats(t.url, t.announces - t.savedAnnounces, t.successes - t.savedSuccesses,
+                        t.latencyMs - t.savedLatencyMs, t.peersYielded - t.savedPeersYielded,
+                        t.failureStreak, t.lastSuccess, t.lastAnnounceAt));
+                t.savedAnnounces = t.announces;
+                t.savedSuccesses = t.successes;
+                t.savedLatencyMs = t.latencyMs;
+                t.savedPeersYielded = t.peersYielded;
+            }
+        }
+        if (!batch.isEmpty())
+            database.saveTrackerStats(batch);
+    }
+
+    /** Send "stopped" to trackers that know about us (briefly waiting), then save tracker health. */
+    @Override
+    public void close() {
+        List<CompletableFuture<Void>> stops = new ArrayList<>();
+        for (TrackerState t : trackers) {
+            boolean wasStarted;
+            synchronized (trackers) {
+                wasStarted = t.started;
+                t.inFlight = false; // a stuck regular announce must not block the stop
+            }
+            if (wasStarted) {
+                CompletableFuture<Void> f = announce(t, AnnounceParams.Event.STOPPED);
+                if (f != null)
+                    stops.add(f);
+            }
+        }
+        synchronized (trackers) {
+            closed = true;
+        }
+        if (lan != null)
+            lan.unregister(infoHash);
+        try {
+            CompletableFuture.allOf(stops.toArray(new CompletableFuture<?>[0]))
+                    .get(STOP_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception ignored) {
+            // Best effort; trackers expire us anyway
+        }
+        saveStats();
+    }
+}
@@ -0,0 +1,117 @@
+package com.media.center.service.torrent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Peer Exchange (ut_pex, BEP 11) message encoding and decoding.
+ *
+ * Every connected peer that supports it is sent, at most once a minute, the
+ * peers we became connected to since the last message ("added") and the
+ * ones we lost ("dropped"), as compact IPv4 entries. Peers it sends us go
+ * into the same peer table as tracker results, so discovery keeps growing
+ * with the swarm even when trackers stop answering.
+ */
+final class PeerExchange {
+
+    /** Our message ID for ut_pex, advertised in the extension handshake. */
+    static final int LOCAL_ID = 2;
+    static final long SEND_INTERVAL_MS = 60_000;
+    // Senders shouldn't message more than once a minute; ignore floods
+    static final long MIN_RECEIVE_INTERVAL_MS = 45_000;
+    // BEP 11 caps each list at 50 entries
+    static final int MAX_PEERS = 50;
+
+    static final byte FLAG_SEED = 0x02;
+    static final byte FLAG_UTP = 0x04;
+    static final byte FLAG_REACHABLE = 0x10; // we connected out to it
+
+    private PeerExchange() {
+    }
+
+    /**
+     * Peers listed under "added" (IPv4; "added6" is ignored). If the sender
+     * included "added.f", each peer's flags are put in {@code flags}.
+     */
+    static List<TrackerClient.Peer> parseAdded(byte[] payload, Map<Long, Byte> flags) {
+        List<TrackerClient.Peer> peers = new ArrayList<>();
+        BencodeParser.Value msg = BencodeParser.parsePrefix(payload, 0);
+        BencodeParser.Value added = msg.get("added");
+        if (added == null || !added.isString())
+            return peers;
+        BencodeParser.Value addedFlags = msg.get("added.f");
+        ByteBuffer f = addedFlags != null && addedFlags.isString() ? addedFlags.asBuffer() : null;
+        ByteBuffer data = added.asBuffer();
+        byte[] entry = new byte[6];
+        while (data.remaining() >= 6 && peers.size() < MAX_PEERS) {
+            data.get(entry);
+            boolean flagged = f != null && f.hasRemaining();
+            byte peerFlags = flagged ? f.get() : 0;
+            TrackerClient.Peer peer = TrackerClient.Peer.fromCompact(entry, 0);
+            if (peer == null)
+                continue;
+            peers.add(peer);
+            if (flagged)
+                flags.put(peer.key, peerFlags);
+        }
+        return peers;
+    }
+
+    /**
+     * Write the ut_pex dictionary telling a peer what changed since our last
+     * message to it, and update {@code advertised} to match.
+     *
+     * @param connected  peer key -> flags, for everyone we could tell it about
+     * @param self       the receiving peer's key, never advertised to itself
+     * @param advertised keys this peer has already been told about
+     * @return false (and nothing written) if there is no change to report
+     */
+    static boolean write(BencodeWriter w, Map<Long, Byte> connected, long self, Set<Long> advertised) {
+        byte[] added = new byte[MAX_PEERS * 6];
+        byte[] addedFlags = new byte[MAX_PEERS];
+        byte[] dropped = new byte[MAX_PEERS * 6];
+        int nAdded = 0;
+        int nDropped = 0;
+
+        for (Map.Entry<Long, Byte> e : connected.entrySet()) {
+            if (nAdded == MAX_PEERS)
+                break;
+            long key = e.getKey();
+            if (key == self || !advertised.add(key))
+                continue;
+            putCompact(added, nAdded * 6, key);
+            addedFlags[nAdded++] = e.getValue();
+        }
+        for (Iterator<Long> it = advertised.iterator(); it.hasNext() && nDropped < MAX_PEERS;) {
+            long key = it.next();
+            if (!connected.containsKey(key)) {
+                it.remove();
+                putCompact(dropped, nDropped++ * 6, key);
+            }
+        }
+        if (nAdded == 0 && nDropped == 0)
+            return false;
+
+        w.startDict()
+                .key("added").value(added, 0, nAdded * 6)
+                .key("added.f").value(addedFlags, 0, nAdded)
+                .key("dropped").value(dropped, 0, nDropped * 6)
+                .end();
+        return true;
+    }
+
+    static void putCompact(byte[] out, int offset, long key) {
+        long ip = PeerTable.ipOf(key);
+        int port = PeerTable.portOf(key);
+        out[offset] = (byte) (ip >>> 24);
+        out[offset + 1] = (byte) (ip >>> 16);
+        out[offset + 2] = (byte) (ip >>> 8);
+        out[offset + 3] = (byte) ip;
+        out[offset + 4] = (byte) (port >>> 8);
+        out[offset + 5] = (byte) port;
+    }
+}
@@ -0,0 +1,117 @@
+package com.media.center.service.torrent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One live BT wire connection inside the download engine.
+ * Holds the socket streams plus what we know about the remote side's pieces,
+ * and buffers outgoing HAVE messages so a burst of completed pieces goes out
+ * as a single write instead of one flush per piece.
+ *
+ * All writes to {@link #out} must be done while holding the {@code out}
+ * monitor, since HAVE flushes can come from a different thread than the one
+ * running the request loop.
+ */
+class PeerSession {
+
+    final TrackerClient.Peer peer;
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+    final boolean[] peerHasPiece;
+    final long connectedAt = System.currentTimeMillis();
+
+    // Whether the peer lets us request; starts true if it unchoked us before
+    // the session started (handover)
+    boolean remoteUnchoked = false;
+
+    // Fast Extension (BEP 6), when both handshakes offered it: a choke no
+    // longer drops our requests silently, each one is rejected instead
+    boolean fastExtension = false;
+    // Pieces the peer lets us fetch while choked, and ones it suggested (reading thread only)
+    final Set<Integer> allowedFast = new HashSet<>();
+    final ArrayDeque<Integer> suggested = new ArrayDeque<>();
+
+    // v2 hash requests (BEP 52): whether the peer answers them; cleared when
+    // it rejects one, after which its pieces are only checked whole
+    boolean v2Hashes = false;
+
+    // Set by the pool controller when this slot should be given up
+    volatile boolean retireRequested = false;
+    volatile long bytesReceived = 0;
+
+    // Extension protocol (BEP 10): the remote's message ID for ut_pex, 0 if unsupported
+    volatile int remotePexId = 0;
+    // ut_pex we send (monitor thread only): when, and which peers it knows from us
+    long lastPexSentAt = 0;
+    final Set<Long> pexAdvertised = new HashSet<>();
+    // ut_pex we receive (reading thread only)
+    long lastPexReceivedAt = 0;
+
+    private final ConcurrentLinkedQueue<Integer> pendingHaves = new ConcurrentLinkedQueue<>();
+
+    PeerSession(TrackerClient.Peer peer, Socket socket, DataInputStream in, DataOutputStream out, int totalPieces) {
+        this.peer = peer;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.peerHasPiece = new boolean[totalPieces];
+    }
+
+    /** Queue a HAVE for this peer, unless it already has the piece. */
+    void queueHave(int pieceIndex) {
+        if (!peerHasPiece[pieceIndex])
+            pendingHaves.add(pieceIndex);
+    }
+
+    /**
+     * Write all queued HAVE messages without flushing. Caller must hold the
+     * {@code out} monitor and flush afterwards, so HAVEs ride along with
+     * whatever else is being sent.
+     */
+    void writePendingHaves() throws IOException {
+        Integer idx;
+        while ((idx = pendingHaves.poll()) != null) {
+            if (peerHasPiece[idx])
+                continue; // peer got it from someone else meanwhile
+            out.writeInt(5);
+            out.writeByte(4); // have
+            out.writeInt(idx);
+        }
+    }
+
+    /** Send all queued HAVE messages in one flush. */
+    void flushHaves() throws IOException {
+        if (pendingHaves.isEmpty())
+            return;
+        synchronized (out) {
+            writePendingHaves();
+            out.flush();
+        }
+    }
+
+    /** Average download rate over the life of this connection, bytes/s. */
+    double averageRate() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - connectedAt);
+        return bytesReceived * 1000.0 / elapsed;
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return peer.toString();
+    }
+}
@@ -0,0 +1,271 @@
+package com.media.center.service.torrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact peer registry keyed by packed IPv4 + port longs.
+ *
+ * A peer key is {@code (ipv4 << 16) | port}, which is never 0 for a usable
+ * peer. Keys live in an open-addressing (linear probing) table with per-peer
+ * state in parallel primitive arrays, so membership checks and state updates
+ * on the hot paths allocate nothing and dedup is O(1) per peer. Peers also
+ * keep their insertion order for round-robin candidate selection.
+ *
+ * All methods are synchronized; every operation is a handful of array reads.
+ */
+class PeerTable {
+
+    static final byte BAD = 1;      // protocol error, wrong torrent, ...
+    static final byte ACTIVE = 2;   // being dialed or connected right now
+    static final byte SEED = 4;     // has unchoked us at least once
+
+    private static final int INITIAL_CAPACITY = 256; // power of two
+
+    private long[] keys;
+    private int[] slotToIndex; // table slot -> insertion index
+
+    // Per-peer state, indexed by insertion order
+    private TrackerClient.Peer[] peers;
+    private byte[] flags;
+    private long[] retryAt;
+
+    private int size = 0;
+    private int seedCount = 0;
+    private int cursor = 0;
+
+    PeerTable() {
+        keys = new long[INITIAL_CAPACITY];
+        slotToIndex = new int[INITIAL_CAPACITY];
+        peers = new TrackerClient.Peer[INITIAL_CAPACITY / 2];
+        flags = new byte[INITIAL_CAPACITY / 2];
+        retryAt = new long[INITIAL_CAPACITY / 2];
+    }
+
+    // =====================================================================
+    // KEY PACKING
+    // =====================================================================
+
+    /**
+     * Pack a dotted-quad IPv4 address and port into a peer key without
+     * allocating. Returns 0 if the address is not IPv4 or the port is invalid.
+     */
+    static long pack(String ip, int port) {
+        if (port <= 0 || port > 65535)
+            return 0;
+        long addr = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255)
+                    return 0;
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                addr = (addr << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                return 0;
+            }
+        }
+        if (dots != 3 || octet < 0)
+            return 0;
+        addr = (addr << 8) | octet;
+        return (addr << 16) | port;
+    }
+
+    /** Pack 6 bytes of compact peer info (4 IP + 2 port, big endian). */
+    static long pack(byte[] data, int offset) {
+        long addr = ((data[offset] & 0xFFL) << 24) | ((data[offset + 1] & 0xFFL) << 16)
+                | ((data[offset + 2] & 0xFFL) << 8) | (data[offset + 3] & 0xFFL);
+        int port = ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+        return (addr << 16) | port;
+    }
+
+    static int portOf(long key) {
+        return (int) (key & 0xFFFF);
+    }
+
+    static long ipOf(long key) {
+        return key >>> 16;
+    }
+
+    /** Private, link-local or loopback IPv4: a peer on our own network. */
+    static boolean isLocal(long key) {
+        long ip = ipOf(key);
+        int a = (int) (ip >>> 24);
+        int b = (int) (ip >>> 16) & 0xFF;
+        return a == 10 || a == 127 || (a == 172 && (b & 0xF0) == 16) || (a == 192 && b == 168)
+                || (a == 169 && b == 254);
+    }
+
+    static String ipString(long key) {
+        long ip = ipOf(key);
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    // =====================================================================
+    // TABLE OPERATIONS
+    // =====================================================================
+
+    /** Add a peer; returns false if it was already known (or not IPv4). */
+    synchronized boolean add(TrackerClient.Peer peer) {
+        long key = peer.key;
+        if (key == 0)
+            return false;
+        int slot = findSlot(key);
+        if (keys[slot] == key)
+            return false;
+
+        if (size == peers.length)
+            growStorage();
+        keys[slot] = key;
+        slotToIndex[slot] = size;
+        peers[size] = peer;
+        size++;
+        if (size * 2 > keys.length)
+            rehash(keys.length * 2);
+        return true;
+    }
+
+    synchronized boolean contains(long key) {
+        return key != 0 && keys[findSlot(key)] == key;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** All known peers, in insertion order. */
+    synchronized List<TrackerClient.Peer> snapshot() {
+        return new ArrayList<>(Arrays.asList(peers).subList(0, size));
+    }
+
+    synchronized boolean isBad(long key) {
+        int idx = indexOf(key);
+        return idx >= 0 && (flags[idx] & BAD) != 0;
+    }
+
+    synchronized void markBad(long key) {
+        int idx = indexOf(key);
+        if (idx >= 0)
+            flags[idx] |= BAD;
+    }
+
+    /** Forget all BAD marks so every peer gets another chance. */
+    synchronized void clearBad() {
+        for (int i = 0; i < size; i++)
+            flags[i] &= ~BAD;
+    }
+
+    /** Claim a peer for a connection; false if bad, already active or unknown. */
+    synchronized boolean tryActivate(long key) {
+        int idx = indexOf(key);
+        if (idx < 0 || (flags[idx] & (BAD | ACTIVE)) != 0)
+            return false;
+        flags[idx] |= ACTIVE;
+        return true;
+    }
+
+    synchronized void deactivate(long key) {
+        int idx = indexOf(key);
+        if (idx >= 0)
+            flags[idx] &= ~ACTIVE;
+    }
+
+    /** Don't offer this peer as a candidate before the given time. */
+    synchronized void backoffUntil(long key, long timeMs) {
+        int idx = indexOf(key);
+        if (idx >= 0)
+            retryAt[idx] = timeMs;
+    }
+
+    /** Record that a peer unchoked us; returns true the first time. */
+    synchronized boolean markSeed(long key) {
+        int idx = indexOf(key);
+        if (idx < 0 || (flags[idx] & SEED) != 0)
+            return false;
+        flags[idx] |= SEED;
+        seedCount++;
+        return true;
+    }
+
+    synchronized boolean isSeed(long key) {
+        int idx = indexOf(key);
+        return idx >= 0 && (flags[idx] & SEED) != 0;
+    }
+
+    synchronized int seedCount() {
+        return seedCount;
+    }
+
+    /**
+     * Round-robin over known peers and claim the next one that is not bad,
+     * not active and not backing off. Returns null if nobody qualifies.
+     */
+    synchronized TrackerClient.Peer nextCandidate(long now) {
+        for (int tried = 0; tried < size; tried++) {
+            int idx = cursor;
+            cursor = (cursor + 1) % size;
+            if ((flags[idx] & (BAD | ACTIVE)) == 0 && retryAt[idx] <= now) {
+                flags[idx] |= ACTIVE;
+                return peers[idx];
+            }
+        }
+        return null;
+    }
+
+    // =====================================================================
+    // INTERNALS
+    // =====================================================================
+
+    private int indexOf(long key) {
+        if (key == 0)
+            return -1;
+        int slot = findSlot(key);
+        return keys[slot] == key ? slotToIndex[slot] : -1;
+    }
+
+    /** Slot holding key, or the empty slot where it would go. */
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int mix(long key) {
+        // murmur3 fmix64
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldIdx = slotToIndex;
+        keys = new long[newCapacity];
+        slotToIndex = new int[newCapacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                slotToIndex[slot] = oldIdx[i];
+            }
+        }
+    }
+
+    private void growStorage() {
+        int n = peers.length * 2;
+        peers = Arrays.copyOf(peers, n);
+        flags = Arrays.copyOf(flags, n);
+        retryAt = Arrays.copyOf(retryAt, n);
+    }
+}
@@ -1,14 +1,20 @@
 package com.media.center.service.torrent;
 
+import com.media.center.service.DatabaseService;
 import com.media.center.service.DownloadSession;
+import com.media.center.service.PeerRecord;
 import com.media.center.service.TorrentFile;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import javafx.application.Platform;
 
 /**
@@ -26,7 +32,12 @@ public class TorrentDownloader implements Runnable {
 
     // Parsed from info dictionary
     private int pieceLength;
-    private byte[][] pieceHashes; // SHA1 hash for each piece
+    // Concatenated 20-byte SHA1 hashes, a view straight into the info dict
+    // (one object no matter how many pieces)
+    private ByteBuffer pieceHashes; // null for a v2-only torrent
+    // v2 layout and merkle hashes (BEP 52); null for a v1-only torrent
+    private MerkleHashes merkle;
+    private int numPieces;
     private long totalSize;
     private String torrentName;
 
@@ -37,17 +48,72 @@ public class TorrentDownloader implements Runnable {
     private volatile boolean paused = false;
     private volatile boolean stopped = false;
     private boolean[] completedPieces;
+    // Pieces the disk pool has written (guarded by itself); a file is only
+    // renamed once all of its pieces are here, not just verified
+    private boolean[] piecesOnDisk;
     private boolean[] neededPieces; // only pieces covering selected files
     private long downloadedBytes = 0;
     private long lastSpeedCheckBytes = 0;
     private long lastSpeedCheckTime = 0;
     private double smoothedSpeed = 0;
-    private final Set<String> activeSeedCount = Collections.synchronizedSet(new HashSet<>());
 
-    // Peer tracking: skip dead peers, prefer working ones
-    private final Set<String> badPeers = Collections.synchronizedSet(new HashSet<>());
+    // Peer tracking: skip dead peers, prefer working ones. The table holds
+    // every known swarm peer keyed by packed IPv4/port with bad/active/seed
+    // state and connect backoff.
+    private final PeerTable peerTable = new PeerTable();
     private final ConcurrentLinkedQueue<TrackerClient.Peer> goodPeers = new ConcurrentLinkedQueue<>();
-    private final Set<String> activeConnections = ConcurrentHashMap.newKeySet();
+    // Peers on our own network deliver at LAN speed: dialed before anyone else
+    private final ConcurrentLinkedQueue<TrackerClient.Peer> lanPeers = new ConcurrentLinkedQueue<>();
+    // Seeds that dialed us, counted only while their connection lasts: they
+    // come from ephemeral ports, so the table can't tell a reconnect apart
+    private final Set<PeerSession> incomingSeeds = ConcurrentHashMap.newKeySet();
+    private long lastBadPeerReset = 0;
+
+    // Connection racing: many non-blocking connects at once, first handshakes win
+    private static final int HALF_OPEN_LIMIT = 64;
+    // Handshake reserved bytes: extension protocol (BEP 10) and Fast Extension (BEP 6) bits;
+    // v2 and hybrid torrents add the v2 bit (BEP 52), see handshakeReserved()
+    private static final byte[] HANDSHAKE_RESERVED = { 0, 0, 0, 0, 0, 0x10, 0, 0x04 };
+    // Fast Extension sets a peer may send us; anything beyond is ignored
+    private static final int MAX_ALLOWED_FAST = 32;
+    private static final int MAX_SUGGESTED = 32;
+    // v2 blocks that may fail their hash in one piece before the peer is dropped
+    private static final int MAX_BAD_BLOCKS = 8;
+    // How long the hashes may lag behind the last block before the piece is checked whole
+    private static final long HASH_REPLY_TIMEOUT_MS = 5000;
+    // Largest HASHES payload we read: a full request plus its proof
+    private static final int MAX_HASHES_LEN = 48 + (MerkleHashes.MAX_REQUEST_HASHES + 64) * MerkleHashes.HASH_SIZE;
+    // Larger extension messages are skipped unread
+    private static final int MAX_EXTENDED_LEN = 64 * 1024;
+    private static final long CONNECT_RETRY_DELAY_MS = 30_000;
+    private ConnectionEstablisher establisher;
+    // Tracker announces; discovered peers stream into peerTable
+    private PeerDiscovery discovery;
+    private final Object discoveryLock = new Object();
+    // Metadata fetch in progress (guarded by discoveryLock), so new peers
+    // can join it and stop() can abort it
+    private static final int MAX_METADATA_PEERS = 100;
+    private volatile MetadataSwarm metadataSwarm;
+    private int metadataAttempts = 0;
+    // Connection that delivered the info dict, kept open for the piece engine
+    private PeerConnection metadataPeer;
+    private TrackerClient.Peer metadataPeerAddr;
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+
+    // Adaptive pool: the controller moves activeLimit, workers follow it
+    private ConnectionPoolController poolController;
+    private volatile int activeLimit;
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final AtomicInteger incomingActive = new AtomicInteger();
+    private final AtomicLong connectAttempts = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private int nextWorkerIdx = 0;
+
+    // Every handshaken connection (outgoing and incoming), so completed pieces
+    // can be announced with HAVE to all of them
+    private final Set<PeerSession> liveSessions = ConcurrentHashMap.newKeySet();
+    // Subset owned by outgoing workers, which the pool controller may retire
+    private final Set<PeerSession> workerSessions = ConcurrentHashMap.newKeySet();
 
     // Upload state
     private long uploadedBytes = 0;
@@ -55,6 +121,8 @@ public class TorrentDownloader implements Runnable {
     private long lastUlSpeedCheckTime = 0;
     private double smoothedUlSpeed = 0;
     private volatile ServerSocket peerServer;
+    // Takes incoming uTP connections while this torrent holds the listen port
+    private volatile Consumer<UtpSocket> utpAcceptor;
     private static volatile int listenPort = 6881;
 
     /** Set the peer listen port (called from settings). */
@@ -67,6 +135,32 @@ public class TorrentDownloader implements Runnable {
         return listenPort;
     }
 
+    // Global cap on connections per torrent; the engine sizes itself below this
+    private static volatile int maxConnectionsCap = 200;
+
+    /** Set the per-torrent connection cap (called from settings). */
+    public static void setMaxConnections(int max) {
+        if (max >= ConnectionPoolController.MIN_CONNECTIONS)
+            maxConnectionsCap = max;
+    }
+
+    public static int getMaxConnections() {
+        return maxConnectionsCap;
+    }
+
+    // Pieces still to fetch; shared by outgoing workers and incoming connections
+    private final BlockingQueue<Integer> pieceQueue = new LinkedBlockingQueue<>();
+
+    // Peer cache: peers that delivered data are remembered per torrent so a
+    // resume can dial them before any tracker answers
+    private static final int CACHED_PEERS_TO_LOAD = 50;
+    private DatabaseService database;
+    private final ConcurrentHashMap<TrackerClient.Peer, Long> deliveredBytes = new ConcurrentHashMap<>();
+
+    // HTTP mirrors from the magnet's ws= and the info dict's url-list (BEP 19)
+    private static final int WEB_SEED_WORKERS = 2;
+    private final List<WebSeed> webSeeds = new ArrayList<>();
+
     // Disk I/O pool — don't block network threads waiting for disk
     private final ExecutorService diskPool = Executors.newFixedThreadPool(2);
 
@@ -80,6 +174,11 @@ public class TorrentDownloader implements Runnable {
         this.selectedFiles = selectedFiles;
     }
 
+    /** Where to persist and load the per-torrent peer cache; optional. */
+    public void setDatabase(DatabaseService database) {
+        this.database = database;
+    }
+
     public void pause() {
         paused = true;
     }
@@ -90,6 +189,9 @@ public class TorrentDownloader implements Runnable {
 
     public void stop() {
         stopped = true;
+        MetadataSwarm swarm = metadataSwarm;
+        if (swarm != null)
+            swarm.cancel();
         diskPool.shutdownNow();
     }
 
@@ -98,19 +200,50 @@ public class TorrentDownloader implements Runnable {
         try {
             updateStatus("Connecting to trackers...");
 
-            // 1. Get peers from trackers
-            List<TrackerClient.Peer> peers = getPeers();
-            if (peers.isEmpty() || stopped) {
-                updateStatus("No peers found");
-                return;
-            }
+            // 0. Peers that served this torrent before are dialed first, while
+            // trackers are still being asked
+            loadCachedPeers();
+
+            // 1. Start tracker announces and a DHT lookup; peers stream into the peer table
+            // (and the metadata fetch) as each source answers
+            discovery = new PeerDiscovery(magnet.getInfoHash(), collectTrackers(), this::onPeerDiscovered,
+                    new PeerDiscovery.TransferStats() {
+                        public long downloaded() {
+                            synchronized (TorrentDownloader.this) {
+                                return downloadedBytes;
+                            }
+                        }
 
-            updateStatus("Fetching metadata...");
+                        public long uploaded() {
+                            synchronized (TorrentDownloader.this) {
+                                return uploadedBytes;
+                            }
+                        }
+
+                        public long left() {
+                            return bytesLeft();
+                        }
+                    }, database);
+            discovery.useDht(DhtNode.shared(), true);
+            discovery.useLocalDiscovery(LocalPeerDiscovery.shared());
+            CompletableFuture<Void> firstRound = discovery.announce();
+            discovery.scrape();
+            firstRound.thenRun(() -> {
+                System.out.println("Download: found " + peerTable.size() + " peers for download.");
+                publishPeerCount();
+            });
 
-            // 2. Fetch full info dictionary
-            byte[] infoDict = fetchInfoDict(peers);
+            // 2. Fetch full info dictionary (the preview or an earlier run
+            // usually left it in the cache)
+            byte[] infoDict = MetadataCache.get(magnet.getInfoHash());
+            if (infoDict != null) {
+                System.out.println("Using cached metadata (" + infoDict.length + " bytes).");
+            } else {
+                updateStatus("Fetching metadata...");
+                infoDict = fetchInfoDict(firstRound);
+            }
             if (infoDict == null || stopped) {
-                updateStatus("Failed to get metadata");
+                updateStatus(peerTable.size() == 0 && !stopped ? "No peers found" : "Failed to get metadata");
                 return;
             }
 
@@ -132,15 +265,16 @@ public class TorrentDownloader implements Runnable {
 
             // 6. Download pieces
             updateStatus("Downloading");
-            downloadPieces(peers);
+            downloadPieces();
 
             if (stopped) {
                 updateStatus("Stopped");
             } else if (isComplete()) {
                 // Rename .temp files
                 finishDownload();
+                discovery.completed();
                 updateStatus("Completed");
-                Platform.runLater(() -> session.progressProperty().set(1.0));
+                runOnFx(() -> session.progressProperty().set(1.0));
             }
 
         } catch (Exception e) {
@@ -148,218 +282,268 @@ public class TorrentDownloader implements Runnable {
             e.printStackTrace();
             updateStatus("Error: " + e.getMessage());
         } finally {
+            saveDeliveredPeers();
+            if (discovery != null)
+                discovery.close();
+            // Metadata connection that never made it to the piece engine
+            synchronized (this) {
+                closeQuietly(metadataPeer);
+                metadataPeer = null;
+            }
             // Shutdown peer server
             if (peerServer != null)
                 try {
                     peerServer.close();
                 } catch (IOException ignored) {
                 }
+            UtpManager utp = UtpManager.shared();
+            if (utp != null && utpAcceptor != null)
+                utp.releaseAcceptor(utpAcceptor);
         }
     }
 
-    private List<TrackerClient.Peer> getPeers() {
-        List<TrackerClient.Peer> allPeers = Collections.synchronizedList(new ArrayList<>());
-        List<String> allTrackers = new ArrayList<>();
-        if (magnet.getTrackers() != null)
-            allTrackers.addAll(magnet.getTrackers());
-        if (extraTrackers != null) {
-            for (String tr : extraTrackers) {
-                if (tr != null && !tr.isEmpty() && !allTrackers.contains(tr))
-                    allTrackers.add(tr);
+    /** Magnet trackers first, then the user's extra ones (BEP 12 tiers). */
+    private List<List<String>> collectTrackers() {
+        return PeerDiscovery.tiers(magnet.getTrackers(), extraTrackers);
+    }
+
+    /**
+     * Peers from every source stream in here one at a time. Every peer joins
+     * the peer table right away (the engine dials from it, LAN peers first),
+     * and while metadata is still being fetched it is also handed to the
+     * metadata swarm.
+     */
+    private void onPeerDiscovered(TrackerClient.Peer peer) {
+        synchronized (discoveryLock) {
+            if (!peerTable.add(peer))
+                return;
+            if (PeerTable.isLocal(peer.key))
+                lanPeers.add(peer);
+            if (metadataSwarm != null && metadataAttempts < MAX_METADATA_PEERS) {
+                metadataAttempts++;
+                metadataSwarm.addPeer(peer);
             }
         }
+    }
 
-        ExecutorService executor = Executors.newFixedThreadPool(Math.min(allTrackers.size(), 40));
-        for (String tr : allTrackers) {
-            if (stopped)
-                break;
-            if (tr.startsWith("wss://"))
-                continue;
-            executor.submit(() -> {
-                if (stopped)
-                    return;
-                try {
-                    List<TrackerClient.Peer> peers;
-                    if (tr.startsWith("udp://")) {
-                        peers = UdpTrackerClient.getPeers(tr, magnet.getInfoHash());
-                    } else {
-                        peers = TrackerClient.getPeers(tr, magnet.getInfoHash());
-                    }
-                    if (peers != null) {
-                        synchronized (allPeers) {
-                            for (TrackerClient.Peer p : peers) {
-                                boolean exists = allPeers.stream()
-                                        .anyMatch(e -> e.ip.equals(p.ip) && e.port == p.port);
-                                if (!exists)
-                                    allPeers.add(p);
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    // Ignore tracker errors
-                }
-            });
-        }
-        executor.shutdown();
-        try {
-            executor.awaitTermination(30, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
+    private void loadCachedPeers() {
+        if (database == null)
+            return;
+        List<PeerRecord> cached = database.loadPeers(magnet.getHexInfoHash(), CACHED_PEERS_TO_LOAD);
+        for (PeerRecord r : cached) {
+            TrackerClient.Peer peer = new TrackerClient.Peer(r.getIp(), r.getPort());
+            if (peerTable.add(peer))
+                goodPeers.add(peer); // nextCandidate() takes these before anything else
         }
-        executor.shutdownNow();
-
-        System.out.println("Download: found " + allPeers.size() + " peers for download.");
-        int peerCount = allPeers.size();
-        Platform.runLater(() -> session.peersProperty().set(peerCount));
-        return allPeers;
+        if (!cached.isEmpty())
+            System.out.println("Peer cache: " + cached.size() + " known-good peers to dial first.");
     }
 
-    private byte[] fetchInfoDict(List<TrackerClient.Peer> peers) {
-        Collections.shuffle(peers);
-        // Cap attempts — no point trying hundreds of peers if none respond
-        int maxAttempts = Math.min(peers.size(), 100);
-        int batchSize = 20;
-        int threads = Math.min(batchSize, 10);
-
-        System.out.println(
-                "Fetching metadata: trying up to " + maxAttempts + " peers in batches of " + batchSize + "...");
-
-        for (int batchStart = 0; batchStart < maxAttempts && !stopped; batchStart += batchSize) {
-            int batchEnd = Math.min(batchStart + batchSize, maxAttempts);
-            List<TrackerClient.Peer> batch = peers.subList(batchStart, batchEnd);
+    /** Persist bytes delivered per peer since the last save (adds to stored scores). */
+    private void saveDeliveredPeers() {
+        if (database == null || deliveredBytes.isEmpty())
+            return;
+        List<PeerRecord> records = new ArrayList<>();
+        for (TrackerClient.Peer peer : new ArrayList<>(deliveredBytes.keySet())) {
+            Long bytes = deliveredBytes.remove(peer);
+            if (bytes != null && bytes > 0)
+                records.add(new PeerRecord(peer.ip, peer.port, bytes));
+        }
+        database.savePeers(magnet.getHexInfoHash(), records);
+    }
 
-            System.out.println("  Metadata batch " + (batchStart / batchSize + 1) +
-                    ": peers " + (batchStart + 1) + "-" + batchEnd + " of " + maxAttempts);
+    /** Bytes of selected files still missing, or -1 before metadata is known. */
+    private long bytesLeft() {
+        boolean[] needed = neededPieces;
+        if (needed == null || completedPieces == null)
+            return -1;
+        long left = 0;
+        for (int i = 0; i < numPieces; i++) {
+            if (needed[i] && !completedPieces[i])
+                left += getPieceSize(i);
+        }
+        return left;
+    }
 
-            ExecutorService executor = Executors.newFixedThreadPool(Math.min(batch.size(), threads));
-            List<Future<byte[]>> futures = new ArrayList<>();
+    private void publishPeerCount() {
+        int peerCount = peerTable.size();
+        runOnFx(() -> session.peersProperty().set(peerCount));
+    }
 
-            for (TrackerClient.Peer peer : batch) {
-                if (stopped)
-                    break;
-                futures.add(executor.submit(() -> {
-                    if (stopped)
-                        return null;
-                    try (PeerConnection conn = new PeerConnection(peer.ip, peer.port,
-                            magnet.getInfoHash(), TrackerClient.getPeerId())) {
-                        conn.connect();
-                        return conn.fetchMetadata();
-                    } catch (Exception e) {
-                        return null;
-                    }
-                }));
-            }
-            executor.shutdown();
+    private byte[] fetchInfoDict(CompletableFuture<Void> firstRound) {
+        System.out.println("Fetching metadata: trying up to " + MAX_METADATA_PEERS + " peers as trackers answer...");
 
-            // Wait for this batch, checking for success
-            byte[] metadata = null;
-            try {
-                while (!executor.isTerminated() && !stopped) {
-                    for (Future<byte[]> f : futures) {
-                        if (f.isDone()) {
-                            try {
-                                byte[] res = f.get();
-                                if (res != null) {
-                                    metadata = res;
-                                    break;
-                                }
-                            } catch (Exception e) {
-                            }
-                        }
-                    }
-                    if (metadata != null)
-                        break;
-                    if (futures.stream().allMatch(Future::isDone))
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        MetadataSwarm swarm = new MetadataSwarm(magnet.getInfoHash(), executor, true);
+        try {
+            // Peers found before now go in at once; later ones via onPeerDiscovered
+            synchronized (discoveryLock) {
+                metadataSwarm = swarm;
+                List<TrackerClient.Peer> known = peerTable.snapshot();
+                Collections.shuffle(known);
+                for (TrackerClient.Peer peer : known) {
+                    if (metadataAttempts >= MAX_METADATA_PEERS)
                         break;
-                    Thread.sleep(200);
+                    metadataAttempts++;
+                    swarm.addPeer(peer);
                 }
-            } catch (Exception e) {
             }
-            executor.shutdownNow();
+            // Once the trackers are done, running out of peers means failure
+            firstRound.thenRun(swarm::noMorePeers);
+            if (stopped)
+                swarm.cancel();
 
+            // Completes on the first verified dict; stop() cancels it
+            byte[] metadata = swarm.result().get();
             if (metadata != null) {
+                MetadataCache.put(magnet.getInfoHash(), metadata);
+                // This peer is proven alive — keep it for the piece engine
+                PeerConnection winner = swarm.takeWinner();
+                if (winner != null && !keepMetadataPeer(winner, swarm.getWinnerPeer()))
+                    closeQuietly(winner);
                 System.out.println("Metadata fetched successfully (" + metadata.length + " bytes).");
                 return metadata;
             }
+        } catch (InterruptedException | ExecutionException e) {
+            // Fall through to failure
+        } finally {
+            synchronized (discoveryLock) {
+                metadataSwarm = null;
+            }
+            swarm.cancel();
+            executor.shutdownNow();
         }
 
-        System.out.println("Failed to fetch metadata from " + maxAttempts + " peers.");
+        System.out.println("Failed to fetch metadata from " + metadataAttempts + " peers.");
         return null;
     }
 
-    @SuppressWarnings("unchecked")
+    /** Claim the first successful metadata connection for handover; false if one is already held. */
+    private synchronized boolean keepMetadataPeer(PeerConnection conn, TrackerClient.Peer peer) {
+        if (metadataPeer != null || stopped)
+            return false;
+        metadataPeer = conn;
+        metadataPeerAddr = peer;
+        return true;
+    }
+
+    private static void closeQuietly(AutoCloseable c) {
+        if (c == null)
+            return;
+        try {
+            c.close();
+        } catch (Exception ignored) {
+        }
+    }
+
     private boolean parseInfoDict(byte[] data) {
         try {
-            Object decoded = BencodeParser.decode(data);
-            if (!(decoded instanceof Map))
+            BencodeParser.Value info = BencodeParser.parse(data);
+            if (!info.isDictionary())
                 return false;
-            Map<String, Object> info = (Map<String, Object>) decoded;
 
             // Piece length
-            if (info.containsKey("piece length")) {
-                pieceLength = ((Long) info.get("piece length")).intValue();
-            } else {
+            pieceLength = (int) info.getLong("piece length", -1);
+            if (pieceLength <= 0) {
                 System.err.println("No piece length in info dict");
                 return false;
             }
 
-            // Pieces (concatenated SHA1 hashes, 20 bytes each)
-            if (info.containsKey("pieces")) {
-                String piecesStr = (String) info.get("pieces");
-                byte[] piecesRaw = piecesStr.getBytes(StandardCharsets.ISO_8859_1);
-                int numPieces = piecesRaw.length / 20;
-                pieceHashes = new byte[numPieces][];
-                for (int i = 0; i < numPieces; i++) {
-                    pieceHashes[i] = new byte[20];
-                    System.arraycopy(piecesRaw, i * 20, pieceHashes[i], 0, 20);
-                }
+            // v2 file tree and merkle roots (BEP 52); a hybrid torrent has
+            // both these and the v1 pieces
+            merkle = MerkleHashes.parse(info);
+
+            // Pieces (concatenated SHA1 hashes, 20 bytes each) — a view
+            // straight into the info dict, never copied
+            BencodeParser.Value pieces = info.get("pieces");
+            if (pieces != null && pieces.isString() && pieces.asBuffer().remaining() % 20 == 0) {
+                pieceHashes = pieces.asBuffer();
+                numPieces = pieceHashes.remaining() / 20;
+            } else if (merkle != null) {
+                pieceHashes = null;
+                numPieces = merkle.numPieces();
             } else {
                 System.err.println("No pieces in info dict");
                 return false;
             }
+            if (merkle != null && pieceHashes != null && merkle.numPieces() != numPieces) {
+                // Hybrid whose v1 pieces don't line up with its files: use v1 alone
+                System.err.println("v1 and v2 piece counts differ, ignoring v2 hashes");
+                merkle = null;
+            }
 
             // Torrent name
-            torrentName = info.containsKey("name") ? (String) info.get("name") : "Unknown";
+            torrentName = info.getString("name", "Unknown");
 
             // File layout
             totalSize = 0;
             fileEntries.clear();
 
-            if (info.containsKey("length")) {
+            BencodeParser.Value files = info.get("files");
+            boolean multiFile = !info.containsKey("length");
+            if (pieceHashes == null) {
+                // v2 only: every file starts on a piece boundary
+                List<MerkleHashes.FileNode> nodes = merkle.files();
+                multiFile = nodes.size() > 1 || !nodes.get(0).path.equals(torrentName);
+                for (MerkleHashes.FileNode f : nodes) {
+                    fileEntries.add(new FileEntry(f.path, f.length, f.offset));
+                    totalSize += f.length;
+                }
+            } else if (info.containsKey("length")) {
                 // Single file mode
-                long length = (Long) info.get("length");
+                long length = info.getLong("length", 0);
                 totalSize = length;
                 fileEntries.add(new FileEntry(torrentName, length, 0));
-            } else if (info.containsKey("files")) {
+            } else if (files != null && files.isList()) {
                 // Multi-file mode
-                List<Object> fileList = (List<Object>) info.get("files");
                 long offset = 0;
-                for (Object obj : fileList) {
-                    Map<String, Object> fileMap = (Map<String, Object>) obj;
-                    long length = (Long) fileMap.get("length");
-                    List<Object> pathList = (List<Object>) fileMap.get("path");
+                for (BencodeParser.Value fileMap : files.list()) {
+                    long length = fileMap.getLong("length", 0);
+                    List<BencodeParser.Value> pathList = fileMap.get("path").list();
 
                     StringBuilder pathSb = new StringBuilder();
                     for (int i = 0; i < pathList.size(); i++) {
                         if (i > 0)
                             pathSb.append(File.separator);
-                        pathSb.append(String.valueOf(pathList.get(i)));
+                        pathSb.append(pathList.get(i).asString());
                     }
 
-                    fileEntries.add(new FileEntry(pathSb.toString(), length, offset));
+                    FileEntry entry = new FileEntry(pathSb.toString(), length, offset);
+                    // Padding that aligns a hybrid torrent's files to pieces (BEP 47):
+                    // all zeros, never written to disk
+                    entry.skip = entry.pad = fileMap.getString("attr", "").indexOf('p') >= 0;
+                    fileEntries.add(entry);
                     offset += length;
                 }
                 totalSize = offset;
             }
 
-            completedPieces = new boolean[pieceHashes.length];
-
-            Platform.runLater(() -> {
+            completedPieces = new boolean[numPieces];
+            piecesOnDisk = new boolean[numPieces];
+
+            // Web seeds: a single URL or a list of them
+            Set<String> seedUrls = new LinkedHashSet<>(magnet.getWebSeeds());
+            BencodeParser.Value urlList = info.get("url-list");
+            if (urlList != null && urlList.isString())
+                seedUrls.add(urlList.asString());
+            else if (urlList != null && urlList.isList())
+                for (BencodeParser.Value u : urlList.list())
+                    if (u.isString())
+                        seedUrls.add(u.asString());
+            webSeeds.clear();
+            for (String url : seedUrls)
+                if (WebSeed.isSupported(url))
+                    webSeeds.add(new WebSeed(url, torrentName, multiFile));
+
+            runOnFx(() -> {
                 session.nameProperty().set(torrentName);
                 session.setTotalSize(totalSize);
             });
 
-            System.out.println("Parsed info: " + torrentName + ", " + pieceHashes.length +
-                    " pieces, piece length=" + pieceLength + ", total=" + totalSize);
+            System.out.println("Parsed info: " + torrentName + ", " + numPieces +
+                    " pieces, piece length=" + pieceLength + ", total=" + totalSize
+                    + (merkle == null ? "" : pieceHashes == null ? ", v2" : ", hybrid v1/v2")
+                    + (webSeeds.isEmpty() ? "" : ", " + webSeeds.size() + " web seeds"));
             return true;
         } catch (Exception e) {
             System.err.println("Error parsing info dict: " + e.getMessage());
@@ -381,6 +565,8 @@ public class TorrentDownloader implements Runnable {
         }
 
         for (FileEntry entry : fileEntries) {
+            if (entry.pad)
+                continue;
             // Filter by selection
             if (!selectedNames.isEmpty() && !selectedNames.contains(entry.path.replace(File.separator, "/"))) {
                 entry.skip = true;
@@ -397,7 +583,7 @@ public class TorrentDownloader implements Runnable {
 
     /** Mark which pieces overlap with at least one selected (non-skipped) file. */
     private void computeNeededPieces() {
-        neededPieces = new boolean[pieceHashes.length];
+        neededPieces = new boolean[numPieces];
         for (FileEntry entry : fileEntries) {
             if (entry.skip)
                 continue;
@@ -408,10 +594,15 @@ public class TorrentDownloader implements Runnable {
             }
         }
         int count = 0;
-        for (boolean b : neededPieces)
-            if (b)
+        pieceQueue.clear();
+        for (int i = 0; i < neededPieces.length; i++) {
+            if (neededPieces[i]) {
                 count++;
-        System.out.println("Needed pieces: " + count + " / " + pieceHashes.length);
+                if (!completedPieces[i])
+                    pieceQueue.add(i);
+            }
+        }
+        System.out.println("Needed pieces: " + count + " / " + numPieces);
     }
 
     // =====================================================================
@@ -420,358 +611,587 @@ public class TorrentDownloader implements Runnable {
     // many pieces through that single TCP session — just like qBittorrent.
     // =====================================================================
 
-    private void downloadPieces(List<TrackerClient.Peer> peers) {
-        int totalPieces = pieceHashes.length;
+    private void downloadPieces() {
         lastSpeedCheckTime = System.currentTimeMillis();
         lastSpeedCheckBytes = 0;
 
-        // Use a mutable, thread-safe peer list so re-announce can add more peers
-        List<TrackerClient.Peer> livePeers = new java.util.concurrent.CopyOnWriteArrayList<>(peers);
-
-        // Decouple worker pool size from initial peer count, hardcode to 60 for better
-        // performance.
-        int maxConnections = 60;
-        ExecutorService peerPool = Executors.newFixedThreadPool(maxConnections);
-        BlockingQueue<Integer> pieceQueue = new LinkedBlockingQueue<>();
-        for (int i = 0; i < totalPieces; i++) {
-            if (neededPieces[i] && !completedPieces[i]) {
-                pieceQueue.add(i);
-            }
+        // Pool size is driven by measured throughput, bounded by the global cap
+        poolController = new ConnectionPoolController(maxConnectionsCap);
+        activeLimit = poolController.getLimit();
+        try {
+            establisher = new ConnectionEstablisher(magnet.getInfoHash(),
+                    TrackerClient.getPeerId().getBytes(StandardCharsets.US_ASCII), handshakeReserved(),
+                    HALF_OPEN_LIMIT, this::onConnectFailed, UtpManager.shared());
+        } catch (IOException e) {
+            updateStatus("Error: " + e.getMessage());
+            return;
         }
-
-        Collections.shuffle(livePeers);
+        ExecutorService peerPool = Executors.newCachedThreadPool();
         List<Future<?>> workerFutures = new ArrayList<>();
+        List<Future<?>> webSeedFutures = new ArrayList<>();
         System.out.println("Starting download: " + pieceQueue.size() + " pieces, "
-                + livePeers.size() + " peers, " + maxConnections + " workers");
+                + peerTable.size() + " peers, " + activeLimit + " initial workers (cap " + maxConnectionsCap + ")");
+
+        // The peer that served metadata is proven responsive: it goes first,
+        // with no new TCP or BT handshake
+        synchronized (this) {
+            if (metadataPeer != null) {
+                peerTable.add(metadataPeerAddr);
+                peerTable.tryActivate(metadataPeerAddr.key);
+                establisher.offer(metadataPeer, metadataPeerAddr);
+                metadataPeer = null;
+            }
+        }
+
+        // Start racing connects right away; workers take whoever handshakes first
+        topUpConnections();
+        spawnWorkers(peerPool, workerFutures);
+        // Web seeds pull pieces alongside the peers, from the same queue
+        for (WebSeed seed : webSeeds)
+            for (int i = 0; i < WEB_SEED_WORKERS; i++)
+                webSeedFutures.add(peerPool.submit(() -> runWebSeed(seed)));
+
+        // Monitor progress + scheduled announces for fresh peers
+        int lastPeerCount = -1;
+        long lastPeerSave = System.currentTimeMillis();
+        while (!stopped) {
+            boolean allDone = workerFutures.stream().allMatch(Future::isDone)
+                    && webSeedFutures.stream().allMatch(Future::isDone);
+            updateSpeed();
+            updateUploadSpeed();
+            flushHaves();
+            sendPex();
+            if (allDone || (pieceQueue.isEmpty() && isComplete()))
+                break;
+            adjustPoolSize();
+            spawnWorkers(peerPool, workerFutures);
+            topUpConnections();
+
+            // Regular announces on each tracker's own interval
+            discovery.tick();
+            if (System.currentTimeMillis() - lastPeerSave > 60_000) {
+                lastPeerSave = System.currentTimeMillis();
+                saveDeliveredPeers();
+            }
+            if (peerTable.size() != lastPeerCount) {
+                lastPeerCount = peerTable.size();
+                publishPeerCount();
+            }
+
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        peerPool.shutdownNow();
+        establisher.close();
+        diskPool.shutdown();
+        try {
+            diskPool.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
 
-        // Each worker gets a PERSISTENT connection to a peer
-        for (int w = 0; w < maxConnections && w < livePeers.size(); w++) {
-            final int workerIdx = w;
-            workerFutures.add(peerPool.submit(() -> {
-                int peerIdx = workerIdx;
-                int consecutiveFailures = 0;
-                Random rng = new Random();
+    /**
+     * One active download slot: takes whichever peer the establisher finished
+     * handshaking first and runs the wire protocol on it until it is used up.
+     */
+    private void runWorker(int workerIdx) {
+        while (!stopped && !pieceQueue.isEmpty()) {
+            if (retireIfOverLimit())
+                return;
 
-                // Stagger worker starts to avoid thundering herd
+            // Handle pause
+            while (paused && !stopped) {
                 try {
-                    Thread.sleep(workerIdx * 100L);
+                    Thread.sleep(500);
                 } catch (InterruptedException e) {
                     return;
                 }
+            }
+            if (stopped)
+                return;
 
-                while (!stopped && !pieceQueue.isEmpty()) {
-                    // Handle pause
-                    while (paused && !stopped) {
-                        try {
-                            Thread.sleep(500);
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-                    }
-                    if (stopped)
-                        return;
-
-                    // === Exponential backoff on consecutive failures ===
-                    if (consecutiveFailures > 3) {
-                        int delay = Math.min(1000 * (1 << Math.min(consecutiveFailures - 3, 5)), 30000);
-                        delay += rng.nextInt(1000); // jitter
-                        try {
-                            Thread.sleep(delay);
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-                    }
+            ConnectionEstablisher.Established est;
+            try {
+                est = establisher.take(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (est == null)
+                continue;
 
-                    // === Smart peer selection ===
-                    TrackerClient.Peer peer = null;
-                    while (true) {
-                        peer = goodPeers.poll();
-                        if (peer != null) {
-                            String key = peer.ip + ":" + peer.port;
-                            if (activeConnections.add(key)) {
-                                break;
-                            }
-                        } else {
-                            break;
-                        }
-                    }
+            final TrackerClient.Peer currentPeer = est.peer;
+            busyWorkers.incrementAndGet();
+            try (Socket socket = est.socket) {
+                socket.setSoTimeout(30000); // Increased from 15s to 30s to tolerate slow peers
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), 128 * 1024));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+
+                // === Bitfield + unchoke first, then hand over to the shared engine ===
+                PeerSession session = new PeerSession(currentPeer, socket, in, out, numPieces);
+                if (est.origin != null)
+                    applyHandoverState(session, est.origin);
+                else
+                    session.fastExtension = supportsFastExtension(est.reserved);
+                session.v2Hashes = servesV2Hashes(est.reserved);
+                synchronized (out) {
+                    sendBitfieldAndUnchoke(out, session.fastExtension);
+                    if (supportsExtensions(est.reserved))
+                        sendExtensionHandshake(out);
+                }
+                liveSessions.add(session);
+                workerSessions.add(session);
 
-                    if (peer == null) {
-                        int tried = 0;
-                        int listSize = livePeers.size();
-                        while (tried < listSize) {
-                            TrackerClient.Peer candidate = livePeers.get(peerIdx % listSize);
-                            peerIdx++;
-                            String key = candidate.ip + ":" + candidate.port;
-                            if (!badPeers.contains(key) && activeConnections.add(key)) {
-                                peer = candidate;
-                                break;
-                            }
-                            tried++;
-                        }
-                        if (peer == null) {
-                            badPeers.clear();
-                            System.out.println("Worker " + workerIdx + " cleared bad peer list, retrying...");
-                            try {
-                                Thread.sleep(5000 + rng.nextInt(3000));
-                            } catch (InterruptedException e) {
-                                return;
-                            }
-                            continue;
-                        }
-                    }
+                int piecesReceived = downloadFrom(session, "Worker " + workerIdx);
 
-                    final TrackerClient.Peer currentPeer = peer;
-                    boolean wasUseful = false;
-
-                    // Establish ONE persistent connection to this peer
-                    try (Socket socket = new Socket(ProxyConfig.getPeerProxy())) {
-                        socket.connect(new InetSocketAddress(currentPeer.ip, currentPeer.port), 10000);
-                        socket.setSoTimeout(30000); // Increased from 15s to 30s to tolerate slow peers
-                        socket.setTcpNoDelay(true);
-                        socket.setReceiveBufferSize(256 * 1024);
-                        socket.setSendBufferSize(64 * 1024);
-
-                        DataInputStream in = new DataInputStream(
-                                new BufferedInputStream(socket.getInputStream(), 128 * 1024));
-                        DataOutputStream out = new DataOutputStream(
-                                new BufferedOutputStream(socket.getOutputStream()));
-
-                        // === Handshake (once per connection) ===
-                        byte[] protocol = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
-                        out.writeByte(19);
-                        out.write(protocol);
-                        out.write(new byte[8]); // reserved
-                        out.write(magnet.getInfoHash());
-                        out.write(TrackerClient.getPeerId().getBytes(StandardCharsets.US_ASCII));
-                        out.flush();
+                // Peer was useful — put it back in the good list for reconnection
+                if (piecesReceived > 0) {
+                    goodPeers.add(currentPeer);
+                }
+            } catch (SocketTimeoutException e) {
+                // Slow peer — don't permanently mark as bad
+                System.err.println("Worker " + workerIdx + " timeout " + currentPeer + " - " + e.getMessage());
+            } catch (Exception e) {
+                // Protocol errors — mark peer as bad
+                peerTable.markBad(currentPeer.key);
+                String msg = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                System.err.println("Worker " + workerIdx + " failed " + currentPeer + " - " + msg);
+            } finally {
+                liveSessions.removeIf(s -> s.peer == currentPeer);
+                workerSessions.removeIf(s -> s.peer == currentPeer);
+                if (incomingSeeds.removeIf(s -> s.peer == currentPeer))
+                    updateSeedCount();
+                peerTable.deactivate(currentPeer.key);
+                busyWorkers.decrementAndGet();
+            }
+            topUpConnections();
+        }
+        workerCount.decrementAndGet();
+    }
 
-                        // Read handshake response
-                        int pstrlen = in.readUnsignedByte();
-                        if (pstrlen != 19) {
-                            badPeers.add(currentPeer.ip + ":" + currentPeer.port);
-                            continue;
-                        }
-                        in.readNBytes(19); // protocol string
-                        in.readNBytes(8); // reserved
-                        byte[] peerInfoHash = new byte[20];
-                        in.readFully(peerInfoHash);
-                        if (!Arrays.equals(magnet.getInfoHash(), peerInfoHash)) {
-                            badPeers.add(currentPeer.ip + ":" + currentPeer.port);
-                            continue;
-                        }
-                        in.readNBytes(20); // peerId
-
-                        // === Send interested + bitfield + unchoke ===
-                        out.writeInt(1);
-                        out.writeByte(2); // interested
-                        sendBitfieldAndUnchoke(out);
-
-                        // === Wait for unchoke (once per connection) ===
-                        boolean unchoked = false;
-                        long startTime = System.currentTimeMillis();
-                        boolean[] peerHasPiece = new boolean[totalPieces];
-                        while (System.currentTimeMillis() - startTime < 15000 && !unchoked && !stopped) {
-                            int len = in.readInt();
-                            if (len == 0)
-                                continue;
-                            byte msgId = in.readByte();
-                            if (msgId == 1) {
-                                unchoked = true;
-                            } else if (msgId == 4) {
-                                int pIdx = in.readInt();
-                                if (pIdx >= 0 && pIdx < totalPieces) {
-                                    peerHasPiece[pIdx] = true;
-                                }
-                            } else if (msgId == 5) {
-                                byte[] bitfield = new byte[len - 1];
-                                in.readFully(bitfield);
-                                for (int i = 0; i < totalPieces; i++) {
-                                    if ((bitfield[i / 8] & (1 << (7 - (i % 8)))) != 0) {
-                                        peerHasPiece[i] = true;
-                                    }
-                                }
-                            } else {
-                                skipBytes(in, len - 1);
-                            }
-                        }
-                        if (!unchoked)
-                            continue;
-
-                        System.out.println("Worker " + workerIdx + " connected to " +
-                                currentPeer.ip + ":" + currentPeer.port + " - unchoked, downloading...");
-                        activeSeedCount.add(currentPeer.ip + ":" + currentPeer.port);
-                        updateSeedCount();
-
-                        // === Download MANY pieces through this ONE connection ===
-                        while (!stopped && !pieceQueue.isEmpty()) {
-                            while (paused && !stopped) {
-                                try {
-                                    out.writeInt(0);
-                                    out.flush();
-                                    Thread.sleep(5000);
-                                } catch (Exception e) {
-                                    break;
-                                }
-                            }
-                            if (stopped)
-                                return;
-
-                            Integer pieceIndex = null;
-                            for (Integer p : pieceQueue) {
-                                if (peerHasPiece[p]) {
-                                    if (pieceQueue.remove(p)) {
-                                        pieceIndex = p;
-                                        break;
-                                    }
-                                }
-                            }
+    /** Carry over what the metadata connection already learned about the peer. */
+    private void applyHandoverState(PeerSession session, PeerConnection origin) {
+        byte[] bitfield = origin.getRemoteBitfield();
+        if (bitfield != null) {
+            for (int i = 0; i < numPieces && i / 8 < bitfield.length; i++) {
+                if ((bitfield[i / 8] & (1 << (7 - (i % 8)))) != 0)
+                    session.peerHasPiece[i] = true;
+            }
+        }
+        for (int idx : origin.getRemoteHaves()) {
+            if (idx >= 0 && idx < numPieces)
+                session.peerHasPiece[idx] = true;
+        }
+        session.remoteUnchoked = origin.isRemoteUnchoked();
+        session.remotePexId = origin.getRemotePexId();
+        System.out.println("Reusing metadata connection to " + session.peer + " for piece download");
+    }
 
-                            if (pieceIndex == null) {
-                                break;
-                            }
+    /** Give up this worker's slot if the pool is above its current limit. */
+    private boolean retireIfOverLimit() {
+        while (true) {
+            int n = workerCount.get();
+            if (n <= activeLimit)
+                return false;
+            if (workerCount.compareAndSet(n, n - 1))
+                return true;
+        }
+    }
 
-                            try {
-                                byte[] pieceData = requestPiece(in, out, pieceIndex, peerHasPiece);
-                                if (pieceData != null && verifyPiece(pieceIndex, pieceData)) {
-                                    // Write to disk asynchronously — don't block the network
-                                    final int idx = pieceIndex;
-                                    final byte[] data = pieceData;
-                                    completedPieces[pieceIndex] = true;
-                                    synchronized (this) {
-                                        downloadedBytes += pieceData.length;
-                                    }
-                                    diskPool.submit(() -> {
-                                        try {
-                                            writePieceToDisk(idx, data);
-                                        } catch (IOException ex) {
-                                            System.err.println("Disk write error: " + ex.getMessage());
-                                        }
-                                    });
-                                    updateProgress();
-                                    consecutiveFailures = 0;
-                                    wasUseful = true;
-                                } else {
-                                    pieceQueue.add(pieceIndex);
-                                    System.err.println("Piece " + pieceIndex + " from " +
-                                            currentPeer.ip + ":" + currentPeer.port +
-                                            (pieceData == null ? " - no data" : " - hash mismatch"));
-                                    break;
-                                }
-                            } catch (IOException e) {
-                                pieceQueue.add(pieceIndex);
-                                System.err.println("Piece " + pieceIndex + " connection lost: " + e.getMessage());
-                                break;
-                            }
-                        }
+    /** Start workers until the pool matches the controller's limit. */
+    private void spawnWorkers(ExecutorService peerPool, List<Future<?>> workerFutures) {
+        workerFutures.removeIf(Future::isDone);
+        while (workerCount.get() < activeLimit && !stopped) {
+            workerCount.incrementAndGet();
+            final int workerIdx = nextWorkerIdx++;
+            workerFutures.add(peerPool.submit(() -> runWorker(workerIdx)));
+        }
+    }
 
-                        // Peer was useful — put it back in the good list for reconnection
-                        if (wasUseful) {
-                            goodPeers.add(currentPeer);
-                        }
-                        consecutiveFailures = 0;
-
-                    } catch (java.net.SocketTimeoutException | java.net.ConnectException e) {
-                        // Timeout/refused — don't permanently mark as bad, just increment failures
-                        consecutiveFailures++;
-                        System.err.println("Worker " + workerIdx + " timeout " +
-                                currentPeer.ip + ":" + currentPeer.port + " - " + e.getMessage());
-                    } catch (Exception e) {
-                        consecutiveFailures++;
-                        // Protocol errors — mark peer as bad
-                        badPeers.add(currentPeer.ip + ":" + currentPeer.port);
-                        String msg = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
-                        System.err.println("Worker " + workerIdx + " failed " +
-                                currentPeer.ip + ":" + currentPeer.port + " - " + msg);
-                    } finally {
-                        activeConnections.remove(currentPeer.ip + ":" + currentPeer.port);
-                    }
+    /**
+     * Let the pool controller re-evaluate the connection limit. When it
+     * shrinks, idle workers retire on their own; if that is not enough the
+     * slowest transferring connections are asked to wind down.
+     */
+    private void adjustPoolSize() {
+        long bytes;
+        synchronized (this) {
+            bytes = downloadedBytes;
+        }
+        int cap = Math.max(ConnectionPoolController.MIN_CONNECTIONS, maxConnectionsCap - incomingActive.get());
+        // No point keeping more slots than the trackers say the swarm has peers
+        int swarm = discovery.swarmSize();
+        if (swarm > 0)
+            cap = Math.min(cap, Math.max(ConnectionPoolController.MIN_CONNECTIONS, swarm));
+        int newLimit = Math.min(cap, poolController.update(bytes, busyWorkers.get() + incomingActive.get(),
+                connectAttempts.get(), connectFailures.get()));
+        if (newLimit != activeLimit) {
+            System.out.println("Connection limit " + activeLimit + " -> " + newLimit
+                    + " (" + busyWorkers.get() + " active, " + incomingActive.get() + " incoming)");
+            activeLimit = newLimit;
+        }
+
+        int excess = workerCount.get() - activeLimit;
+        int idle = workerCount.get() - busyWorkers.get();
+        int toRetire = excess - idle;
+        if (toRetire <= 0)
+            return;
+        List<PeerSession> candidates = new ArrayList<>();
+        for (PeerSession s : workerSessions) {
+            if (!s.retireRequested)
+                candidates.add(s);
+        }
+        // LAN peers go last: a momentary lull doesn't make them worse than remote ones
+        candidates.sort(Comparator.comparing((PeerSession s) -> PeerTable.isLocal(s.peer.key))
+                .thenComparingDouble(PeerSession::averageRate));
+        for (int i = 0; i < toRetire && i < candidates.size(); i++) {
+            candidates.get(i).retireRequested = true;
+        }
+    }
+
+    /**
+     * Keep the establisher racing enough candidates to fill every idle slot.
+     * About twice as many peers as free slots are dialed so the fastest
+     * responders win, bounded by the half-open limit.
+     */
+    private synchronized void topUpConnections() {
+        if (establisher == null || stopped)
+            return;
+        int idleSlots = activeLimit - busyWorkers.get();
+        int want = Math.min(establisher.getHalfOpenLimit(), idleSlots * 2) - establisher.pendingCount();
+        while (want > 0) {
+            TrackerClient.Peer peer = nextCandidate();
+            if (peer == null) {
+                // Everyone is bad, busy or backing off — give bad peers another chance
+                long now = System.currentTimeMillis();
+                // Ask trackers for more (each one's min interval permitting)
+                discovery.requestMorePeers();
+                if (busyWorkers.get() == 0 && establisher.pendingCount() == 0 && now - lastBadPeerReset > 5000) {
+                    lastBadPeerReset = now;
+                    peerTable.clearBad();
+                    System.out.println("Cleared bad peer list, retrying...");
                 }
-            }));
+                return;
+            }
+            establisher.dial(peer);
+            connectAttempts.incrementAndGet();
+            want--;
         }
+    }
 
-        // Monitor progress + periodic re-announce for fresh peers
-        long lastReannounce = System.currentTimeMillis();
-        while (!stopped) {
-            boolean allDone = workerFutures.stream().allMatch(Future::isDone);
-            updateSpeed();
-            updateUploadSpeed();
-            if (allDone || (pieceQueue.isEmpty() && isComplete()))
-                break;
+    /** Next peer worth dialing: LAN peers, then proven peers, then round-robin over the swarm. */
+    private TrackerClient.Peer nextCandidate() {
+        TrackerClient.Peer peer;
+        while ((peer = lanPeers.poll()) != null) {
+            if (peerTable.tryActivate(peer.key))
+                return peer;
+        }
+        while ((peer = goodPeers.poll()) != null) {
+            if (peerTable.tryActivate(peer.key))
+                return peer;
+        }
+        return peerTable.nextCandidate(System.currentTimeMillis());
+    }
 
-            // Re-announce every 60 seconds to get fresh peers
-            if (System.currentTimeMillis() - lastReannounce > 60_000) {
-                lastReannounce = System.currentTimeMillis();
-                new Thread(() -> {
-                    try {
-                        List<TrackerClient.Peer> fresh = getPeers();
-                        int added = 0;
-                        for (TrackerClient.Peer p : fresh) {
-                            boolean exists = livePeers.stream()
-                                    .anyMatch(e -> e.ip.equals(p.ip) && e.port == p.port);
-                            if (!exists) {
-                                livePeers.add(p);
-                                added++;
-                            }
-                        }
-                        if (added > 0) {
-                            System.out.println(
-                                    "Re-announce: added " + added + " new peers (total: " + livePeers.size() + ")");
-                        }
-                    } catch (Exception ignored) {
+    /** Establisher callback: a connect or handshake attempt did not pan out. */
+    private void onConnectFailed(TrackerClient.Peer peer, boolean protocolError) {
+        connectFailures.incrementAndGet();
+        if (protocolError)
+            peerTable.markBad(peer.key);
+        else
+            peerTable.backoffUntil(peer.key, System.currentTimeMillis() + CONNECT_RETRY_DELAY_MS);
+        peerTable.deactivate(peer.key);
+    }
+
+    /**
+     * Drive one handshaken connection through the download side of the wire
+     * protocol: declare interest, wait for unchoke, then pull pieces the peer
+     * has until it has nothing more we need or the connection drops.
+     * Used for both outgoing workers and peers that connected to us; the
+     * caller must already have sent our bitfield.
+     *
+     * @return number of verified pieces received, or -1 if never unchoked
+     */
+    private int downloadFrom(PeerSession session, String label) throws IOException {
+        DataInputStream in = session.in;
+        DataOutputStream out = session.out;
+        boolean[] peerHasPiece = session.peerHasPiece;
+        TrackerClient.Peer peer = session.peer;
+
+        synchronized (out) {
+            out.writeInt(1);
+            out.writeByte(2); // interested
+            out.flush();
+        }
+
+        // === Wait for unchoke, or for pieces the peer lets us fetch while choked ===
+        if (!awaitUnchoke(session))
+            return -1;
+
+        System.out.println(label + " connected to " + peer
+                + (session.remoteUnchoked ? " - unchoked" : " - choked, allowed fast") + ", downloading...");
+        if (!peerTable.contains(peer.key))
+            incomingSeeds.add(session); // dialed us from an ephemeral port
+        else
+            peerTable.markSeed(peer.key);
+        updateSeedCount();
+
+        // === Download MANY pieces through this ONE connection ===
+        int piecesReceived = 0;
+        while (!stopped && !pieceQueue.isEmpty() && !session.retireRequested) {
+            while (paused && !stopped) {
+                try {
+                    synchronized (out) {
+                        session.writePendingHaves();
+                        out.writeInt(0);
+                        out.flush();
                     }
-                }, "Re-announce").start();
+                    Thread.sleep(5000);
+                } catch (Exception e) {
+                    break;
+                }
+            }
+            if (stopped)
+                break;
+            // Choked mid-download; only Fast Extension peers keep the connection through that
+            if (!session.remoteUnchoked && !hasAllowedFastWork(session) && !awaitUnchoke(session))
+                break;
+
+            Integer pieceIndex = takePieceFor(session);
+            if (pieceIndex == null) {
+                break;
             }
 
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
+                byte[] pieceData = requestPiece(session, pieceIndex);
+                if (pieceData != null && verifyPiece(pieceIndex, pieceData)) {
+                    storeVerifiedPiece(pieceIndex, pieceData);
+                    session.bytesReceived += pieceData.length;
+                    // Only peers we dialed have a reachable listen port worth remembering
+                    if (peerTable.contains(peer.key))
+                        deliveredBytes.merge(peer, (long) pieceData.length, Long::sum);
+                    piecesReceived++;
+                } else if (pieceData == null && session.fastExtension
+                        && (!session.remoteUnchoked || !peerHasPiece[pieceIndex])) {
+                    // Choked, or the peer rejected the piece; it said exactly which
+                    // requests it dropped, so the connection is still in step
+                    pieceQueue.add(pieceIndex);
+                } else if (pieceData != null && !canVerify(pieceIndex)) {
+                    // v2 only: this peer won't send the hashes to check the piece against
+                    pieceQueue.add(pieceIndex);
+                    System.err.println("Piece " + pieceIndex + " from " + peer + " - no hashes to verify it");
+                    break;
+                } else {
+                    pieceQueue.add(pieceIndex);
+                    System.err.println("Piece " + pieceIndex + " from " + peer +
+                            (pieceData == null ? " - no data" : " - hash mismatch"));
+                    break;
+                }
+            } catch (IOException e) {
+                pieceQueue.add(pieceIndex);
+                System.err.println("Piece " + pieceIndex + " connection lost: " + e.getMessage());
                 break;
             }
         }
+        return piecesReceived;
+    }
 
-        peerPool.shutdownNow();
-        diskPool.shutdown();
-        try {
-            diskPool.awaitTermination(30, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
+    /**
+     * Take a piece that passed its hash check, from any source: mark it
+     * done, announce it to peers and write it to disk in the background.
+     */
+    private void storeVerifiedPiece(int pieceIndex, byte[] data) {
+        completedPieces[pieceIndex] = true;
+        synchronized (this) {
+            downloadedBytes += data.length;
         }
+        broadcastHave(pieceIndex);
+        // Write to disk asynchronously — don't block the network
+        diskPool.submit(() -> {
+            try {
+                writePieceToDisk(pieceIndex, data);
+            } catch (IOException ex) {
+                System.err.println("Disk write error: " + ex.getMessage());
+            }
+        });
+        updateProgress();
+    }
+
+    /**
+     * Read messages until the peer unchokes us, or allows a piece we still
+     * need to be fetched while choked. Gives up after 15 s.
+     */
+    private boolean awaitUnchoke(PeerSession session) throws IOException {
+        DataInputStream in = session.in;
+        boolean[] peerHasPiece = session.peerHasPiece;
+        int totalPieces = peerHasPiece.length;
+        long startTime = System.currentTimeMillis();
+        while (System.currentTimeMillis() - startTime < 15000 && !stopped) {
+            if (session.remoteUnchoked || hasAllowedFastWork(session))
+                return true;
+            int len = in.readInt();
+            if (len == 0)
+                continue;
+            byte msgId = in.readByte();
+            if (msgId == 1) {
+                session.remoteUnchoked = true;
+            } else if (msgId == 0) {
+                session.remoteUnchoked = false;
+            } else if (msgId == 4) {
+                int pIdx = in.readInt();
+                if (pIdx >= 0 && pIdx < totalPieces) {
+                    peerHasPiece[pIdx] = true;
+                }
+            } else if (msgId == 5) {
+                byte[] bitfield = new byte[len - 1];
+                in.readFully(bitfield);
+                for (int i = 0; i < totalPieces && i / 8 < bitfield.length; i++) {
+                    if ((bitfield[i / 8] & (1 << (7 - (i % 8)))) != 0) {
+                        peerHasPiece[i] = true;
+                    }
+                }
+            } else if (msgId == 6) { // peer may already be requesting from us
+                int reqIdx = in.readInt();
+                int reqBegin = in.readInt();
+                int reqLen = in.readInt();
+                handleRequest(session, reqIdx, reqBegin, reqLen);
+            } else if (msgId == 20) {
+                handleExtended(session, len - 1);
+            } else {
+                handleOptionalMessage(session, msgId, len - 1);
+            }
+        }
+        return session.remoteUnchoked;
+    }
+
+    /** True if the peer allows, and has, a piece we still need. */
+    private boolean hasAllowedFastWork(PeerSession session) {
+        for (int p : session.allowedFast) {
+            if (session.peerHasPiece[p] && pieceQueue.contains(p))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take the next piece to fetch from this peer off the queue: while
+     * choked only one it allows fast, otherwise one it suggested, otherwise
+     * the first queued one it has. Null if there is none.
+     */
+    private Integer takePieceFor(PeerSession session) {
+        boolean[] peerHasPiece = session.peerHasPiece;
+        if (!session.remoteUnchoked) {
+            for (int p : session.allowedFast) {
+                if (peerHasPiece[p] && pieceQueue.remove(p))
+                    return p;
+            }
+            return null;
+        }
+        Integer p;
+        while ((p = session.suggested.poll()) != null) {
+            if (peerHasPiece[p] && pieceQueue.remove(p))
+                return p;
+        }
+        for (Integer q : pieceQueue) {
+            if (peerHasPiece[q] && pieceQueue.remove(q))
+                return q;
+        }
+        return null;
     }
 
     /**
      * Request a single piece over an already-established connection.
      * Sends all block requests (pipelining) then reads responses.
+     *
+     * Returns null if the piece didn't arrive. With the Fast Extension a
+     * choke stops new requests and each outstanding one is either served or
+     * rejected; rejected blocks are asked for again once allowed. A piece
+     * rejected while we were allowed to ask is dropped from what the peer
+     * has, so the caller moves on to another.
      */
-    private byte[] requestPiece(DataInputStream in, DataOutputStream out, int pieceIndex, boolean[] peerHasPiece)
-            throws IOException {
+    private byte[] requestPiece(PeerSession session, int pieceIndex) throws IOException {
+        DataInputStream in = session.in;
+        DataOutputStream out = session.out;
+        boolean[] peerHasPiece = session.peerHasPiece;
         int expectedPieceSize = getPieceSize(pieceIndex);
         int blockSize = 16384; // 16KB
         int numBlocks = (expectedPieceSize + blockSize - 1) / blockSize;
         byte[] pieceData = new byte[expectedPieceSize];
         boolean[] receivedBlocks = new boolean[numBlocks];
         int receivedCount = 0;
-        int requestedCount = 0;
+        int outstanding = 0;
         int maxPendingRequests = 10;
         int nextBlockToRequest = 0;
+        // Blocks the peer rejected, to be asked for again
+        ArrayDeque<Integer> retryBlocks = new ArrayDeque<>();
+        boolean refused = false;
+
+        // v2 (BEP 52): with the piece's block hashes each block is checked as
+        // it arrives, and only a bad block is fetched again. Ask for the piece
+        // layer first if its hash isn't known yet.
+        byte[] leaves = null;
+        boolean leavesRequested = false;
+        boolean hashesPending = false;
+        long hashDeadline = 0;
+        int badBlocks = 0;
+        if (session.v2Hashes) {
+            leavesRequested = merkle.pieceHash(pieceIndex) != null;
+            hashesPending = sendHashRequest(session, leavesRequested
+                    ? merkle.blockHashesRequest(pieceIndex) : merkle.pieceLayerRequest(pieceIndex));
+        }
 
         // Pipeline blocks with a sliding window
         long lastActivityTime = System.currentTimeMillis();
         long pieceTimeoutMs = 30000; // 30 seconds idle timeout
-        while (receivedCount < numBlocks && System.currentTimeMillis() - lastActivityTime < pieceTimeoutMs) {
-
-            // Fill pipeline up to maxPendingRequests
-            while (requestedCount - receivedCount < maxPendingRequests && nextBlockToRequest < numBlocks) {
-                int offset = nextBlockToRequest * blockSize;
-                int length = Math.min(blockSize, expectedPieceSize - offset);
-                out.writeInt(13); // message length
-                out.writeByte(6); // request
-                out.writeInt(pieceIndex);
-                out.writeInt(offset);
-                out.writeInt(length);
-                nextBlockToRequest++;
-                requestedCount++;
+        while ((receivedCount < numBlocks || hashesPending)
+                && System.currentTimeMillis() - lastActivityTime < pieceTimeoutMs) {
+            boolean mayRequest = !refused
+                    && (session.remoteUnchoked || session.allowedFast.contains(pieceIndex));
+            if (!mayRequest && outstanding == 0) {
+                if (refused) {
+                    peerHasPiece[pieceIndex] = false;
+                    session.allowedFast.remove(pieceIndex);
+                }
+                return null;
+            }
+
+            // Fill pipeline up to maxPendingRequests; queued HAVEs share the flush
+            synchronized (out) {
+                session.writePendingHaves();
+                while (mayRequest && outstanding < maxPendingRequests
+                        && (!retryBlocks.isEmpty() || nextBlockToRequest < numBlocks)) {
+                    int block = !retryBlocks.isEmpty() ? retryBlocks.poll() : nextBlockToRequest++;
+                    if (receivedBlocks[block])
+                        continue;
+                    int offset = block * blockSize;
+                    int length = Math.min(blockSize, expectedPieceSize - offset);
+                    out.writeInt(13); // message length
+                    out.writeByte(6); // request
+                    out.writeInt(pieceIndex);
+                    out.writeInt(offset);
+                    out.writeInt(length);
+                    outstanding++;
+                }
+                out.flush();
+            }
+
+            // Every block is in and only the hashes are missing: a peer that
+            // set the v2 bit but never answers mustn't hold the piece for the
+            // whole idle timeout
+            if (receivedCount == numBlocks) {
+                if (hashDeadline == 0)
+                    hashDeadline = System.currentTimeMillis() + HASH_REPLY_TIMEOUT_MS;
+                if (!awaitInput(session, hashDeadline)) {
+                    session.v2Hashes = false;
+                    hashesPending = false;
+                    break;
+                }
             }
-            out.flush();
 
             int len = in.readInt();
             if (len == 0)
@@ -791,12 +1211,39 @@ public class TorrentDownloader implements Runnable {
                             Math.min(dataLen, expectedPieceSize - begin));
                     int blockIdx = begin / blockSize;
                     if (blockIdx < numBlocks && !receivedBlocks[blockIdx]) {
-                        receivedBlocks[blockIdx] = true;
-                        receivedCount++;
+                        if (outstanding > 0)
+                            outstanding--;
+                        if (leaves != null && !blockMatches(leaves, pieceIndex, pieceData, blockIdx)) {
+                            if (++badBlocks > MAX_BAD_BLOCKS)
+                                return null;
+                            retryBlocks.add(blockIdx);
+                        } else {
+                            receivedBlocks[blockIdx] = true;
+                            receivedCount++;
+                        }
                     }
                 }
             } else if (msgId == 0) { // choke
-                return null;
+                session.remoteUnchoked = false;
+                // Without the Fast Extension the peer silently drops our requests
+                if (!session.fastExtension)
+                    return null;
+            } else if (msgId == 1) { // unchoke
+                session.remoteUnchoked = true;
+            } else if (msgId == 16 && len == 13 && session.fastExtension) { // REJECT_REQUEST
+                lastActivityTime = System.currentTimeMillis();
+                int index = in.readInt();
+                int begin = in.readInt();
+                in.readInt(); // length
+                int blockIdx = begin / blockSize;
+                if (index == pieceIndex && begin % blockSize == 0 && blockIdx < numBlocks
+                        && !receivedBlocks[blockIdx] && outstanding > 0) {
+                    outstanding--;
+                    retryBlocks.add(blockIdx);
+                    // A choke explains the reject; otherwise the peer won't serve this piece
+                    if (session.remoteUnchoked || session.allowedFast.contains(pieceIndex))
+                        refused = true;
+                }
             } else if (msgId == 4) { // HAVE
                 int pIdx = in.readInt();
                 if (pIdx >= 0 && pIdx < peerHasPiece.length) {
@@ -806,9 +1253,39 @@ public class TorrentDownloader implements Runnable {
                 int reqIdx = in.readInt();
                 int reqBegin = in.readInt();
                 int reqLen = in.readInt();
-                handleRequest(in, out, reqIdx, reqBegin, reqLen);
-            } else {
+                handleRequest(session, reqIdx, reqBegin, reqLen);
+            } else if (msgId == 20) { // extended (ut_pex)
+                handleExtended(session, len - 1);
+            } else if (msgId == 22 && session.v2Hashes) { // HASHES
+                lastActivityTime = System.currentTimeMillis();
+                byte[] got = readHashes(session, len - 1, pieceIndex);
+                if (got != null && leaves == null) {
+                    leaves = got;
+                    hashesPending = false;
+                    // Check what arrived before the hashes did
+                    for (int b = 0; b < numBlocks; b++) {
+                        if (receivedBlocks[b] && !blockMatches(leaves, pieceIndex, pieceData, b)) {
+                            if (++badBlocks > MAX_BAD_BLOCKS)
+                                return null;
+                            receivedBlocks[b] = false;
+                            receivedCount--;
+                            retryBlocks.add(b);
+                        }
+                    }
+                } else if (!leavesRequested && merkle.pieceHash(pieceIndex) != null) {
+                    // The piece layer came in; now the blocks under this piece
+                    leavesRequested = true;
+                    hashesPending = sendHashRequest(session, merkle.blockHashesRequest(pieceIndex));
+                } else {
+                    // Didn't check out: the whole-piece hash still guards the data
+                    hashesPending = false;
+                }
+            } else if (msgId == 23 && session.v2Hashes) { // HASH_REJECT
                 skipBytes(in, len - 1);
+                session.v2Hashes = false;
+                hashesPending = false;
+            } else {
+                handleOptionalMessage(session, msgId, len - 1);
             }
         }
 
@@ -829,18 +1306,41 @@ public class TorrentDownloader implements Runnable {
     }
 
     private int getPieceSize(int pieceIndex) {
-        if (pieceIndex == pieceHashes.length - 1) {
+        // v2 pieces never span files, so each file ends in a short piece
+        if (pieceHashes == null)
+            return merkle.pieceSize(pieceIndex);
+        if (pieceIndex == numPieces - 1) {
             int remainder = (int) (totalSize % pieceLength);
             return remainder == 0 ? pieceLength : remainder;
         }
         return pieceLength;
     }
 
+    // Reused per thread so verification allocates nothing
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> DIGEST_OUT = ThreadLocal.withInitial(() -> new byte[20]);
+
     private boolean verifyPiece(int pieceIndex, byte[] data) {
+        if (pieceHashes == null)
+            return merkle.verifyPiece(pieceIndex, data);
         try {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            byte[] hash = sha1.digest(data);
-            return Arrays.equals(hash, pieceHashes[pieceIndex]);
+            MessageDigest sha1 = SHA1.get();
+            byte[] hash = DIGEST_OUT.get();
+            sha1.update(data);
+            sha1.digest(hash, 0, 20);
+            // Compare in place against the flat hash buffer, no per-piece arrays
+            int base = pieceIndex * 20;
+            for (int i = 0; i < 20; i++) {
+                if (pieceHashes.get(base + i) != hash[i])
+                    return false;
+            }
+            return true;
         } catch (Exception e) {
             return false;
         }
@@ -873,9 +1373,19 @@ public class TorrentDownloader implements Runnable {
                 raf.seek(fileOffset);
                 raf.write(data, dataOffset, writeLen);
             }
+        }
 
-            // Check if this file is now fully downloaded and rename it
-            if (!entry.renamed && isFileComplete(entry)) {
+        // Rename files this piece completed. Two disk threads may finish a
+        // file's last pieces at once; only the one that sees them all on disk renames
+        synchronized (piecesOnDisk) {
+            piecesOnDisk[pieceIndex] = true;
+            for (FileEntry entry : fileEntries) {
+                long fileEnd = entry.offset + entry.length;
+                if (entry.skip || entry.renamed || pieceEnd <= entry.offset || pieceStart >= fileEnd)
+                    continue;
+                if (!isFileComplete(entry))
+                    continue;
+                File f = new File(baseDir, entry.path + ".temp");
                 File target = new File(baseDir, entry.path);
                 if (f.exists() && f.renameTo(target)) {
                     entry.renamed = true;
@@ -885,7 +1395,7 @@ public class TorrentDownloader implements Runnable {
         }
     }
 
-    /** Check if all pieces that cover this file entry have been downloaded. */
+    /** Check if all pieces that cover this file entry have been written to disk. */
     private boolean isFileComplete(FileEntry entry) {
         long fileStart = entry.offset;
         long fileEnd = entry.offset + entry.length;
@@ -894,7 +1404,7 @@ public class TorrentDownloader implements Runnable {
         int lastPiece = (int) ((fileEnd - 1) / pieceLength);
 
         for (int i = firstPiece; i <= lastPiece; i++) {
-            if (!completedPieces[i])
+            if (!piecesOnDisk[i])
                 return false;
         }
         return true;
@@ -913,7 +1423,7 @@ public class TorrentDownloader implements Runnable {
             }
         }
         double progress = needed > 0 ? (double) completed / needed : 0;
-        Platform.runLater(() -> session.progressProperty().set(progress));
+        runOnFx(() -> session.progressProperty().set(progress));
     }
 
     private void updateSpeed() {
@@ -945,7 +1455,7 @@ public class TorrentDownloader implements Runnable {
             speedStr = String.format("%.0f B/s", smoothedSpeed);
         }
 
-        Platform.runLater(() -> session.dlSpeedProperty().set(speedStr));
+        runOnFx(() -> session.dlSpeedProperty().set(speedStr));
     }
 
     private boolean isComplete() {
@@ -972,12 +1482,381 @@ public class TorrentDownloader implements Runnable {
     private void updateStatus(String status) {
         if (session.isDeleted())
             return;
-        Platform.runLater(() -> session.statusProperty().set(status));
+        runOnFx(() -> session.statusProperty().set(status));
     }
 
     private void updateSeedCount() {
-        int count = activeSeedCount.size();
-        Platform.runLater(() -> session.seedsProperty().set(count));
+        int count = peerTable.seedCount() + incomingSeeds.size();
+        runOnFx(() -> session.seedsProperty().set(count));
+    }
+
+    /**
+     * Apply a session update on the FX thread. Without a running toolkit
+     * (the engine driven from a test) the properties are set right here.
+     */
+    private static void runOnFx(Runnable update) {
+        try {
+            Platform.runLater(update);
+        } catch (IllegalStateException e) {
+            update.run();
+        }
+    }
+
+    /**
+     * Queue a HAVE for a freshly verified piece on every live connection.
+     * Nothing is written here: the queue is drained by the owning worker's next
+     * request flush or by the monitor loop's {@link #flushHaves()}, so a burst
+     * of completions costs each peer one write.
+     */
+    private void broadcastHave(int pieceIndex) {
+        for (PeerSession s : liveSessions) {
+            s.queueHave(pieceIndex);
+        }
+    }
+
+    /** Push out queued HAVEs on connections whose worker is idle or blocked reading. */
+    private void flushHaves() {
+        for (PeerSession s : liveSessions) {
+            try {
+                s.flushHaves();
+            } catch (IOException e) {
+                // Connection is dying; its owner will notice and clean up
+                liveSessions.remove(s);
+            }
+        }
+    }
+
+    // =====================================================================
+    // EXTENSION PROTOCOL (BEP 10) + PEER EXCHANGE (BEP 11)
+    // =====================================================================
+
+    // ut_pex messages are built here by the monitor thread only
+    private final ByteBuffer pexOut = ByteBuffer.allocate(2048);
+    private final BencodeWriter pexWriter = new BencodeWriter(pexOut);
+
+    private static boolean supportsExtensions(byte[] reserved) {
+        return reserved != null && reserved.length == 8 && (reserved[5] & 0x10) != 0;
+    }
+
+    private static boolean supportsFastExtension(byte[] reserved) {
+        return reserved != null && reserved.length == 8 && (reserved[7] & 0x04) != 0;
+    }
+
+    /**
+     * Read a Fast Extension (BEP 6) message other than a reject of one of our
+     * requests, or a v2 hash message (BEP 52) outside a piece download, or
+     * skip whatever else the peer sent. SUGGEST (13), HAVE_ALL (14),
+     * HAVE_NONE (15), REJECT_REQUEST (16) and ALLOWED_FAST (17) are only
+     * valid once both sides offered the extension.
+     */
+    private void handleOptionalMessage(PeerSession session, byte msgId, int payloadLen) throws IOException {
+        DataInputStream in = session.in;
+        boolean[] peerHasPiece = session.peerHasPiece;
+        if (merkle != null && msgId >= 21 && msgId <= 23) {
+            handleHashMessage(session, msgId, payloadLen);
+            return;
+        }
+        if (!session.fastExtension || msgId < 13 || msgId > 17) {
+            skipBytes(in, payloadLen);
+            return;
+        }
+        if (msgId == 14) { // HAVE_ALL
+            Arrays.fill(peerHasPiece, true);
+            skipBytes(in, payloadLen);
+        } else if (msgId == 15) { // HAVE_NONE
+            skipBytes(in, payloadLen);
+        } else if (msgId == 16) { // REJECT_REQUEST for a piece we are no longer fetching
+            skipBytes(in, payloadLen);
+        } else if (payloadLen == 4) { // SUGGEST / ALLOWED_FAST
+            int idx = in.readInt();
+            if (idx < 0 || idx >= peerHasPiece.length)
+                return;
+            if (msgId == 13 && session.suggested.size() < MAX_SUGGESTED && !session.suggested.contains(idx))
+                session.suggested.add(idx);
+            else if (msgId == 17 && session.allowedFast.size() < MAX_ALLOWED_FAST)
+                session.allowedFast.add(idx);
+        } else {
+            skipBytes(in, payloadLen);
+        }
+    }
+
+    /**
+     * Offer ut_pex and tell the peer our listen port. Caller holds the
+     * {@code out} monitor and flushes.
+     */
+    private void sendExtensionHandshake(DataOutputStream out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        new BencodeWriter(buf).startDict()
+                .key("m").startDict().key("ut_pex").value(PeerExchange.LOCAL_ID).end()
+                .key("p").value(listenPort)
+                .end();
+        out.writeInt(2 + buf.position());
+        out.writeByte(20);
+        out.writeByte(0); // extension handshake
+        out.write(buf.array(), 0, buf.position());
+    }
+
+    /** Read one extended message (its payload length given) and act on it. */
+    private void handleExtended(PeerSession session, int payloadLen) throws IOException {
+        if (payloadLen < 1 || payloadLen > MAX_EXTENDED_LEN) {
+            skipBytes(session.in, payloadLen);
+            return;
+        }
+        int extId = session.in.readUnsignedByte();
+        byte[] payload = new byte[payloadLen - 1];
+        session.in.readFully(payload);
+        try {
+            if (extId == 0) {
+                BencodeParser.Value hs = BencodeParser.parse(payload);
+                BencodeParser.Value m = hs.get("m");
+                // A later handshake may only mention what changed
+                if (m != null && m.containsKey("ut_pex")) {
+                    long id = m.getLong("ut_pex", 0);
+                    session.remotePexId = id > 0 && id <= 255 ? (int) id : 0;
+                }
+                // A peer that dialed us tells us where it listens
+                int port = (int) hs.getLong("p", 0);
+                if (port > 0 && port < 65535 && !peerTable.contains(session.peer.key))
+                    onPeerDiscovered(new TrackerClient.Peer(session.peer.ip, port));
+            } else if (extId == PeerExchange.LOCAL_ID) {
+                long now = System.currentTimeMillis();
+                if (now - session.lastPexReceivedAt < PeerExchange.MIN_RECEIVE_INTERVAL_MS)
+                    return;
+                session.lastPexReceivedAt = now;
+                Map<Long, Byte> flags = new HashMap<>();
+                for (TrackerClient.Peer p : PeerExchange.parseAdded(payload, flags)) {
+                    Byte f = flags.get(p.key);
+                    if (f != null)
+                        ConnectionEstablisher.hintUtp(p.key, (f & PeerExchange.FLAG_UTP) != 0);
+                    onPeerDiscovered(p);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Malformed bencode — ignore the message, keep the connection
+        }
+    }
+
+    /**
+     * Send ut_pex to each peer that supports it, once a minute: the peers we
+     * are connected to that it hasn't heard about from us, and the ones we
+     * have lost since. Only peers we dialed are listed, since they are known
+     * to accept connections.
+     */
+    private void sendPex() {
+        long now = System.currentTimeMillis();
+        Map<Long, Byte> connected = null;
+        for (PeerSession s : liveSessions) {
+            if (s.remotePexId <= 0 || now - s.lastPexSentAt < PeerExchange.SEND_INTERVAL_MS)
+                continue;
+            if (connected == null) {
+                connected = new HashMap<>();
+                for (PeerSession other : liveSessions) {
+                    long key = other.peer.key;
+                    if (key != 0 && peerTable.contains(key)) {
+                        byte flags = PeerExchange.FLAG_REACHABLE;
+                        if (peerTable.isSeed(key))
+                            flags |= PeerExchange.FLAG_SEED;
+                        connected.put(key, flags);
+                    }
+                }
+            }
+            s.lastPexSentAt = now;
+
+            pexOut.clear();
+            pexOut.putInt(0); // length, patched below
+            pexOut.put((byte) 20);
+            pexOut.put((byte) s.remotePexId);
+            if (!PeerExchange.write(pexWriter.reset(), connected, s.peer.key, s.pexAdvertised))
+                continue;
+            pexOut.putInt(0, pexOut.position() - 4);
+            try {
+                synchronized (s.out) {
+                    s.out.write(pexOut.array(), 0, pexOut.position());
+                    s.out.flush();
+                }
+            } catch (IOException e) {
+                // Connection is dying; its owner will notice and clean up
+                liveSessions.remove(s);
+            }
+        }
+    }
+
+    // =====================================================================
+    // V2 HASHES (BEP 52)
+    // =====================================================================
+
+    /** Our handshake reserved bytes, with the v2 bit for v2 and hybrid torrents. */
+    private byte[] handshakeReserved() {
+        byte[] reserved = HANDSHAKE_RESERVED.clone();
+        if (merkle != null)
+            reserved[7] |= 0x10;
+        return reserved;
+    }
+
+    /** Every v2 peer answers hash requests; in a hybrid swarm only those that set the v2 bit. */
+    private boolean servesV2Hashes(byte[] reserved) {
+        if (merkle == null)
+            return false;
+        return pieceHashes == null || (reserved != null && reserved.length == 8 && (reserved[7] & 0x10) != 0);
+    }
+
+    /** False for a v2-only piece whose hash no peer has sent yet. */
+    private boolean canVerify(int pieceIndex) {
+        return pieceHashes != null || merkle.pieceHash(pieceIndex) != null;
+    }
+
+    private boolean blockMatches(byte[] leaves, int pieceIndex, byte[] pieceData, int block) {
+        // A hybrid torrent's v1 piece runs on into the padding after its file
+        int size = merkle.pieceSize(pieceIndex);
+        int offset = block * MerkleHashes.BLOCK_SIZE;
+        if (offset >= size)
+            return true; // padding: only the v1 hash covers it
+        return MerkleHashes.blockMatches(leaves, block, pieceData, offset,
+                Math.min(MerkleHashes.BLOCK_SIZE, size - offset));
+    }
+
+    /**
+     * Wait until the peer has sent something, without consuming it; false if
+     * the deadline passes first. The socket timeout is cut to the time left
+     * only for a one-byte peek, so it can't strike mid-message and leave the
+     * stream out of step.
+     */
+    private static boolean awaitInput(PeerSession session, long deadline) throws IOException {
+        DataInputStream in = session.in;
+        if (in.available() > 0)
+            return true;
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0)
+            return false;
+        Socket socket = session.socket;
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout((int) left);
+        try {
+            // Marked on the BufferedInputStream underneath; at end of stream
+            // the next readInt throws as usual
+            in.mark(1);
+            in.read();
+            in.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    /** Queue a hash request (21); the request loop flushes it. False if there is nothing to ask. */
+    private boolean sendHashRequest(PeerSession session, MerkleHashes.HashRequest r) throws IOException {
+        if (r == null)
+            return false;
+        DataOutputStream out = session.out;
+        synchronized (out) {
+            out.writeInt(49);
+            out.writeByte(21);
+            out.write(r.piecesRoot);
+            out.writeInt(r.baseLayer);
+            out.writeInt(r.index);
+            out.writeInt(r.length);
+            out.writeInt(r.proofLayers);
+        }
+        return true;
+    }
+
+    /**
+     * Read a HASHES message (22). Piece layer hashes that prove out are kept;
+     * block hashes are returned if they belong to {@code pieceIndex} and add
+     * up to its piece hash. Null otherwise.
+     */
+    private byte[] readHashes(PeerSession session, int payloadLen, int pieceIndex) throws IOException {
+        DataInputStream in = session.in;
+        int hashBytes = payloadLen - 48;
+        if (hashBytes <= 0 || hashBytes % MerkleHashes.HASH_SIZE != 0 || payloadLen > MAX_HASHES_LEN) {
+            skipBytes(in, payloadLen);
+            return null;
+        }
+        byte[] root = new byte[MerkleHashes.HASH_SIZE];
+        in.readFully(root);
+        int baseLayer = in.readInt();
+        int index = in.readInt();
+        int length = in.readInt();
+        in.readInt(); // proof layers
+        byte[] hashes = new byte[hashBytes];
+        in.readFully(hashes);
+        return merkle.accept(root, baseLayer, index, length, hashes, pieceIndex);
+    }
+
+    /**
+     * A hash message outside a piece download. We don't keep the lower
+     * layers of the trees, so hash requests (21) are rejected (23); stray
+     * hashes are still taken if they complete a piece layer.
+     */
+    private void handleHashMessage(PeerSession session, byte msgId, int payloadLen) throws IOException {
+        DataInputStream in = session.in;
+        if (msgId == 22) {
+            readHashes(session, payloadLen, -1);
+        } else if (msgId == 21 && payloadLen == 48) {
+            byte[] request = new byte[48];
+            in.readFully(request);
+            DataOutputStream out = session.out;
+            synchronized (out) {
+                out.writeInt(49);
+                out.writeByte(23); // HASH_REJECT echoes the request
+                out.write(request);
+                out.flush();
+            }
+        } else {
+            skipBytes(in, payloadLen);
+        }
+    }
+
+    // =====================================================================
+    // WEB SEEDS (BEP 19)
+    // =====================================================================
+
+    /**
+     * Fetch queued pieces from one HTTP mirror until the download is done or
+     * the mirror is given up. Pieces that fail go back on the queue for peers
+     * or the next attempt.
+     */
+    private void runWebSeed(WebSeed seed) {
+        while (!stopped && !seed.isDead() && !isComplete()) {
+            Integer pieceIndex = paused || !seed.isReady() ? null : pieceQueue.poll();
+            if (pieceIndex == null) {
+                // Backing off, paused, or the remaining pieces are with peers for now
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            if (!canVerify(pieceIndex)) {
+                // v2 only: wait until a peer has sent the hashes for this piece
+                pieceQueue.add(pieceIndex);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            byte[] data = new byte[getPieceSize(pieceIndex)];
+            boolean verified;
+            try {
+                verified = seed.fetchPiece(fileEntries, (long) pieceIndex * pieceLength, data,
+                        d -> verifyPiece(pieceIndex, d));
+            } catch (IOException e) {
+                pieceQueue.add(pieceIndex);
+                System.err.println("Piece " + pieceIndex + " from web seed " + seed + " - " + e.getMessage());
+                continue;
+            }
+            if (verified) {
+                storeVerifiedPiece(pieceIndex, data);
+            } else {
+                pieceQueue.add(pieceIndex);
+                System.err.println("Piece " + pieceIndex + " from web seed " + seed + " - hash mismatch");
+            }
+        }
     }
 
     // =====================================================================
@@ -996,8 +1875,12 @@ public class TorrentDownloader implements Runnable {
         return bitfield;
     }
 
-    /** Send BITFIELD + UNCHOKE so the peer knows our pieces and can request. */
-    private void sendBitfieldAndUnchoke(DataOutputStream out) throws IOException {
+    /**
+     * Send BITFIELD + UNCHOKE so the peer knows our pieces and can request.
+     * With the Fast Extension an empty or full bitfield goes as HAVE_NONE or
+     * HAVE_ALL instead.
+     */
+    private void sendBitfieldAndUnchoke(DataOutputStream out, boolean fast) throws IOException {
         byte[] bitfield = buildBitfield();
         boolean hasPieces = false;
         for (byte b : bitfield)
@@ -1005,8 +1888,17 @@ public class TorrentDownloader implements Runnable {
                 hasPieces = true;
                 break;
             }
+        boolean hasAll = hasPieces;
+        for (boolean done : completedPieces)
+            if (!done) {
+                hasAll = false;
+                break;
+            }
 
-        if (hasPieces) {
+        if (fast && (hasAll || !hasPieces)) {
+            out.writeInt(1);
+            out.writeByte(hasAll ? 14 : 15); // HAVE_ALL / HAVE_NONE
+        } else if (hasPieces) {
             // BITFIELD: length=1+bitfield.length, id=5
             out.writeInt(1 + bitfield.length);
             out.writeByte(5);
@@ -1022,12 +1914,14 @@ public class TorrentDownloader implements Runnable {
     /**
      * Handle an incoming REQUEST message (msgId=6).
      * Reads: pieceIndex(4) + begin(4) + length(4) = 12 bytes already consumed.
-     * Responds with a PIECE message if we have the data.
+     * Responds with a PIECE message if we have the data; otherwise a Fast
+     * Extension peer gets a REJECT_REQUEST, so it can ask someone else.
      */
-    private void handleRequest(DataInputStream in, DataOutputStream out,
-            int pieceIndex, int begin, int length) throws IOException {
+    private void handleRequest(PeerSession session, int pieceIndex, int begin, int length) throws IOException {
+        DataOutputStream out = session.out;
         if (pieceIndex < 0 || pieceIndex >= completedPieces.length || !completedPieces[pieceIndex]) {
-            return; // Don't have this piece
+            rejectRequest(session, pieceIndex, begin, length); // Don't have this piece
+            return;
         }
 
         // Cap block size at 16KB (BT spec)
@@ -1035,23 +1929,39 @@ public class TorrentDownloader implements Runnable {
             length = 16384;
 
         byte[] pieceData = readPieceFromDisk(pieceIndex);
-        if (pieceData == null || begin + length > pieceData.length) {
+        if (pieceData == null || begin < 0 || begin + length > pieceData.length) {
+            rejectRequest(session, pieceIndex, begin, length);
             return;
         }
 
         // PIECE message: length=9+blockLen, id=7, index, begin, block
-        out.writeInt(9 + length);
-        out.writeByte(7);
-        out.writeInt(pieceIndex);
-        out.writeInt(begin);
-        out.write(pieceData, begin, length);
-        out.flush();
+        synchronized (out) {
+            out.writeInt(9 + length);
+            out.writeByte(7);
+            out.writeInt(pieceIndex);
+            out.writeInt(begin);
+            out.write(pieceData, begin, length);
+            out.flush();
+        }
 
         synchronized (this) {
             uploadedBytes += length;
         }
     }
 
+    private void rejectRequest(PeerSession session, int pieceIndex, int begin, int length) throws IOException {
+        if (!session.fastExtension)
+            return;
+        synchronized (session.out) {
+            session.out.writeInt(13);
+            session.out.writeByte(16); // REJECT_REQUEST
+            session.out.writeInt(pieceIndex);
+            session.out.writeInt(begin);
+            session.out.writeInt(length);
+            session.out.flush();
+        }
+    }
+
     /** Read a complete piece from disk by reassembling from file entries. */
     private byte[] readPieceFromDisk(int pieceIndex) {
         try {
@@ -1121,11 +2031,19 @@ public class TorrentDownloader implements Runnable {
             speedStr = String.format("%.0f B/s", smoothedUlSpeed);
         }
 
-        Platform.runLater(() -> session.ulSpeedProperty().set(speedStr));
+        runOnFx(() -> session.ulSpeedProperty().set(speedStr));
     }
 
-    /** Start a server socket to accept incoming peer connections for uploading. */
+    /** Accept incoming peer connections for uploading, over TCP and uTP. */
     private void startPeerServer() {
+        // Like the TCP server socket, incoming uTP goes to whichever torrent got the port first
+        UtpManager utp = UtpManager.shared();
+        if (utp != null) {
+            Consumer<UtpSocket> acceptor = client -> new Thread(() -> handleIncomingPeer(client),
+                    "InPeer-utp-" + client.getRemoteSocketAddress()).start();
+            if (utp.claimAcceptor(acceptor))
+                utpAcceptor = acceptor;
+        }
         new Thread(() -> {
             try {
                 peerServer = new ServerSocket(listenPort, 50);
@@ -1157,8 +2075,9 @@ public class TorrentDownloader implements Runnable {
         }, "PeerServer").start();
     }
 
-    /** Handle a single incoming peer connection (upload only). */
+    /** Handle a single incoming peer connection: download from it, then keep uploading. */
     private void handleIncomingPeer(Socket client) {
+        PeerSession session = null;
         try {
             client.setSoTimeout(30000);
             client.setTcpNoDelay(true);
@@ -1170,7 +2089,7 @@ public class TorrentDownloader implements Runnable {
             if (pstrlen != 19)
                 return;
             in.readNBytes(19);
-            in.readNBytes(8);
+            byte[] peerReserved = in.readNBytes(8);
             byte[] peerInfoHash = new byte[20];
             in.readFully(peerInfoHash);
             if (!Arrays.equals(magnet.getInfoHash(), peerInfoHash))
@@ -1181,35 +2100,78 @@ public class TorrentDownloader implements Runnable {
             byte[] protocol = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
             out.writeByte(19);
             out.write(protocol);
-            out.write(new byte[8]);
+            out.write(handshakeReserved());
             out.write(magnet.getInfoHash());
             out.write(TrackerClient.getPeerId().getBytes(StandardCharsets.US_ASCII));
             out.flush();
 
             // Send bitfield + unchoke
-            sendBitfieldAndUnchoke(out);
+            InetSocketAddress remote = (InetSocketAddress) client.getRemoteSocketAddress();
+            session = new PeerSession(new TrackerClient.Peer(remote.getAddress().getHostAddress(), remote.getPort()),
+                    client, in, out, completedPieces.length);
+            session.fastExtension = supportsFastExtension(peerReserved);
+            session.v2Hashes = servesV2Hashes(peerReserved);
+            synchronized (out) {
+                sendBitfieldAndUnchoke(out, session.fastExtension);
+                if (supportsExtensions(peerReserved))
+                    sendExtensionHandshake(out);
+            }
+            liveSessions.add(session);
+
+            // Peers that dial us are often the best connected ones (or only
+            // reachable this way behind NAT) — download from them too, as
+            // long as we are under the global connection cap
+            if (!pieceQueue.isEmpty() && !stopped
+                    && busyWorkers.get() + incomingActive.get() < maxConnectionsCap) {
+                incomingActive.incrementAndGet();
+                try {
+                    int piecesReceived = downloadFrom(session, "Incoming peer");
+                    if (piecesReceived > 0)
+                        System.out.println("Incoming peer " + session.peer + " delivered " + piecesReceived + " pieces");
+                } finally {
+                    incomingActive.decrementAndGet();
+                }
+            }
 
-            // Serve requests
+            // Nothing more to fetch from this peer — keep serving its requests
             while (!stopped) {
                 int len = in.readInt();
                 if (len == 0)
                     continue; // keep-alive
                 byte msgId = in.readByte();
 
-                if (msgId == 6) { // REQUEST
+                if (msgId == 4) { // HAVE — only tracked so we don't echo it back
+                    int pIdx = in.readInt();
+                    if (pIdx >= 0 && pIdx < session.peerHasPiece.length)
+                        session.peerHasPiece[pIdx] = true;
+                } else if (msgId == 5) { // BITFIELD
+                    byte[] bitfield = new byte[len - 1];
+                    in.readFully(bitfield);
+                    for (int i = 0; i < session.peerHasPiece.length && i / 8 < bitfield.length; i++) {
+                        if ((bitfield[i / 8] & (1 << (7 - (i % 8)))) != 0)
+                            session.peerHasPiece[i] = true;
+                    }
+                } else if (msgId == 6) { // REQUEST
                     int idx = in.readInt();
                     int begin = in.readInt();
                     int blockLen = in.readInt();
-                    handleRequest(in, out, idx, begin, blockLen);
+                    handleRequest(session, idx, begin, blockLen);
                 } else if (msgId == 2) { // INTERESTED
                     // Already unchoked, no action needed
+                } else if (msgId == 20) { // extended (ut_pex)
+                    handleExtended(session, len - 1);
                 } else {
-                    skipBytes(in, len - 1);
+                    handleOptionalMessage(session, msgId, len - 1);
                 }
             }
         } catch (Exception ignored) {
             // Connection closed or error
         } finally {
+            if (session != null) {
+                liveSessions.remove(session);
+                if (incomingSeeds.remove(session))
+                    updateSeedCount();
+            }
             try {
                 client.close();
             } catch (IOException ignored) {
@@ -1218,11 +2180,12 @@ public class TorrentDownloader implements Runnable {
     }
 
     /** Internal file info */
-    private static class FileEntry {
+    static class FileEntry {
         final String path;
         final long length;
         final long offset;
         boolean skip = false;
+        boolean pad = false;
         boolean renamed = false;
 
         FileEntry(String path, long length, long offset) {
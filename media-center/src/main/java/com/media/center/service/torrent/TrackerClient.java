@@ -1,77 +1,253 @@
 package com.media.center.service.torrent;
 
+import com.media.center.service.HostResolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
 import java.net.URL;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * HTTP tracker client (BEP 3, scrape per BEP 48).
+ *
+ * Announces go through one shared asynchronous {@link HttpClient}, which
+ * keeps connections to each tracker host alive between announces, asks for
+ * gzip, and runs every request on a couple of threads. Nothing blocks while
+ * a tracker is slow. {@link HttpClient} can't use a SOCKS proxy, so with one
+ * configured requests fall back to {@link HttpURLConnection}.
+ */
 public class TrackerClient {
 
     private static final String PEER_ID = "-MC1000-" + generatePeerId();
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(15);
+
+    private static final ExecutorService HTTP_THREADS = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "TrackerHttp");
+        t.setDaemon(true);
+        return t;
+    });
+    // Blocking SOCKS fallback, one thread per request in flight
+    private static final ExecutorService SOCKS_THREADS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "TrackerSocks");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Rebuilt when the proxy setting changes
+    private static HttpClient httpClient;
+    private static Proxy httpClientProxy;
 
     public static List<Peer> getPeers(String trackerUrl, byte[] infoHash) {
-        List<Peer> peers = new ArrayList<>();
         try {
-            String encodedInfoHash = urlEncodeBytes(infoHash);
-            String urlStr = trackerUrl + "?info_hash=" + encodedInfoHash +
-                    "&peer_id=" + PEER_ID +
-                    "&port=" + TorrentDownloader.getListenPort() +
-                    "&uploaded=0&downloaded=0&left=0&compact=1&event=started";
-
-            URL url = new URL(urlStr);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection(ProxyConfig.getProxy());
-            conn.setConnectTimeout(10000); // Increased to 10s
-            conn.setReadTimeout(10000);
-            conn.setRequestMethod("GET");
-
-            if (conn.getResponseCode() == 200) {
-                try (InputStream in = conn.getInputStream()) {
-                    byte[] response = in.readAllBytes();
-                    Object decoded = BencodeParser.decode(response);
-
-                    if (decoded instanceof Map) {
-                        Map<String, Object> map = (Map<String, Object>) decoded;
-                        if (map.containsKey("peers")) {
-                            Object peersObj = map.get("peers");
-                            if (peersObj instanceof byte[]) {
-                                parseCompactPeers((byte[]) peersObj, peers);
-                            } else if (peersObj instanceof List) {
-                                // List of dictionaries (non-compact)
-                                // Not implemented for brevity, most modern trackers use compact
-                            }
-                        }
-                    }
-                }
-            } else {
-                System.err.println("Tracker " + trackerUrl + " responded with code " + conn.getResponseCode());
-            }
+            return announce(trackerUrl, infoHash, new AnnounceParams(0, 0, AnnounceParams.UNKNOWN_LEFT,
+                    AnnounceParams.Event.STARTED, -1)).get().peers;
         } catch (Exception e) {
             System.err.println("Tracker failed: " + trackerUrl + " - " + e.getMessage());
+            return new ArrayList<>();
         }
-        return peers;
     }
 
-    private static void parseCompactPeers(byte[] data, List<Peer> peers) {
-        // Compact peers: 6 bytes per peer (4 IP + 2 Port)
-        for (int i = 0; i < data.length; i += 6) {
-            if (i + 6 > data.length)
-                break;
+    /** Announce to an HTTP tracker without blocking. */
+    static CompletableFuture<TrackerResponse> announce(String trackerUrl, byte[] infoHash, AnnounceParams params) {
+        StringBuilder urlStr = new StringBuilder(trackerUrl)
+                .append(trackerUrl.contains("?") ? '&' : '?')
+                .append("info_hash=").append(urlEncodeBytes(infoHash))
+                .append("&peer_id=").append(PEER_ID)
+                .append("&port=").append(TorrentDownloader.getListenPort())
+                .append("&uploaded=").append(params.uploaded)
+                .append("&downloaded=").append(params.downloaded)
+                .append("&left=").append(params.left)
+                .append("&compact=1");
+        if (params.event.httpName != null)
+            urlStr.append("&event=").append(params.event.httpName);
+        if (params.numWant >= 0)
+            urlStr.append("&numwant=").append(params.numWant);
+
+        return fetchDictionary(urlStr.toString()).thenApply(TrackerClient::parseAnnounce);
+    }
+
+    private static TrackerResponse parseAnnounce(BencodeParser.Value map) {
+        String failure = map.getString("failure reason", null);
+        if (failure != null)
+            throw new CompletionException(new IOException("tracker refused: " + failure));
+
+        List<Peer> peers = new ArrayList<>();
+        BencodeParser.Value peersVal = map.get("peers");
+        if (peersVal != null && peersVal.isString()) {
+            parseCompactPeers(peersVal.asBuffer(), peers);
+        } else if (peersVal != null && peersVal.isList()) {
+            // List of dictionaries (non-compact)
+            for (BencodeParser.Value p : peersVal.list()) {
+                String ip = p.getString("ip", null);
+                int port = (int) p.getLong("port", 0);
+                if (ip != null && port > 0 && port < 65535)
+                    peers.add(new Peer(ip, port));
+            }
+        }
+        // "peers6" (18-byte IPv6 entries) is left alone: the engine is IPv4 only
+        return new TrackerResponse(peers, intValue(map, "interval", 0), intValue(map, "min interval", 0),
+                intValue(map, "complete", -1), intValue(map, "incomplete", -1));
+    }
+
+    /**
+     * Scrape an HTTP tracker for this torrent's swarm size. Completes with
+     * null if the tracker has no scrape URL (BEP 48: last path segment must
+     * start with "announce") or didn't report this torrent.
+     */
+    static CompletableFuture<TrackerResponse> scrape(String trackerUrl, byte[] infoHash) {
+        int slash = trackerUrl.lastIndexOf('/');
+        if (slash < 0 || !trackerUrl.startsWith("announce", slash + 1))
+            return CompletableFuture.completedFuture(null);
+        String scrapeUrl = trackerUrl.substring(0, slash + 1) + "scrape"
+                + trackerUrl.substring(slash + 1 + "announce".length());
+        scrapeUrl += (scrapeUrl.contains("?") ? '&' : '?') + "info_hash=" + urlEncodeBytes(infoHash);
+
+        return fetchDictionary(scrapeUrl).thenApply(dict -> {
+            BencodeParser.Value files = dict.get("files");
+            if (files == null || !files.isDictionary() || files.values().isEmpty())
+                return null;
+            // Keyed by the raw info hash; we asked about exactly one torrent
+            BencodeParser.Value st = files.values().get(0);
+            if (!st.isDictionary())
+                return null;
+            return new TrackerResponse(new ArrayList<>(), 0, 0, intValue(st, "complete", -1),
+                    intValue(st, "incomplete", -1));
+        });
+    }
+
+    // =====================================================================
+    // TRANSPORT
+    // =====================================================================
+
+    private static CompletableFuture<BencodeParser.Value> fetchDictionary(String urlStr) {
+        Proxy proxy = ProxyConfig.getProxy();
+        if (proxy.type() == Proxy.Type.SOCKS) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return parseDictionary(fetchBlocking(urlStr, proxy));
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, SOCKS_THREADS);
+        }
+
+        URI uri;
+        HttpRequest request;
+        try {
+            uri = URI.create(urlStr);
+            request = HttpRequest.newBuilder(uri)
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Accept-Encoding", "gzip")
+                    .GET()
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IOException("invalid URL: " + urlStr));
+        }
+        HttpClient client = client(proxy);
+        // Resolve through the shared cache first: names that just failed fail
+        // fast, and the client's own lookup is then answered from the JVM cache.
+        // Behind an HTTP proxy the proxy resolves the tracker instead.
+        CompletableFuture<?> resolved = proxy.type() == Proxy.Type.DIRECT
+                ? HostResolver.resolve(uri.getHost())
+                : CompletableFuture.completedFuture(null);
+        return resolved
+                .thenCompose(address -> client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()))
+                .thenApply(resp -> {
+                    try {
+                        if (resp.statusCode() != 200)
+                            throw new IOException("responded with code " + resp.statusCode());
+                        boolean gzip = resp.headers().firstValue("Content-Encoding")
+                                .map(e -> e.equalsIgnoreCase("gzip")).orElse(false);
+                        return parseDictionary(gzip ? gunzip(resp.body()) : resp.body());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
 
-            String ip = String.format("%d.%d.%d.%d",
-                    data[i] & 0xFF, data[i + 1] & 0xFF, data[i + 2] & 0xFF, data[i + 3] & 0xFF);
+    private static synchronized HttpClient client(Proxy proxy) {
+        if (httpClient == null || !proxy.equals(httpClientProxy)) {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    // Trackers are plain HTTP/1.1 servers; skip the h2c upgrade dance
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(CONNECT_TIMEOUT)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .executor(HTTP_THREADS);
+            if (proxy.type() == Proxy.Type.HTTP)
+                builder.proxy(ProxySelector.of((InetSocketAddress) proxy.address()));
+            else
+                builder.proxy(HttpClient.Builder.NO_PROXY);
+            httpClient = builder.build();
+            httpClientProxy = proxy;
+        }
+        return httpClient;
+    }
 
-            int port = ((data[i + 4] & 0xFF) << 8) | (data[i + 5] & 0xFF);
+    private static byte[] fetchBlocking(String urlStr, Proxy proxy) throws IOException {
+        URL url = new URL(urlStr);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection(proxy);
+        conn.setConnectTimeout((int) CONNECT_TIMEOUT.toMillis());
+        conn.setReadTimeout((int) REQUEST_TIMEOUT.toMillis());
+        conn.setRequestMethod("GET");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+
+        if (conn.getResponseCode() != 200)
+            throw new IOException("responded with code " + conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            byte[] body = in.readAllBytes();
+            return "gzip".equalsIgnoreCase(conn.getContentEncoding()) ? gunzip(body) : body;
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static BencodeParser.Value parseDictionary(byte[] body) throws IOException {
+        BencodeParser.Value decoded;
+        try {
+            decoded = BencodeParser.parsePrefix(body, 0);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("malformed response: " + e.getMessage());
+        }
+        if (!decoded.isDictionary())
+            throw new IOException("response is not a dictionary");
+        return decoded;
+    }
 
-            // Skip bogus peers (0.0.0.0, port 0, or port 65535)
-            if ("0.0.0.0".equals(ip) || port <= 0 || port >= 65535)
-                continue;
+    private static int intValue(BencodeParser.Value dict, String key, int fallback) {
+        return (int) Math.min(Integer.MAX_VALUE, dict.getLong(key, fallback));
+    }
 
-            peers.add(new Peer(ip, port));
+    private static void parseCompactPeers(ByteBuffer data, List<Peer> peers) {
+        // Compact peers: 6 bytes per peer (4 IP + 2 Port)
+        byte[] entry = new byte[6];
+        while (data.remaining() >= 6) {
+            data.get(entry);
+            Peer peer = Peer.fromCompact(entry, 0);
+            if (peer != null)
+                peers.add(peer);
         }
     }
 
@@ -93,12 +269,48 @@ public class TrackerClient {
     }
 
     public static class Peer {
-        String ip;
-        int port;
+        final String ip;
+        final int port;
+        // Packed IPv4 + port (see PeerTable); 0 for non-IPv4 addresses
+        final long key;
 
         public Peer(String ip, int port) {
             this.ip = ip;
             this.port = port;
+            this.key = PeerTable.pack(ip, port);
+        }
+
+        private Peer(long key) {
+            this.ip = PeerTable.ipString(key);
+            this.port = PeerTable.portOf(key);
+            this.key = key;
+        }
+
+        /**
+         * Decode 6 bytes of compact peer info (4 IP + 2 port). Returns null
+         * for bogus entries (0.0.0.0, port 0, or port 65535).
+         */
+        static Peer fromCompact(byte[] data, int offset) {
+            long key = PeerTable.pack(data, offset);
+            int port = PeerTable.portOf(key);
+            if (PeerTable.ipOf(key) == 0 || port <= 0 || port >= 65535)
+                return null;
+            return new Peer(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Peer))
+                return false;
+            Peer other = (Peer) o;
+            return key != 0 ? key == other.key : port == other.port && ip.equals(other.ip);
+        }
+
+        @Override
+        public int hashCode() {
+            return key != 0 ? Long.hashCode(key) : 31 * ip.hashCode() + port;
         }
 
         @Override
@@ -0,0 +1,20 @@
+package com.media.center.service.torrent;
+
+import java.util.List;
+
+/** What a tracker told us in reply to one announce. */
+class TrackerResponse {
+    final List<TrackerClient.Peer> peers;
+    final int interval; // seconds until the next regular announce, 0 if not given
+    final int minInterval; // seconds, 0 if not given
+    final int seeders; // -1 if unknown
+    final int leechers; // -1 if unknown
+
+    TrackerResponse(List<TrackerClient.Peer> peers, int interval, int minInterval, int seeders, int leechers) {
+        this.peers = peers;
+        this.interval = interval;
+        this.minInterval = minInterval;
+        this.seeders = seeders;
+        this.leechers = leechers;
+    }
+}
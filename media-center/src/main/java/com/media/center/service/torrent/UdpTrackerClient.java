@@ -1,27 +1,90 @@
 package com.media.center.service.torrent;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import com.media.center.service.HostResolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * UDP Tracker Client implementing BEP 15 (UDP Tracker Protocol).
  * https://www.bittorrent.org/beps/bep_0015.html
+ *
+ * All trackers and torrents share one non-blocking DatagramChannel served by
+ * a single selector thread. Replies are matched to requests by transaction
+ * ID, connection IDs are cached per tracker for their one-minute lifetime,
+ * and lost packets are retransmitted with the BEP 15 backoff of
+ * 15 * 2^n seconds. An announce costs no thread while it waits.
  */
 public class UdpTrackerClient {
 
     private static final long CONNECT_MAGIC = 0x41727101980L;
     private static final int ACTION_CONNECT = 0;
     private static final int ACTION_ANNOUNCE = 1;
-    private static final int TIMEOUT_MS = 10000;
+    private static final int ACTION_SCRAPE = 2;
+    private static final int ACTION_ERROR = 3;
+    // Connection IDs are valid for one minute; renew a little early
+    private static final long CONNECTION_ID_TTL_MS = 55_000;
+    private static final long BASE_TIMEOUT_MS = 15_000;
+    // BEP 15 allows n up to 8 (over an hour). Stopping at 2 gives up after
+    // 105 s; a retransmit whose connection ID has outlived CONNECTION_ID_TTL_MS
+    // connects again first, so the tracker never sees an expired ID.
+    private static final int MAX_RETRIES = 2;
+
+    /** One request waiting for its reply. */
+    private static class Transaction {
+        final int id;
+        final InetSocketAddress target;
+        final ByteBuffer request;
+        final CompletableFuture<ByteBuffer> reply = new CompletableFuture<>();
+        // ID the request carries at offset 0; null for a connect request
+        ConnectionId connectionId;
+        int attempt = 0;
+        volatile long deadline;
+
+        Transaction(int id, InetSocketAddress target, ByteBuffer request, ConnectionId connectionId) {
+            this.id = id;
+            this.target = target;
+            this.request = request;
+            this.connectionId = connectionId;
+        }
+    }
+
+    private static class ConnectionId {
+        final long id;
+        final long obtainedAt;
+
+        ConnectionId(long id) {
+            this.id = id;
+            this.obtainedAt = System.currentTimeMillis();
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - obtainedAt < CONNECTION_ID_TTL_MS;
+        }
+    }
+
+    private static final Map<Integer, Transaction> pending = new ConcurrentHashMap<>();
+    private static final Map<InetSocketAddress, ConnectionId> connectionIds = new ConcurrentHashMap<>();
+    // Connects in flight, so concurrent announces to one tracker share a single connect
+    private static final Map<InetSocketAddress, CompletableFuture<ConnectionId>> connecting = new ConcurrentHashMap<>();
+
+    private static DatagramChannel channel;
+    private static Selector selector;
 
     /**
-     * Query a UDP tracker for peers.
+     * Query a UDP tracker for peers, blocking until it answers or gives up.
      *
      * @param trackerUrl Full UDP tracker URL, e.g.
      *                   "udp://tracker.opentrackr.org:1337/announce"
@@ -29,121 +92,251 @@ public class UdpTrackerClient {
      * @return List of peers, empty if failed
      */
     public static List<TrackerClient.Peer> getPeers(String trackerUrl, byte[] infoHash) {
-        List<TrackerClient.Peer> peers = new ArrayList<>();
-        DatagramSocket socket = null;
         try {
-            // Parse URL
-            URI uri = new URI(trackerUrl);
-            String host = uri.getHost();
-            int port = uri.getPort();
-            if (host == null || port <= 0) {
-                System.err.println("UDP Tracker: invalid URL: " + trackerUrl);
-                return peers;
-            }
+            return announce(trackerUrl, infoHash, new AnnounceParams(0, 0, AnnounceParams.UNKNOWN_LEFT,
+                    AnnounceParams.Event.STARTED, -1)).get().peers;
+        } catch (Exception e) {
+            System.err.println("UDP Tracker failed: " + trackerUrl + " - " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
 
-            InetAddress address = InetAddress.getByName(host);
-            socket = new DatagramSocket();
-            socket.setSoTimeout(TIMEOUT_MS);
+    /** Announce without blocking; the future fails if the tracker never answers. */
+    static CompletableFuture<TrackerResponse> announce(String trackerUrl, byte[] infoHash, AnnounceParams params) {
+        return resolve(trackerUrl)
+                .thenCompose(target -> connectionId(target)
+                        .thenCompose(connId -> send(target, announceRequest(connId.id, infoHash, params), connId)))
+                .thenApply(UdpTrackerClient::parseAnnounce);
+    }
 
-            // Step 1: Connect
-            Random random = new Random();
-            int transactionId = random.nextInt();
+    /** Scrape seeders/leechers for one torrent; peers in the result are empty. */
+    static CompletableFuture<TrackerResponse> scrape(String trackerUrl, byte[] infoHash) {
+        return resolve(trackerUrl)
+                .thenCompose(target -> connectionId(target).thenCompose(connId -> {
+                    ByteBuffer req = ByteBuffer.allocate(36);
+                    req.putLong(connId.id);
+                    req.putInt(ACTION_SCRAPE);
+                    req.putInt(0); // transaction_id, filled in by send()
+                    req.put(infoHash);
+                    return send(target, req, connId);
+                }))
+                .thenApply(resp -> {
+                    if (resp.remaining() < 20 || resp.getInt(0) != ACTION_SCRAPE)
+                        throw new IllegalStateException("bad scrape response");
+                    // seeders, completed, leechers
+                    return new TrackerResponse(new ArrayList<>(), 0, 0, resp.getInt(8), resp.getInt(16));
+                });
+    }
 
-            ByteBuffer connectReq = ByteBuffer.allocate(16);
-            connectReq.putLong(CONNECT_MAGIC); // connection_id (magic)
-            connectReq.putInt(ACTION_CONNECT); // action = connect
-            connectReq.putInt(transactionId); // transaction_id
+    // =====================================================================
+    // REQUESTS
+    // =====================================================================
 
-            byte[] connectData = connectReq.array();
-            socket.send(new DatagramPacket(connectData, connectData.length, address, port));
+    private static CompletableFuture<InetSocketAddress> resolve(String trackerUrl) {
+        URI uri;
+        try {
+            uri = new URI(trackerUrl);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        String host = uri.getHost();
+        int port = uri.getPort();
+        if (host == null || port <= 0)
+            return CompletableFuture.failedFuture(new IOException("invalid URL: " + trackerUrl));
+        return HostResolver.resolve(host).thenApply(address -> new InetSocketAddress(address, port));
+    }
 
-            // Receive connect response (16 bytes)
-            byte[] connectResp = new byte[16];
-            DatagramPacket connectRespPacket = new DatagramPacket(connectResp, connectResp.length);
-            socket.receive(connectRespPacket);
+    private static CompletableFuture<ConnectionId> connectionId(InetSocketAddress target) {
+        ConnectionId cached = connectionIds.get(target);
+        if (cached != null && cached.isFresh())
+            return CompletableFuture.completedFuture(cached);
 
-            ByteBuffer respBuf = ByteBuffer.wrap(connectResp);
-            int respAction = respBuf.getInt();
-            int respTransId = respBuf.getInt();
-            long connectionId = respBuf.getLong();
+        CompletableFuture<ConnectionId> mine = new CompletableFuture<>();
+        CompletableFuture<ConnectionId> existing = connecting.putIfAbsent(target, mine);
+        if (existing != null)
+            return existing;
 
-            if (respAction != ACTION_CONNECT || respTransId != transactionId) {
-                System.err.println("UDP Tracker: bad connect response from " + trackerUrl);
-                return peers;
+        ByteBuffer req = ByteBuffer.allocate(16);
+        req.putLong(CONNECT_MAGIC); // connection_id (magic)
+        req.putInt(ACTION_CONNECT); // action = connect
+        req.putInt(0); // transaction_id, filled in by send()
+        send(target, req, null).whenComplete((resp, err) -> {
+            connecting.remove(target, mine);
+            if (err != null) {
+                mine.completeExceptionally(err);
+                return;
             }
-
-            // Step 2: Announce
-            int announceTransId = random.nextInt();
-            byte[] peerId = TrackerClient.getPeerId().getBytes();
-
-            ByteBuffer announceReq = ByteBuffer.allocate(98);
-            announceReq.putLong(connectionId); // connection_id
-            announceReq.putInt(ACTION_ANNOUNCE); // action = announce
-            announceReq.putInt(announceTransId); // transaction_id
-            announceReq.put(infoHash); // info_hash (20 bytes)
-            announceReq.put(peerId, 0, 20); // peer_id (20 bytes)
-            announceReq.putLong(0); // downloaded
-            announceReq.putLong(0); // left
-            announceReq.putLong(0); // uploaded
-            announceReq.putInt(0); // event (0 = none)
-            announceReq.putInt(0); // IP address (0 = default)
-            announceReq.putInt(random.nextInt()); // key
-            announceReq.putInt(-1); // num_want (-1 = default)
-            announceReq.putShort((short) TorrentDownloader.getListenPort()); // port
-
-            byte[] announceData = announceReq.array();
-            socket.send(new DatagramPacket(announceData, announceData.length, address, port));
-
-            // Receive announce response (20+ bytes: header + 6 bytes per peer)
-            byte[] announceResp = new byte[4096];
-            DatagramPacket announceRespPacket = new DatagramPacket(announceResp, announceResp.length);
-            socket.receive(announceRespPacket);
-
-            int receivedLen = announceRespPacket.getLength();
-            if (receivedLen < 20) {
-                System.err.println("UDP Tracker: short announce response from " + trackerUrl);
-                return peers;
+            if (resp.remaining() < 16 || resp.getInt(0) != ACTION_CONNECT) {
+                mine.completeExceptionally(new IOException("bad connect response"));
+                return;
             }
+            ConnectionId id = new ConnectionId(resp.getLong(8));
+            connectionIds.put(target, id);
+            mine.complete(id);
+        });
+        return mine;
+    }
 
-            ByteBuffer annBuf = ByteBuffer.wrap(announceResp, 0, receivedLen);
-            int annAction = annBuf.getInt();
-            int annTransId = annBuf.getInt();
+    private static ByteBuffer announceRequest(long connectionId, byte[] infoHash, AnnounceParams params) {
+        byte[] peerId = TrackerClient.getPeerId().getBytes();
+        ByteBuffer req = ByteBuffer.allocate(98);
+        req.putLong(connectionId); // connection_id
+        req.putInt(ACTION_ANNOUNCE); // action = announce
+        req.putInt(0); // transaction_id, filled in by send()
+        req.put(infoHash); // info_hash (20 bytes)
+        req.put(peerId, 0, 20); // peer_id (20 bytes)
+        req.putLong(params.downloaded); // downloaded
+        req.putLong(params.left); // left
+        req.putLong(params.uploaded); // uploaded
+        req.putInt(params.event.udpId); // event
+        req.putInt(0); // IP address (0 = default)
+        req.putInt(ThreadLocalRandom.current().nextInt()); // key
+        req.putInt(params.numWant); // num_want (-1 = default)
+        req.putShort((short) TorrentDownloader.getListenPort()); // port
+        return req;
+    }
 
-            if (annAction != ACTION_ANNOUNCE || annTransId != announceTransId) {
-                System.err.println("UDP Tracker: bad announce response from " + trackerUrl);
-                return peers;
-            }
+    private static TrackerResponse parseAnnounce(ByteBuffer resp) {
+        if (resp.remaining() < 20 || resp.getInt(0) != ACTION_ANNOUNCE)
+            throw new IllegalStateException("bad announce response");
+        int interval = resp.getInt(8);
+        int leechers = resp.getInt(12);
+        int seeders = resp.getInt(16);
 
-            int interval = annBuf.getInt(); // interval (unused for now)
-            int leechers = annBuf.getInt(); // leechers
-            int seeders = annBuf.getInt(); // seeders
-
-            // Parse compact peers (6 bytes each: 4 IP + 2 port)
-            int peerDataLen = receivedLen - 20;
-            for (int i = 0; i < peerDataLen; i += 6) {
-                if (i + 6 > peerDataLen)
-                    break;
-
-                int offset = 20 + i;
-                String ip = String.format("%d.%d.%d.%d",
-                        announceResp[offset] & 0xFF,
-                        announceResp[offset + 1] & 0xFF,
-                        announceResp[offset + 2] & 0xFF,
-                        announceResp[offset + 3] & 0xFF);
-                int peerPort = ((announceResp[offset + 4] & 0xFF) << 8) | (announceResp[offset + 5] & 0xFF);
-
-                if (peerPort > 0 && peerPort < 65535 && !"0.0.0.0".equals(ip)) {
-                    peers.add(new TrackerClient.Peer(ip, peerPort));
-                }
+        // Compact peers (6 bytes each: 4 IP + 2 port)
+        byte[] data = new byte[resp.remaining() - 20];
+        resp.position(20);
+        resp.get(data);
+        List<TrackerClient.Peer> peers = new ArrayList<>();
+        for (int i = 0; i + 6 <= data.length; i += 6) {
+            TrackerClient.Peer peer = TrackerClient.Peer.fromCompact(data, i);
+            if (peer != null)
+                peers.add(peer);
+        }
+        return new TrackerResponse(peers, interval, 0, seeders, leechers);
+    }
+
+    /**
+     * Send a request (transaction ID at offset 12 is assigned here) and
+     * complete with the raw reply once it arrives. {@code connectionId} is
+     * the ID the request carries, null for a connect.
+     */
+    private static CompletableFuture<ByteBuffer> send(InetSocketAddress target, ByteBuffer request,
+            ConnectionId connectionId) {
+        try {
+            ensureStarted();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Transaction t;
+        do {
+            int id = ThreadLocalRandom.current().nextInt();
+            t = new Transaction(id, target, request, connectionId);
+        } while (pending.putIfAbsent(t.id, t) != null);
+        request.putInt(12, t.id);
+        transmit(t);
+        return t.reply;
+    }
+
+    private static void transmit(Transaction t) {
+        t.deadline = System.currentTimeMillis() + (BASE_TIMEOUT_MS << t.attempt);
+        try {
+            // A full send buffer drops the packet; the retry timer covers that
+            channel.send(t.request.duplicate().clear(), t.target);
+        } catch (IOException e) {
+            pending.remove(t.id);
+            t.reply.completeExceptionally(e);
+        }
+    }
+
+    // =====================================================================
+    // SELECTOR THREAD
+    // =====================================================================
+
+    private static synchronized void ensureStarted() throws IOException {
+        if (channel != null)
+            return;
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        channel.register(selector, SelectionKey.OP_READ);
+        Thread thread = new Thread(UdpTrackerClient::selectLoop, "UdpTracker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void selectLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        while (true) {
+            try {
+                selector.select(1000);
+                selector.selectedKeys().clear();
+                SocketAddress from;
+                while ((from = channel.receive(buf.clear())) != null)
+                    dispatch(from, buf.flip());
+                retransmitExpired();
+            } catch (Exception e) {
+                System.err.println("UDP Tracker socket error: " + e.getMessage());
             }
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("UDP Tracker failed: " + trackerUrl + " - " + e.getMessage());
-        } finally {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+    private static void dispatch(SocketAddress from, ByteBuffer packet) {
+        if (packet.remaining() < 8)
+            return;
+        int action = packet.getInt(0);
+        int txId = packet.getInt(4);
+        Transaction t = pending.get(txId);
+        if (t == null || !t.target.equals(from))
+            return; // late duplicate, or someone spoofing
+        pending.remove(txId);
+
+        if (action == ACTION_ERROR) {
+            byte[] msg = new byte[packet.remaining() - 8];
+            packet.position(8);
+            packet.get(msg);
+            connectionIds.remove(t.target);
+            t.reply.completeExceptionally(new IOException("tracker error: " + new String(msg)));
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet).flip();
+        t.reply.complete(copy);
+    }
+
+    private static void retransmitExpired() {
+        long now = System.currentTimeMillis();
+        for (Transaction t : pending.values()) {
+            if (now < t.deadline)
+                continue;
+            if (++t.attempt > MAX_RETRIES) {
+                pending.remove(t.id);
+                connectionIds.remove(t.target);
+                t.reply.completeExceptionally(new IOException("timed out"));
+            } else if (t.connectionId != null && !t.connectionId.isFresh()) {
+                reconnectAndTransmit(t);
+            } else {
+                transmit(t);
             }
         }
-        return peers;
+    }
+
+    /** Resend with a new connection ID; the old one would reach the tracker expired. */
+    private static void reconnectAndTransmit(Transaction t) {
+        t.deadline = Long.MAX_VALUE; // not due again until the new ID is in
+        connectionIds.remove(t.target, t.connectionId);
+        connectionId(t.target).whenComplete((connId, err) -> {
+            if (err != null) {
+                if (pending.remove(t.id, t))
+                    t.reply.completeExceptionally(err);
+                return;
+            }
+            if (!pending.containsKey(t.id))
+                return; // the earlier send was answered meanwhile
+            t.connectionId = connId;
+            t.request.putLong(0, connId.id);
+            transmit(t);
+        });
     }
 }
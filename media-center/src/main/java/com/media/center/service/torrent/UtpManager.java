@@ -0,0 +1,241 @@
+package com.media.center.service.torrent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Carries every uTP connection (BEP 29) over one UDP socket.
+ *
+ * Incoming packets are matched to connections by sender address and
+ * connection ID; a SYN for an unknown connection is offered to the current
+ * acceptor, and anything else unknown is answered with a RESET so the other
+ * side gives up quickly. One timer thread drives retransmits, delayed ACKs
+ * and closing for all connections.
+ *
+ * The process-wide instance shares the DHT node's socket on the listen
+ * port, where peers expect to find uTP: the DHT hands over every datagram
+ * that isn't bencoded. Without a DHT it opens a socket of its own.
+ */
+class UtpManager {
+
+    /** Where outgoing packets go: the shared socket, or a test harness. */
+    interface PacketSender {
+        void send(ByteBuffer packet, InetSocketAddress to) throws IOException;
+    }
+
+    private static final long TICK_MS = 20;
+
+    private static final class ConnectionKey {
+        final InetSocketAddress remote;
+        final int receiveId;
+
+        ConnectionKey(InetSocketAddress remote, int receiveId) {
+            this.remote = remote;
+            this.receiveId = receiveId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConnectionKey))
+                return false;
+            ConnectionKey k = (ConnectionKey) o;
+            return receiveId == k.receiveId && remote.equals(k.remote);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(remote, receiveId);
+        }
+    }
+
+    private static UtpManager shared;
+    private static boolean sharedFailed = false;
+
+    private final PacketSender sender;
+    private final Map<ConnectionKey, UtpSocket> connections = new ConcurrentHashMap<>();
+    private final AtomicReference<Consumer<UtpSocket>> acceptor = new AtomicReference<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "UtpTimer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Feed received datagrams to {@link #receive}; packets go out through {@code sender}. */
+    UtpManager(PacketSender sender) {
+        this.sender = sender;
+        timer.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** The process-wide manager, started on first use; null if no socket is available. */
+    static synchronized UtpManager shared() {
+        if (shared == null && !sharedFailed) {
+            DhtNode dht = DhtNode.shared();
+            if (dht != null) {
+                shared = new UtpManager(dht::sendRaw);
+                dht.setForeignPacketHandler(shared::receive);
+            } else {
+                try {
+                    shared = open(TorrentDownloader.getListenPort());
+                } catch (IOException e) {
+                    System.err.println("uTP disabled: " + e.getMessage());
+                    sharedFailed = true;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /** A manager with a UDP socket of its own on {@code port} (0 for any free one). */
+    static UtpManager open(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        UtpManager manager = new UtpManager(channel::send);
+        Thread thread = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocate(65536);
+            while (channel.isOpen()) {
+                try {
+                    SocketAddress from = channel.receive(buf.clear());
+                    byte[] packet = new byte[buf.flip().remaining()];
+                    buf.get(packet);
+                    manager.receive((InetSocketAddress) from, packet);
+                } catch (IOException e) {
+                    if (channel.isOpen())
+                        System.err.println("uTP socket error: " + e.getMessage());
+                }
+            }
+        }, "UtpReceive");
+        thread.setDaemon(true);
+        thread.start();
+        return manager;
+    }
+
+    /** Open a connection; completes once the remote answers, or fails after a few seconds. */
+    CompletableFuture<UtpSocket> connect(InetSocketAddress remote) {
+        try {
+            UtpSocket socket;
+            while (true) {
+                int id = ThreadLocalRandom.current().nextInt(0x10000);
+                ConnectionKey key = new ConnectionKey(remote, id);
+                if (connections.containsKey(key))
+                    continue;
+                socket = UtpSocket.connect(this, remote, id);
+                if (connections.putIfAbsent(key, socket) == null)
+                    break;
+            }
+            return socket.connected();
+        } catch (SocketException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Take incoming connections until {@link #releaseAcceptor}. Called on
+     * the receive thread, so the acceptor must hand the socket off rather
+     * than block. Returns false if someone else is already accepting.
+     */
+    boolean claimAcceptor(Consumer<UtpSocket> handler) {
+        return acceptor.compareAndSet(null, handler);
+    }
+
+    void releaseAcceptor(Consumer<UtpSocket> handler) {
+        acceptor.compareAndSet(handler, null);
+    }
+
+    /** Number of open connections, for diagnostics. */
+    int connectionCount() {
+        return connections.size();
+    }
+
+    /** Close every connection and stop the timer, for a manager no longer in use. */
+    void close() {
+        for (UtpSocket socket : connections.values())
+            socket.close();
+        connections.clear();
+        timer.shutdownNow();
+    }
+
+    // =====================================================================
+    // PACKETS
+    // =====================================================================
+
+    /** Handle one received datagram. */
+    void receive(InetSocketAddress from, byte[] data) {
+        UtpSocket.Packet p = UtpSocket.Packet.parse(data);
+        if (p == null)
+            return;
+        if (p.type == UtpSocket.ST_SYN) {
+            ConnectionKey key = new ConnectionKey(from, (p.connectionId + 1) & 0xFFFF);
+            UtpSocket existing = connections.get(key);
+            if (existing != null) {
+                existing.onPacket(p);
+                return;
+            }
+            Consumer<UtpSocket> handler = acceptor.get();
+            if (handler == null) {
+                sendReset(from, p);
+                return;
+            }
+            try {
+                UtpSocket socket = UtpSocket.accept(this, from, p);
+                connections.put(key, socket);
+                handler.accept(socket);
+            } catch (SocketException e) {
+                sendReset(from, p);
+            }
+            return;
+        }
+        UtpSocket socket = connections.get(new ConnectionKey(from, p.connectionId));
+        if (socket != null)
+            socket.onPacket(p);
+        else if (p.type != UtpSocket.ST_RESET)
+            sendReset(from, p);
+    }
+
+    void send(byte[] packet, int length, InetSocketAddress to) {
+        try {
+            sender.send(ByteBuffer.wrap(packet, 0, length), to);
+        } catch (IOException e) {
+            // Treated like loss; the connection's timers resend or give up
+        }
+    }
+
+    private void sendReset(InetSocketAddress to, UtpSocket.Packet p) {
+        byte[] packet = new byte[UtpSocket.HEADER_SIZE];
+        packet[0] = (byte) (UtpSocket.ST_RESET << 4 | UtpSocket.VERSION);
+        packet[2] = (byte) (p.connectionId >>> 8);
+        packet[3] = (byte) p.connectionId;
+        packet[18] = (byte) (p.seq >>> 8);
+        packet[19] = (byte) p.seq;
+        send(packet, packet.length, to);
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Iterator<UtpSocket> it = connections.values().iterator(); it.hasNext();) {
+            UtpSocket socket = it.next();
+            try {
+                socket.tick(now);
+            } catch (RuntimeException e) {
+                // One broken connection must not stop the timer for the rest
+                System.err.println("uTP timer error on " + socket + ": " + e);
+            }
+            if (socket.isFinished())
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,772 @@
+package com.media.center.service.torrent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One uTP connection (BEP 29), presented as a {@link Socket} so the download
+ * engine can use it exactly like a TCP connection.
+ * https://www.bittorrent.org/beps/bep_0029.html
+ *
+ * Written bytes are cut into packets and sent as the congestion window
+ * allows. The window is steered by {@link LedbatController} from the
+ * one-way delay the remote reports back, so a bulk transfer backs off as
+ * soon as it starts queueing in a router buffer instead of filling it.
+ * Received packets are put back in order and acknowledged, with selective
+ * ACKs while some are missing; lost packets are resent after three
+ * duplicate ACKs or a timeout.
+ *
+ * All state is guarded by this object's monitor. Packets arrive on the
+ * {@link UtpManager} receive thread and timers fire on its timer thread;
+ * reads and writes block the calling thread like socket streams do.
+ */
+class UtpSocket extends Socket {
+
+    // Packet types
+    static final int ST_DATA = 0;
+    static final int ST_FIN = 1;
+    static final int ST_STATE = 2;
+    static final int ST_RESET = 3;
+    static final int ST_SYN = 4;
+
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+    static final int MAX_PACKET_SIZE = 1400;
+    static final int MAX_PAYLOAD = MAX_PACKET_SIZE - HEADER_SIZE;
+
+    private static final int EXT_SELECTIVE_ACK = 1;
+    private static final int SACK_BYTES = 4; // covers the 32 packets after the first missing one
+    // Same sizes the TCP connects ask for (SO_RCVBUF / SO_SNDBUF)
+    private static final int RECEIVE_BUFFER = 256 * 1024;
+    private static final int SEND_BUFFER = 64 * 1024;
+    // Furthest ahead of the next expected packet we keep out-of-order data
+    private static final int MAX_REORDER = RECEIVE_BUFFER / MAX_PAYLOAD;
+    private static final long INITIAL_TIMEOUT_MS = 1000;
+    private static final long MIN_TIMEOUT_MS = 500;
+    private static final long MAX_TIMEOUT_MS = 8000;
+    // Timeouts in a row (each doubling) before the connection is given up
+    private static final int MAX_TIMEOUTS = 6;
+    // SYNs sent before connect() fails: 1 s, then 2 s, so a TCP-only peer costs 3 s
+    private static final int SYN_ATTEMPTS = 2;
+    private static final int SYN_SEQ = 1;
+    private static final long KEEPALIVE_MS = 29_000;
+    // How long close() keeps trying to deliver unsent data and the FIN
+    private static final long LINGER_MS = 10_000;
+
+    private enum State { SYN_SENT, CONNECTED, CLOSED }
+
+    /** A sent packet kept until it is acknowledged. */
+    private static final class OutPacket {
+        final int seq;
+        final byte[] bytes;
+        final int payloadLength;
+        long sentAtMs;
+        int transmissions = 0;
+        boolean acked = false;
+        boolean fastResent = false;
+
+        OutPacket(int seq, byte[] bytes, int payloadLength) {
+            this.seq = seq;
+            this.bytes = bytes;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    /** A decoded packet. */
+    static final class Packet {
+        int type;
+        int connectionId;
+        long timestampMicros;
+        long timestampDifferenceMicros;
+        long window;
+        int seq;
+        int ack;
+        byte[] selectiveAck; // null if absent
+        byte[] payload;
+
+        /** Parse a datagram; null if it isn't a well-formed uTP version 1 packet. */
+        static Packet parse(byte[] data) {
+            if (data.length < HEADER_SIZE || (data[0] & 0x0F) != VERSION)
+                return null;
+            Packet p = new Packet();
+            p.type = (data[0] & 0xFF) >>> 4;
+            if (p.type > ST_SYN)
+                return null;
+            p.connectionId = u16(data, 2);
+            p.timestampMicros = u32(data, 4);
+            p.timestampDifferenceMicros = u32(data, 8);
+            p.window = u32(data, 12);
+            p.seq = u16(data, 16);
+            p.ack = u16(data, 18);
+
+            int ext = data[1] & 0xFF;
+            int pos = HEADER_SIZE;
+            while (ext != 0) {
+                if (pos + 2 > data.length)
+                    return null;
+                int next = data[pos] & 0xFF;
+                int len = data[pos + 1] & 0xFF;
+                if (pos + 2 + len > data.length)
+                    return null;
+                if (ext == EXT_SELECTIVE_ACK) {
+                    p.selectiveAck = new byte[len];
+                    System.arraycopy(data, pos + 2, p.selectiveAck, 0, len);
+                }
+                pos += 2 + len;
+                ext = next;
+            }
+            p.payload = new byte[data.length - pos];
+            System.arraycopy(data, pos, p.payload, 0, p.payload.length);
+            return p;
+        }
+    }
+
+    private final UtpManager manager;
+    private final InetSocketAddress remote;
+    final int receiveId; // connection_id on packets we receive
+    private final int sendId; // connection_id on packets we send
+    private State state;
+    private IOException failure;
+    private final CompletableFuture<UtpSocket> connected = new CompletableFuture<>();
+    private long synDeadline;
+    private int synsSent = 0;
+
+    // Sending
+    private int seqNr; // next sequence number to use
+    private final ArrayDeque<OutPacket> inFlight = new ArrayDeque<>();
+    private int bytesInFlight = 0;
+    private final ByteQueue sendQueue = new ByteQueue(SEND_BUFFER);
+    private final LedbatController ledbat = new LedbatController();
+    private long peerWindow = MAX_PACKET_SIZE;
+    private int lastAckReceived = -1;
+    private int duplicateAcks = 0;
+    private long rttMs = -1;
+    private long rttVarianceMs = 0;
+    private long timeoutMs = INITIAL_TIMEOUT_MS;
+    private long retransmitAt = 0;
+    private int timeouts = 0;
+    private long lastSendAt = System.currentTimeMillis();
+
+    // Receiving
+    private int ackNr; // last sequence number received in order
+    private final Map<Integer, Packet> outOfOrder = new HashMap<>();
+    private final ByteQueue receiveQueue = new ByteQueue(RECEIVE_BUFFER);
+    private boolean eof = false;
+    private int unackedPackets = 0;
+    private long replyMicros = 0; // delay of the last packet we got, echoed back
+
+    // Closing
+    private boolean closedByUser = false;
+    private long closedAt;
+    private boolean finSent = false;
+    private int soTimeout = 0;
+
+    private final InputStream input = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return UtpSocket.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (UtpSocket.this) {
+                return receiveQueue.size();
+            }
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            UtpSocket.this.write(b, off, len);
+        }
+    };
+
+    private UtpSocket(UtpManager manager, InetSocketAddress remote, int receiveId, int sendId) throws SocketException {
+        super((SocketImpl) null);
+        this.manager = manager;
+        this.remote = remote;
+        this.receiveId = receiveId;
+        this.sendId = sendId;
+    }
+
+    /** Start an outgoing connection by sending SYN; see {@link #connected()}. */
+    static UtpSocket connect(UtpManager manager, InetSocketAddress remote, int receiveId) throws SocketException {
+        UtpSocket s = new UtpSocket(manager, remote, receiveId, (receiveId + 1) & 0xFFFF);
+        synchronized (s) {
+            s.state = State.SYN_SENT;
+            s.seqNr = SYN_SEQ + 1;
+            s.sendSyn(System.currentTimeMillis());
+        }
+        return s;
+    }
+
+    /** Accept an incoming SYN: the connection is open once our STATE goes out. */
+    static UtpSocket accept(UtpManager manager, InetSocketAddress remote, Packet syn) throws SocketException {
+        UtpSocket s = new UtpSocket(manager, remote, (syn.connectionId + 1) & 0xFFFF, syn.connectionId);
+        synchronized (s) {
+            s.state = State.CONNECTED;
+            s.seqNr = ThreadLocalRandom.current().nextInt(0x10000);
+            s.ackNr = syn.seq;
+            s.peerWindow = syn.window;
+            s.replyMicros = (nowMicros() - syn.timestampMicros) & 0xFFFFFFFFL;
+            s.sendAck();
+            s.connected.complete(s);
+        }
+        return s;
+    }
+
+    /** Completes once the remote has answered our SYN; fails on timeout or reset. */
+    CompletableFuture<UtpSocket> connected() {
+        return connected;
+    }
+
+    /** Fully closed: the manager can forget it. */
+    synchronized boolean isFinished() {
+        return state == State.CLOSED;
+    }
+
+    // =====================================================================
+    // INCOMING PACKETS (receive thread)
+    // =====================================================================
+
+    synchronized void onPacket(Packet p) {
+        if (state == State.CLOSED)
+            return;
+        long now = System.currentTimeMillis();
+        replyMicros = (nowMicros() - p.timestampMicros) & 0xFFFFFFFFL;
+        peerWindow = p.window;
+
+        if (p.type == ST_RESET) {
+            fail(new SocketException("Connection reset by peer"));
+            return;
+        }
+        if (p.type == ST_SYN) {
+            sendAck(); // our STATE got lost; the remote is still waiting for it
+            return;
+        }
+        if (state == State.SYN_SENT) {
+            if (p.type != ST_STATE)
+                return;
+            state = State.CONNECTED;
+            // The STATE carries the sequence number its first data packet will use
+            ackNr = (p.seq - 1) & 0xFFFF;
+            connected.complete(this);
+        }
+
+        processAck(p, now);
+        if (p.type == ST_DATA || p.type == ST_FIN)
+            receive(p);
+        flushSend(now);
+        notifyAll();
+    }
+
+    private void processAck(Packet p, long now) {
+        // Ignore acks for packets we never sent
+        if (seqAfter(p.ack, (seqNr - 1) & 0xFFFF))
+            return;
+        int flightBefore = bytesInFlight;
+        int acked = 0;
+        boolean advanced = false;
+        while (!inFlight.isEmpty() && !seqAfter(inFlight.peekFirst().seq, p.ack)) {
+            OutPacket o = inFlight.pollFirst();
+            advanced = true;
+            if (!o.acked)
+                acked += packetAcked(o, now);
+        }
+
+        int sackedPastFirst = 0;
+        if (p.selectiveAck != null && !inFlight.isEmpty()) {
+            for (OutPacket o : inFlight) {
+                int bit = (o.seq - p.ack - 2) & 0xFFFF;
+                if (bit < p.selectiveAck.length * 8 && (p.selectiveAck[bit / 8] & (1 << (bit % 8))) != 0) {
+                    if (!o.acked)
+                        acked += packetAcked(o, now);
+                    sackedPastFirst++;
+                }
+            }
+        }
+
+        if (advanced) {
+            duplicateAcks = 0;
+        } else if (p.type == ST_STATE && p.ack == lastAckReceived && !inFlight.isEmpty()) {
+            duplicateAcks++;
+        }
+        lastAckReceived = p.ack;
+
+        // Three duplicate acks, or three later packets selectively acked: the first one is lost
+        OutPacket first = firstUnacked();
+        if (first != null && !first.fastResent && (duplicateAcks >= 3 || sackedPastFirst >= 3)) {
+            first.fastResent = true;
+            ledbat.onLoss();
+            transmit(first, now);
+        }
+
+        if (acked > 0) {
+            timeouts = 0;
+            ledbat.onAck(acked, p.timestampDifferenceMicros, flightBefore, now);
+        }
+        if (advanced || acked > 0)
+            retransmitAt = firstUnacked() != null ? now + timeoutMs : 0;
+    }
+
+    /** Count one packet as delivered; returns its payload size. */
+    private int packetAcked(OutPacket o, long now) {
+        o.acked = true;
+        bytesInFlight -= o.payloadLength;
+        // Karn: only packets sent once give a clean round-trip sample
+        if (o.transmissions == 1) {
+            long sample = now - o.sentAtMs;
+            if (rttMs < 0) {
+                rttMs = sample;
+                rttVarianceMs = sample / 2;
+            } else {
+                rttVarianceMs += (Math.abs(rttMs - sample) - rttVarianceMs) / 4;
+                rttMs += (sample - rttMs) / 8;
+            }
+            timeoutMs = Math.max(MIN_TIMEOUT_MS, rttMs + 4 * rttVarianceMs);
+        }
+        return o.payloadLength;
+    }
+
+    private OutPacket firstUnacked() {
+        for (OutPacket o : inFlight) {
+            if (!o.acked)
+                return o;
+        }
+        return null;
+    }
+
+    private void receive(Packet p) {
+        int distance = (p.seq - ackNr - 1) & 0xFFFF;
+        if (distance >= 0x8000) {
+            sendAck(); // a duplicate: our ack for it must have been lost
+            return;
+        }
+        if (distance > MAX_REORDER)
+            return;
+        if (distance > 0) {
+            outOfOrder.putIfAbsent(p.seq, p);
+            sendAck(); // at once, so the gap is selectively acked quickly
+            return;
+        }
+        if (!deliver(p))
+            return; // no room: not acked, so the remote sends it again
+        Packet next;
+        while ((next = outOfOrder.get((ackNr + 1) & 0xFFFF)) != null && deliver(next))
+            outOfOrder.remove(next.seq);
+        // Every second packet, or straight away while a gap is open; the timer catches the rest
+        if (++unackedPackets >= 2 || !outOfOrder.isEmpty())
+            sendAck();
+    }
+
+    /** Take the next in-order packet; false if the receive buffer can't hold it yet. */
+    private boolean deliver(Packet p) {
+        if (eof)
+            return true;
+        if (p.type == ST_FIN) {
+            eof = true;
+        } else {
+            if (receiveQueue.free() < p.payload.length)
+                return false;
+            receiveQueue.write(p.payload, 0, p.payload.length);
+        }
+        ackNr = p.seq;
+        return true;
+    }
+
+    // =====================================================================
+    // SENDING
+    // =====================================================================
+
+    /** Packetise queued data (and the FIN once closing) as far as the windows allow. */
+    private void flushSend(long now) {
+        if (state != State.CONNECTED)
+            return;
+        long window = Math.min(ledbat.window(), peerWindow);
+        while (!sendQueue.isEmpty()) {
+            int len = Math.min(MAX_PAYLOAD, sendQueue.size());
+            // An empty pipe always gets one packet, which also probes a zero window
+            if (bytesInFlight > 0 && bytesInFlight + len > window)
+                break;
+            byte[] packet = new byte[HEADER_SIZE + len];
+            sendQueue.read(packet, HEADER_SIZE, len);
+            queuePacket(ST_DATA, packet, len, now);
+        }
+        if (closedByUser && !finSent && sendQueue.isEmpty()) {
+            finSent = true;
+            queuePacket(ST_FIN, new byte[HEADER_SIZE], 0, now);
+        }
+        notifyAll(); // writers waiting for buffer space
+    }
+
+    private void queuePacket(int type, byte[] packet, int payloadLength, long now) {
+        OutPacket o = new OutPacket(seqNr, packet, payloadLength);
+        packet[0] = (byte) (type << 4 | VERSION);
+        seqNr = (seqNr + 1) & 0xFFFF;
+        inFlight.addLast(o);
+        bytesInFlight += payloadLength;
+        transmit(o, now);
+        if (retransmitAt == 0)
+            retransmitAt = now + timeoutMs;
+    }
+
+    /** (Re)send a queued packet with fresh timestamps and acknowledgement. */
+    private void transmit(OutPacket o, long now) {
+        writeHeader(o.bytes, (o.bytes[0] & 0xFF) >>> 4, 0, o.seq);
+        o.transmissions++;
+        o.sentAtMs = now;
+        unackedPackets = 0; // every packet carries our ack_nr
+        send(o.bytes, o.bytes.length);
+    }
+
+    private void sendSyn(long now) {
+        byte[] packet = new byte[HEADER_SIZE];
+        writeHeader(packet, ST_SYN, 0, SYN_SEQ);
+        // SYNs go out on the ID we receive on; everything after uses receive ID + 1
+        putU16(packet, 2, receiveId);
+        synsSent++;
+        synDeadline = now + (INITIAL_TIMEOUT_MS << (synsSent - 1));
+        send(packet, packet.length);
+    }
+
+    /** STATE packet acknowledging what we have, with selective acks for any gap. */
+    private void sendAck() {
+        boolean sack = !outOfOrder.isEmpty();
+        byte[] packet = new byte[HEADER_SIZE + (sack ? 2 + SACK_BYTES : 0)];
+        writeHeader(packet, ST_STATE, sack ? EXT_SELECTIVE_ACK : 0, seqNr);
+        if (sack) {
+            packet[HEADER_SIZE] = 0; // no further extension
+            packet[HEADER_SIZE + 1] = SACK_BYTES;
+            for (int seq : outOfOrder.keySet()) {
+                int bit = (seq - ackNr - 2) & 0xFFFF;
+                if (bit < SACK_BYTES * 8)
+                    packet[HEADER_SIZE + 2 + bit / 8] |= (byte) (1 << (bit % 8));
+            }
+        }
+        unackedPackets = 0;
+        send(packet, packet.length);
+    }
+
+    private void writeHeader(byte[] p, int type, int extension, int seq) {
+        p[0] = (byte) (type << 4 | VERSION);
+        p[1] = (byte) extension;
+        putU16(p, 2, sendId);
+        putU32(p, 4, nowMicros());
+        putU32(p, 8, replyMicros);
+        putU32(p, 12, Math.max(0, RECEIVE_BUFFER - receiveQueue.size()));
+        putU16(p, 16, seq);
+        putU16(p, 18, ackNr);
+    }
+
+    private void send(byte[] packet, int length) {
+        lastSendAt = System.currentTimeMillis();
+        manager.send(packet, length, remote);
+    }
+
+    // =====================================================================
+    // TIMERS (timer thread)
+    // =====================================================================
+
+    synchronized void tick(long now) {
+        if (state == State.SYN_SENT) {
+            if (now >= synDeadline) {
+                if (synsSent >= SYN_ATTEMPTS)
+                    fail(new SocketTimeoutException("uTP connect timed out"));
+                else
+                    sendSyn(now);
+            }
+            return;
+        }
+        if (state != State.CONNECTED)
+            return;
+
+        if (retransmitAt > 0 && now >= retransmitAt) {
+            OutPacket first = firstUnacked();
+            if (first == null) {
+                retransmitAt = 0;
+            } else if (++timeouts > MAX_TIMEOUTS) {
+                fail(new SocketTimeoutException("uTP connection timed out"));
+                return;
+            } else {
+                ledbat.onTimeout();
+                timeoutMs = Math.min(MAX_TIMEOUT_MS, timeoutMs * 2);
+                duplicateAcks = 0;
+                first.fastResent = false;
+                transmit(first, now);
+                retransmitAt = now + timeoutMs;
+            }
+        }
+        if (unackedPackets > 0 || now - lastSendAt >= KEEPALIVE_MS)
+            sendAck();
+        flushSend(now);
+
+        if (closedByUser) {
+            boolean delivered = finSent && inFlight.isEmpty();
+            if (delivered) {
+                state = State.CLOSED;
+            } else if (now - closedAt > LINGER_MS) {
+                writeReset();
+                state = State.CLOSED;
+            }
+        }
+    }
+
+    private void writeReset() {
+        byte[] packet = new byte[HEADER_SIZE];
+        writeHeader(packet, ST_RESET, 0, seqNr);
+        send(packet, packet.length);
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        state = State.CLOSED;
+        connected.completeExceptionally(e);
+        notifyAll();
+    }
+
+    // =====================================================================
+    // STREAMS
+    // =====================================================================
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        long deadline = soTimeout > 0 ? System.currentTimeMillis() + soTimeout : 0;
+        while (receiveQueue.isEmpty()) {
+            if (closedByUser)
+                throw new SocketException("Socket closed");
+            if (eof)
+                return -1;
+            if (failure != null)
+                throw new SocketException(failure.getMessage());
+            long wait = deadline > 0 ? deadline - System.currentTimeMillis() : 0;
+            if (deadline > 0 && wait <= 0)
+                throw new SocketTimeoutException("Read timed out");
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted");
+            }
+        }
+        boolean wasFull = receiveQueue.free() < MAX_PAYLOAD;
+        int n = receiveQueue.read(b, off, len);
+        // The remote stopped at our zero window: tell it there is room again
+        if (wasFull && state == State.CONNECTED)
+            sendAck();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (closedByUser)
+                throw new SocketException("Socket closed");
+            if (failure != null || state == State.CLOSED)
+                throw new SocketException(failure != null ? failure.getMessage() : "Connection closed");
+            int n = Math.min(len, sendQueue.free());
+            if (n == 0) {
+                try {
+                    wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketException("Interrupted");
+                }
+                continue;
+            }
+            sendQueue.write(b, off, n);
+            off += n;
+            len -= n;
+            flushSend(System.currentTimeMillis());
+        }
+    }
+
+    // =====================================================================
+    // SOCKET
+    // =====================================================================
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public synchronized void setSoTimeout(int timeout) {
+        soTimeout = timeout;
+    }
+
+    @Override
+    public synchronized int getSoTimeout() {
+        return soTimeout;
+    }
+
+    /** Packets go out as soon as the window allows; there is no Nagle to turn off. */
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return remote;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return remote.getAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return remote.getPort();
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return closedByUser;
+    }
+
+    /**
+     * Stop reading and writing. Data already written is still delivered,
+     * followed by a FIN, for up to {@link #LINGER_MS}.
+     */
+    @Override
+    public synchronized void close() {
+        if (closedByUser)
+            return;
+        closedByUser = true;
+        closedAt = System.currentTimeMillis();
+        if (state == State.SYN_SENT)
+            fail(new SocketException("Socket closed"));
+        else
+            flushSend(closedAt);
+        notifyAll();
+    }
+
+    /** Congestion window in bytes. */
+    synchronized int congestionWindow() {
+        return ledbat.window();
+    }
+
+    /** Congestion window and queueing delay, for logging. */
+    synchronized String congestionInfo() {
+        return "window " + ledbat.window() + " B, queueing delay " + ledbat.queueingDelayMicros() / 1000
+                + " ms, rtt " + rttMs + " ms";
+    }
+
+    @Override
+    public String toString() {
+        return "uTP[" + remote + "]";
+    }
+
+    // =====================================================================
+    // HELPERS
+    // =====================================================================
+
+    /** True if sequence number a comes after b (16-bit wraparound). */
+    static boolean seqAfter(int a, int b) {
+        int d = (a - b) & 0xFFFF;
+        return d != 0 && d < 0x8000;
+    }
+
+    static long nowMicros() {
+        return (System.nanoTime() / 1000) & 0xFFFFFFFFL;
+    }
+
+    private static int u16(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static long u32(byte[] b, int off) {
+        return ((b[off] & 0xFFL) << 24) | ((b[off + 1] & 0xFFL) << 16) | ((b[off + 2] & 0xFFL) << 8)
+                | (b[off + 3] & 0xFFL);
+    }
+
+    private static void putU16(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    private static void putU32(byte[] b, int off, long v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /** Fixed-capacity byte ring buffer. */
+    private static final class ByteQueue {
+        private final byte[] buf;
+        private int head = 0;
+        private int size = 0;
+
+        ByteQueue(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int free() {
+            return buf.length - size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /** Append; the caller checks {@link #free()} first. */
+        void write(byte[] src, int off, int len) {
+            int tail = (head + size) % buf.length;
+            int first = Math.min(len, buf.length - tail);
+            System.arraycopy(src, off, buf, tail, first);
+            System.arraycopy(src, off + first, buf, 0, len - first);
+            size += len;
+        }
+
+        int read(byte[] dst, int off, int len) {
+            int n = Math.min(len, size);
+            int first = Math.min(n, buf.length - head);
+            System.arraycopy(buf, head, dst, off, first);
+            System.arraycopy(buf, 0, dst, off + first, n - first);
+            head = (head + n) % buf.length;
+            size -= n;
+            return n;
+        }
+    }
+}
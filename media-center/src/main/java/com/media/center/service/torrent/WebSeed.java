@@ -0,0 +1,207 @@
+package com.media.center.service.torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * One HTTP mirror of a torrent's files (BEP 19 web seeding).
+ * https://www.bittorrent.org/beps/bep_0019.html
+ *
+ * A piece is mapped onto the files it spans and each part read with a
+ * ranged GET; the data then goes through the same hash check as data from
+ * peers. For a single-file torrent the URL names the file itself, unless
+ * it ends in '/', in which case the torrent name is added. For a multi-file
+ * torrent the URL is a directory holding the torrent's root folder.
+ *
+ * Requests go through {@link ProxyConfig#getProxy()} like tracker requests.
+ * A mirror that keeps failing backs off for longer and longer, and one that
+ * ignores ranges, serves the wrong data or doesn't have the files is given
+ * up. Thread-safe, so several workers can share one mirror.
+ */
+class WebSeed {
+
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final long MIN_BACKOFF_MS = 15_000;
+    private static final long MAX_BACKOFF_MS = 10 * 60_000;
+    private static final int MAX_FAILURES = 6;
+    private static final int MAX_BAD_PIECES = 3;
+
+    private final String url;
+    private final String torrentName;
+    private final boolean multiFile;
+
+    private int failures = 0;
+    private int badPieces = 0;
+    private long nextAttemptAt = 0;
+    private boolean dead = false;
+    private long bytesReceived = 0;
+
+    WebSeed(String url, String torrentName, boolean multiFile) {
+        this.url = url;
+        this.torrentName = torrentName;
+        this.multiFile = multiFile;
+    }
+
+    /** True for URLs this class can fetch from. */
+    static boolean isSupported(String url) {
+        String lower = url.toLowerCase();
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    String url() {
+        return url;
+    }
+
+    synchronized boolean isDead() {
+        return dead;
+    }
+
+    /** False while backing off after a failure. */
+    synchronized boolean isReady() {
+        return !dead && System.currentTimeMillis() >= nextAttemptAt;
+    }
+
+    synchronized long bytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Fill {@code data} with the piece starting at {@code pieceStart} in the
+     * torrent's byte stream, using a ranged read of each file it overlaps,
+     * then hash-check it with {@code verify}. Returns false if the check
+     * failed, which counts towards giving the mirror up.
+     */
+    boolean fetchPiece(List<TorrentDownloader.FileEntry> files, long pieceStart, byte[] data,
+            Predicate<byte[]> verify) throws IOException {
+        long pieceEnd = pieceStart + data.length;
+        for (TorrentDownloader.FileEntry entry : files) {
+            long fileStart = entry.offset;
+            long fileEnd = entry.offset + entry.length;
+            // Padding files are all zeros and not on the mirror
+            if (entry.pad || pieceEnd <= fileStart || pieceStart >= fileEnd)
+                continue;
+            long overlapStart = Math.max(pieceStart, fileStart);
+            long overlapEnd = Math.min(pieceEnd, fileEnd);
+            read(entry.path, overlapStart - fileStart, data, (int) (overlapStart - pieceStart),
+                    (int) (overlapEnd - overlapStart));
+        }
+        if (!verify.test(data)) {
+            badPiece();
+            return false;
+        }
+        succeeded();
+        return true;
+    }
+
+    /**
+     * Read {@code length} bytes of a file, starting at {@code offset}, into
+     * {@code dest}. {@code path} is the file's path inside the torrent as the
+     * engine stores it (segments joined with the platform separator).
+     * A failure other than the server being busy counts towards giving up.
+     */
+    private void read(String path, long offset, byte[] dest, int destOffset, int length) throws IOException {
+        boolean served;
+        try {
+            served = readRange(path, offset, dest, destOffset, length);
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+        if (!served)
+            throw new IOException("server busy");
+    }
+
+    /** False if the server is busy (503/429) and we are backing off as it asked. */
+    private boolean readRange(String path, long offset, byte[] dest, int destOffset, int length) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(fileUrl(path)).openConnection(ProxyConfig.getProxy());
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        int code = conn.getResponseCode();
+        // A 200 is only usable if it happens to be exactly what we asked for
+        boolean wholeFile = code == 200 && offset == 0 && conn.getContentLengthLong() == length;
+        if (code != 206 && !wholeFile) {
+            long retryAfter = conn.getHeaderFieldLong("Retry-After", 0);
+            conn.disconnect(); // don't read an unusable body
+            if (code == 503 || code == 429) {
+                // Busy, not broken: wait as long as the server asks
+                backOff(retryAfter > 0 ? retryAfter * 1000 : MIN_BACKOFF_MS);
+                return false;
+            }
+            if (code == 200 || code == 404 || code == 410)
+                giveUp(code == 200 ? "ignores byte ranges" : "file missing (" + code + ")");
+            throw new IOException("responded with code " + code);
+        }
+        try (InputStream in = conn.getInputStream()) {
+            int n = in.readNBytes(dest, destOffset, length);
+            if (n < length)
+                throw new IOException("short read: " + n + " of " + length + " bytes");
+        }
+        synchronized (this) {
+            bytesReceived += length;
+        }
+        return true;
+    }
+
+    /** A whole piece arrived and passed the hash check. */
+    private synchronized void succeeded() {
+        failures = 0;
+    }
+
+    /** Retried after a pause that grows with each failure in a row. */
+    private synchronized void failed() {
+        failures++;
+        if (failures >= MAX_FAILURES) {
+            giveUp("too many failures");
+            return;
+        }
+        long backoff = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << (failures - 1));
+        nextAttemptAt = Math.max(nextAttemptAt, System.currentTimeMillis() + backoff);
+    }
+
+    /** A piece assembled from this mirror failed the hash check. */
+    private synchronized void badPiece() {
+        if (++badPieces >= MAX_BAD_PIECES)
+            giveUp("serves data that doesn't match the torrent");
+    }
+
+    private synchronized void backOff(long delayMs) {
+        nextAttemptAt = Math.max(nextAttemptAt, System.currentTimeMillis() + Math.min(delayMs, MAX_BACKOFF_MS));
+    }
+
+    private synchronized void giveUp(String reason) {
+        if (!dead)
+            System.err.println("Web seed " + url + " dropped: " + reason);
+        dead = true;
+    }
+
+    private String fileUrl(String path) {
+        if (!multiFile)
+            return url.endsWith("/") ? url + encode(torrentName) : url;
+        StringBuilder sb = new StringBuilder(url);
+        if (!url.endsWith("/"))
+            sb.append('/');
+        sb.append(encode(torrentName));
+        for (String segment : path.split(Pattern.quote(File.separator)))
+            sb.append('/').append(encode(segment));
+        return sb.toString();
+    }
+
+    private static String encode(String segment) {
+        return URLEncoder.encode(segment, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
@@ -249,6 +249,15 @@ public class MainController {
             peerPortField.setText("6881");
         }
 
+        // Optional per-torrent connection cap; the engine adapts below it
+        String maxConnections = databaseService.getConfig("max_connections");
+        if (maxConnections != null && !maxConnections.isEmpty()) {
+            try {
+                com.media.center.service.torrent.TorrentDownloader.setMaxConnections(Integer.parseInt(maxConnections));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
         torrentService.setDownloadDir(downloadDir);
 
         // Populate readonly port reference fields
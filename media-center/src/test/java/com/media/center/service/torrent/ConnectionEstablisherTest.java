@@ -0,0 +1,231 @@
+package com.media.center.service.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Dialing peers over uTP and TCP at once, against loopback peers that
+ * answer over both transports or over TCP alone.
+ */
+@Timeout(60)
+class ConnectionEstablisherTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    // Where the peers see our uTP packets coming from
+    private static final InetSocketAddress US = new InetSocketAddress(LOOPBACK, 1);
+
+    private final byte[] infoHash = new byte[20];
+    private final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor();
+    // Port -> peer, for routing our uTP packets
+    private final Map<Integer, FakePeer> peers = new ConcurrentHashMap<>();
+    private final List<ConnectionEstablisher> establishers = new ArrayList<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private UtpManager utp;
+
+    /** A peer with a TCP listener, and a uTP endpoint on the same port if it speaks uTP. */
+    private final class FakePeer {
+        final ServerSocket tcp = new ServerSocket(0, 50, LOOPBACK);
+        final TrackerClient.Peer peer = new TrackerClient.Peer(LOOPBACK.getHostAddress(), tcp.getLocalPort());
+        final UtpManager utp; // null: uTP packets go unanswered
+        final AtomicInteger tcpAccepted = new AtomicInteger();
+        final AtomicInteger utpPackets = new AtomicInteger();
+        final List<Socket> sockets = new ArrayList<>();
+
+        FakePeer(boolean speaksUtp) throws IOException {
+            InetSocketAddress self = new InetSocketAddress(LOOPBACK, tcp.getLocalPort());
+            if (speaksUtp) {
+                UtpManager ours = ConnectionEstablisherTest.this.utp;
+                utp = new UtpManager((packet, to) -> carry(packet, data -> ours.receive(self, data)));
+                utp.claimAcceptor(this::startHandshake);
+            } else {
+                utp = null;
+            }
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket s = tcp.accept();
+                        tcpAccepted.incrementAndGet();
+                        startHandshake(s);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            peers.put(tcp.getLocalPort(), this);
+        }
+
+        private void startHandshake(Socket socket) {
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            Thread t = new Thread(() -> {
+                try {
+                    byte[] theirs = new byte[68];
+                    new DataInputStream(socket.getInputStream()).readFully(theirs);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(handshake());
+                    out.flush();
+                } catch (IOException e) {
+                    // The dialer gave up on this connection
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void close() throws IOException {
+            tcp.close();
+            if (utp != null)
+                utp.close();
+            synchronized (sockets) {
+                for (Socket s : sockets)
+                    s.close();
+            }
+        }
+    }
+
+    private interface Delivery {
+        void deliver(byte[] data);
+    }
+
+    private void carry(ByteBuffer packet, Delivery delivery) {
+        byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        network.execute(() -> delivery.deliver(data));
+    }
+
+    @BeforeEach
+    void setUp() {
+        new Random().nextBytes(infoHash);
+        utp = new UtpManager((packet, to) -> {
+            FakePeer peer = peers.get(to.getPort());
+            peer.utpPackets.incrementAndGet();
+            if (peer.utp != null)
+                carry(packet, data -> peer.utp.receive(US, data));
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (ConnectionEstablisher e : establishers)
+            e.close();
+        for (FakePeer peer : peers.values())
+            peer.close();
+        utp.close();
+        network.shutdownNow();
+    }
+
+    private ConnectionEstablisher establisher() throws IOException {
+        ConnectionEstablisher e = new ConnectionEstablisher(infoHash, new byte[20], new byte[8], 4,
+                (peer, protocolError) -> failures.incrementAndGet(), utp);
+        establishers.add(e);
+        return e;
+    }
+
+    private byte[] handshake() {
+        ByteBuffer hs = ByteBuffer.allocate(68);
+        hs.put((byte) 19);
+        hs.put("BitTorrent protocol".getBytes(StandardCharsets.US_ASCII));
+        hs.put(new byte[8]);
+        hs.put(infoHash);
+        hs.put(new byte[20]);
+        return hs.array();
+    }
+
+    @Test
+    void utpPeerIsKeptOverUtpWithoutDialingTcp() throws Exception {
+        FakePeer peer = new FakePeer(true);
+        ConnectionEstablisher establisher = establisher();
+        establisher.dial(peer.peer);
+
+        ConnectionEstablisher.Established e = establisher.take(5000);
+        assertNotNull(e);
+        assertTrue(e.socket instanceof UtpSocket, "should have connected over uTP");
+        // The handshake finished within TCP's head start, so TCP was never needed
+        Thread.sleep(1000);
+        assertEquals(0, peer.tcpAccepted.get());
+        assertEquals(0, establisher.pendingCount());
+    }
+
+    @Test
+    void tcpOnlyPeerDoesNotWaitForUtpToTimeOut() throws Exception {
+        FakePeer peer = new FakePeer(false);
+        ConnectionEstablisher establisher = establisher();
+        long start = System.currentTimeMillis();
+        establisher.dial(peer.peer);
+
+        ConnectionEstablisher.Established e = establisher.take(5000);
+        long took = System.currentTimeMillis() - start;
+        assertNotNull(e);
+        assertFalse(e.socket instanceof UtpSocket);
+        assertTrue(took < 1500, "connected after " + took + " ms, the uTP SYN timeout rather than the head start");
+
+        // Once the SYN has timed out, the next download dials this peer over TCP alone
+        while (utp.connectionCount() > 0)
+            Thread.sleep(50);
+        int synsSent = peer.utpPackets.get();
+        ConnectionEstablisher next = establisher();
+        next.dial(peer.peer);
+        assertNotNull(next.take(5000));
+        assertEquals(synsSent, peer.utpPackets.get(), "uTP tried again on a peer known not to speak it");
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    void peerWithoutUtpInPexFlagsIsDialedOverTcp() throws Exception {
+        FakePeer peer = new FakePeer(true);
+        ConnectionEstablisher.hintUtp(peer.peer.key, false);
+        ConnectionEstablisher establisher = establisher();
+        establisher.dial(peer.peer);
+
+        ConnectionEstablisher.Established e = establisher.take(5000);
+        assertNotNull(e);
+        assertFalse(e.socket instanceof UtpSocket);
+        assertEquals(0, peer.utpPackets.get());
+    }
+
+    @Test
+    void unreachablePeerIsReportedOnceBothTransportsFail() throws Exception {
+        FakePeer peer = new FakePeer(false);
+        peer.tcp.close(); // TCP is refused; uTP goes unanswered
+        ConnectionEstablisher establisher = establisher();
+        establisher.dial(peer.peer);
+
+        // TCP is refused at once, but the peer is only given up with uTP
+        Thread.sleep(1000);
+        assertEquals(0, failures.get());
+        assertEquals(1, establisher.pendingCount(), "the race should still hold its slot");
+        while (failures.get() == 0)
+            Thread.sleep(50);
+        Thread.sleep(500);
+        assertEquals(1, failures.get());
+        assertEquals(0, establisher.pendingCount());
+    }
+}
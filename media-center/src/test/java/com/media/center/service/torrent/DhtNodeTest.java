@@ -0,0 +1,169 @@
+package com.media.center.service.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * A small DHT of loopback {@link DhtNode}s, each bootstrapped from the ones
+ * started before it.
+ */
+@Timeout(60)
+class DhtNodeTest {
+
+    private static final int NODES = 5;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final List<DhtNode> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void startNodes() throws Exception {
+        List<String> routers = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            DhtNode node = new DhtNode(0, null, List.copyOf(routers));
+            nodes.add(node);
+            routers.add(LOOPBACK.getHostAddress() + ":" + node.getPort());
+        }
+        for (DhtNode node : nodes)
+            node.ready().get(10, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    void stopNodes() {
+        for (DhtNode node : nodes)
+            node.close();
+    }
+
+    @Test
+    void bootstrapFillsRoutingTables() {
+        for (DhtNode node : nodes)
+            assertEquals(NODES - 1, node.nodeCount(), "node on port " + node.getPort() + " knows too few nodes");
+    }
+
+    @Test
+    void announcedPeerIsFoundByAnotherNode() throws Exception {
+        byte[] infoHash = randomId(1);
+        // The first lookup announces us on port 6881 to the closest nodes
+        nodes.get(0).getPeers(infoHash, peer -> {
+        }, 6881).get(10, TimeUnit.SECONDS);
+
+        // The announces are fire and forget: look again until they have landed
+        Set<String> found = ConcurrentHashMap.newKeySet();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (found.isEmpty() && System.currentTimeMillis() < deadline) {
+            nodes.get(NODES - 1).getPeers(infoHash, peer -> found.add(peer.ip + ":" + peer.port), 0)
+                    .get(10, TimeUnit.SECONDS);
+            if (found.isEmpty())
+                Thread.sleep(100);
+        }
+        assertEquals(Set.of(LOOPBACK.getHostAddress() + ":6881"), found);
+    }
+
+    @Test
+    void announceWithBadTokenIsRejected() throws Exception {
+        byte[] infoHash = randomId(2);
+        byte[] ownId = randomId(3);
+        InetSocketAddress node = new InetSocketAddress(LOOPBACK, nodes.get(0).getPort());
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0))) {
+            socket.setSoTimeout(5000);
+
+            // Read-only (BEP 43), so the nodes don't add this socket to their tables
+            BencodeParser.Value reply = krpc(socket, node, "get_peers", w -> w
+                    .key("id").value(ownId)
+                    .key("info_hash").value(infoHash)
+                    .key("ro").value(1));
+            assertEquals("r", reply.getString("y", ""));
+            byte[] token = reply.get("r").get("token").asBytes();
+            assertNull(reply.get("r").get("values"), "nobody has announced yet");
+
+            byte[] badToken = token.clone();
+            badToken[0] ^= 1;
+            reply = announce(socket, node, ownId, infoHash, 7000, badToken);
+            assertEquals("e", reply.getString("y", ""));
+            List<BencodeParser.Value> error = reply.get("e").list();
+            assertEquals(203, error.get(0).asLong());
+
+            // The rejected announce stored nothing
+            reply = krpc(socket, node, "get_peers", w -> w
+                    .key("id").value(ownId)
+                    .key("info_hash").value(infoHash)
+                    .key("ro").value(1));
+            assertNull(reply.get("r").get("values"), "a peer was stored despite the bad token");
+
+            // The real token is accepted
+            reply = announce(socket, node, ownId, infoHash, 7000, token);
+            assertEquals("r", reply.getString("y", ""));
+            reply = krpc(socket, node, "get_peers", w -> w
+                    .key("id").value(ownId)
+                    .key("info_hash").value(infoHash)
+                    .key("ro").value(1));
+            BencodeParser.Value values = reply.get("r").get("values");
+            assertNotNull(values, "the announced peer should be listed");
+            byte[] expected = Arrays.copyOf(LOOPBACK.getAddress(), 6);
+            expected[4] = (byte) (7000 >>> 8);
+            expected[5] = (byte) 7000;
+            assertArrayEquals(expected, values.list().get(0).asBytes());
+        }
+    }
+
+    private static BencodeParser.Value announce(DatagramSocket socket, InetSocketAddress node, byte[] ownId,
+            byte[] infoHash, int port, byte[] token) throws IOException {
+        return krpc(socket, node, "announce_peer", w -> w
+                .key("id").value(ownId)
+                .key("info_hash").value(infoHash)
+                .key("port").value(port)
+                .key("ro").value(1)
+                .key("token").value(token));
+    }
+
+    /** Send one query ({@code args} writes the sorted arguments) and wait for the answer. */
+    private static BencodeParser.Value krpc(DatagramSocket socket, InetSocketAddress to, String method,
+            Consumer<BencodeWriter> args) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1500);
+        BencodeWriter w = new BencodeWriter(buf);
+        w.startDict().key("a").startDict();
+        args.accept(w);
+        w.end()
+                .key("q").value(method)
+                .key("t").value("tt")
+                .key("y").value("q")
+                .end();
+        buf.flip();
+        socket.send(new DatagramPacket(buf.array(), buf.limit(), to));
+
+        DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+        socket.receive(packet);
+        BencodeParser.Value reply = BencodeParser.parse(Arrays.copyOf(packet.getData(), packet.getLength()));
+        assertTrue(reply.isDictionary(), "not a KRPC message");
+        assertEquals("tt", reply.getString("t", ""), "transaction ID not echoed");
+        return reply;
+    }
+
+    private static byte[] randomId(int seed) {
+        byte[] id = new byte[20];
+        new Random(seed).nextBytes(id);
+        return id;
+    }
+}
@@ -0,0 +1,330 @@
+package com.media.center.service.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import com.media.center.service.DownloadSession;
+
+/**
+ * The download engine's side of the Fast Extension (BEP 6), run against
+ * scripted seeds that choke, reject and allow pieces on cue.
+ */
+@Timeout(60)
+class FastExtensionTest {
+
+    private static final int PIECE_LENGTH = 64 * 1024;
+    private static final int BLOCK = 16 * 1024;
+    private static final int PIECES = 6;
+
+    // Message IDs
+    private static final int CHOKE = 0;
+    private static final int UNCHOKE = 1;
+    private static final int REQUEST = 6;
+    private static final int HAVE_ALL = 14;
+    private static final int REJECT_REQUEST = 16;
+    private static final int ALLOWED_FAST = 17;
+
+    private final byte[] content = new byte[PIECES * PIECE_LENGTH];
+    private Path dir;
+    private TorrentDownloader downloader;
+    private final List<ScriptedSeed> seeds = new ArrayList<>();
+
+    /** What a seed does with each request it reads. */
+    private interface Script {
+        void onRequest(ScriptedSeed seed, int index, int begin, int length) throws Exception;
+    }
+
+    /** One peer connection whose replies the test scripts; logs every request it gets. */
+    private final class ScriptedSeed {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final List<int[]> requests = new ArrayList<>();
+        final List<String> violations = new ArrayList<>();
+        final Set<Integer> allowedFast = new HashSet<>();
+        final PeerSession session;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        volatile boolean choked = true;
+
+        ScriptedSeed(Script script, int... opening) throws IOException {
+            Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            client.setSoTimeout(10_000);
+            socket = server.accept();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            for (int id : opening)
+                send(id);
+            session = new PeerSession(new TrackerClient.Peer("127.0.0.1", server.getLocalPort()), client,
+                    new DataInputStream(new BufferedInputStream(client.getInputStream())),
+                    new DataOutputStream(new BufferedOutputStream(client.getOutputStream())), PIECES);
+            session.fastExtension = true;
+            Thread thread = new Thread(() -> {
+                try {
+                    int[] r;
+                    while ((r = nextRequest()) != null) {
+                        if (choked && !allowedFast.contains(r[0]))
+                            violations.add("requested piece " + r[0] + " while choked");
+                        script.onRequest(this, r[0], r[1], r[2]);
+                    }
+                } catch (Exception e) {
+                    // The engine hung up
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            seeds.add(this);
+        }
+
+        /** Next REQUEST from the engine, logged, skipping everything else; null once it hangs up. */
+        int[] nextRequest() throws IOException {
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (IOException e) {
+                    return null;
+                }
+                if (len == 0)
+                    continue;
+                int id = in.readUnsignedByte();
+                if (id == REQUEST && len == 13) {
+                    int[] r = { in.readInt(), in.readInt(), in.readInt() };
+                    synchronized (requests) {
+                        requests.add(r);
+                    }
+                    return r;
+                }
+                in.skipNBytes(len - 1);
+            }
+        }
+
+        synchronized void send(int id, int... ints) throws IOException {
+            if (id == CHOKE)
+                choked = true;
+            else if (id == UNCHOKE)
+                choked = false;
+            else if (id == ALLOWED_FAST)
+                allowedFast.add(ints[0]);
+            out.writeInt(1 + 4 * ints.length);
+            out.writeByte(id);
+            for (int v : ints)
+                out.writeInt(v);
+            out.flush();
+        }
+
+        synchronized void piece(int index, int begin, int length) throws IOException {
+            out.writeInt(9 + length);
+            out.writeByte(7);
+            out.writeInt(index);
+            out.writeInt(begin);
+            out.write(content, index * PIECE_LENGTH + begin, length);
+            out.flush();
+        }
+
+        void reject(int index, int begin, int length) throws IOException {
+            send(REJECT_REQUEST, index, begin, length);
+        }
+
+        /** Distinct pieces requested, in the order they were first asked for. */
+        List<Integer> piecesRequested() {
+            Set<Integer> pieces = new LinkedHashSet<>();
+            synchronized (requests) {
+                for (int[] r : requests)
+                    pieces.add(r[0]);
+            }
+            return new ArrayList<>(pieces);
+        }
+
+        int requestCount(int index) {
+            synchronized (requests) {
+                return (int) requests.stream().filter(r -> r[0] == index).count();
+            }
+        }
+
+        int download() throws Exception {
+            return (Integer) call("downloadFrom", session, "Seed " + server.getLocalPort());
+        }
+
+        void close() throws IOException {
+            session.socket.close();
+            socket.close();
+            server.close();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        new Random(1).nextBytes(content);
+        ByteBuffer hashes = ByteBuffer.allocate(PIECES * 20);
+        for (int i = 0; i < PIECES; i++) {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(content, i * PIECE_LENGTH, PIECE_LENGTH);
+            hashes.put(sha1.digest());
+        }
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        new BencodeWriter(buf).startDict()
+                .key("length").value(content.length)
+                .key("name").value("content.bin")
+                .key("piece length").value(PIECE_LENGTH)
+                .key("pieces").value(hashes.array())
+                .end();
+        byte[] info = new byte[buf.flip().remaining()];
+        buf.get(info);
+        String magnet = "magnet:?xt=urn:btih:"
+                + MagnetLink.byteArrayToHexString(MessageDigest.getInstance("SHA-1").digest(info));
+
+        dir = Files.createTempDirectory("fast-extension");
+        downloader = new TorrentDownloader(new DownloadSession(magnet), magnet, List.of(), dir.toString(), null);
+        assertTrue((Boolean) call("parseInfoDict", (Object) info));
+        call("createFiles");
+        call("computeNeededPieces");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (ScriptedSeed seed : seeds)
+            seed.close();
+        downloader.stop();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void chokeRejectsOutstandingRequestsAndUnchokeResumesThem() throws Exception {
+        int[] served = { 0 };
+        ScriptedSeed seed = new ScriptedSeed((s, index, begin, length) -> {
+            if (s.choked) {
+                s.reject(index, begin, length);
+                return;
+            }
+            s.piece(index, begin, length);
+            if (++served[0] == 1) {
+                // Choke with the rest of this piece's requests still queued: each
+                // is rejected, then the engine may ask again once unchoked
+                s.send(CHOKE);
+                for (int i = 1; i < PIECE_LENGTH / BLOCK; i++) {
+                    int[] r = s.nextRequest();
+                    s.reject(r[0], r[1], r[2]);
+                }
+                Thread.sleep(300);
+                s.send(UNCHOKE);
+            }
+        }, HAVE_ALL, UNCHOKE);
+
+        assertEquals(PIECES, seed.download(), "every piece over the one connection");
+        assertEquals(List.of(), seed.violations);
+        // The piece interrupted by the choke is asked for in full again after the unchoke
+        int interrupted = seed.piecesRequested().get(0);
+        assertEquals(2 * PIECE_LENGTH / BLOCK, seed.requestCount(interrupted));
+        assertAllComplete();
+    }
+
+    @Test
+    void allowedFastPiecesAreFetchedWhileChoked() throws Exception {
+        int[] served = { 0 };
+        ScriptedSeed seed = new ScriptedSeed((s, index, begin, length) -> {
+            if (s.choked && !s.allowedFast.contains(index)) {
+                s.reject(index, begin, length);
+                return;
+            }
+            s.piece(index, begin, length);
+            // Unchoke once both allowed-fast pieces are out
+            if (++served[0] == 2 * PIECE_LENGTH / BLOCK && s.choked)
+                s.send(UNCHOKE);
+        }, HAVE_ALL);
+        seed.send(ALLOWED_FAST, 2);
+        seed.send(ALLOWED_FAST, 4);
+
+        assertEquals(PIECES, seed.download());
+        assertEquals(List.of(), seed.violations);
+        assertEquals(List.of(2, 4), seed.piecesRequested().subList(0, 2), "allowed-fast pieces come first");
+        assertAllComplete();
+    }
+
+    @Test
+    void pieceRejectedWhileUnchokedIsLeftToAnotherConnection() throws Exception {
+        ScriptedSeed refusing = new ScriptedSeed((s, index, begin, length) -> {
+            if (index == 3)
+                s.reject(index, begin, length);
+            else
+                s.piece(index, begin, length);
+        }, HAVE_ALL, UNCHOKE);
+
+        assertEquals(PIECES - 1, refusing.download(), "everything but the refused piece");
+        assertEquals(PIECE_LENGTH / BLOCK, refusing.requestCount(3), "the refused piece is not asked for again");
+        assertFalse(completedPieces()[3]);
+
+        ScriptedSeed other = new ScriptedSeed((s, index, begin, length) -> s.piece(index, begin, length),
+                HAVE_ALL, UNCHOKE);
+        assertEquals(1, other.download());
+        assertEquals(List.of(3), other.piecesRequested());
+        assertAllComplete();
+    }
+
+    private void assertAllComplete() throws Exception {
+        boolean[] done = completedPieces();
+        for (int i = 0; i < PIECES; i++)
+            assertTrue(done[i], "piece " + i + " missing");
+        assertTrue(((Collection<?>) field("pieceQueue")).isEmpty());
+    }
+
+    private boolean[] completedPieces() throws Exception {
+        return (boolean[]) field("completedPieces");
+    }
+
+    private Object field(String name) throws Exception {
+        Field f = TorrentDownloader.class.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(downloader);
+    }
+
+    /** Call one of the engine's private steps. */
+    private Object call(String name, Object... args) throws Exception {
+        for (Method m : TorrentDownloader.class.getDeclaredMethods()) {
+            if (!m.getName().equals(name) || m.getParameterCount() != args.length)
+                continue;
+            m.setAccessible(true);
+            try {
+                return m.invoke(downloader, args);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
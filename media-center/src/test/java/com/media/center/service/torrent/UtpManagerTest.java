@@ -0,0 +1,263 @@
+package com.media.center.service.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Two {@link UtpManager}s connected by a simulated link that delays,
+ * reorders and drops packets.
+ */
+@Timeout(60)
+class UtpManagerTest {
+
+    private static final InetSocketAddress PEER_A = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7001);
+    private static final InetSocketAddress PEER_B = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7002);
+    // UtpSocket never retransmits on a timer sooner than this after the last ack
+    private static final long MIN_RETRANSMIT_TIMEOUT_MS = 500;
+
+    /** One packet as it went onto the link. */
+    private static final class Sent {
+        final InetSocketAddress from;
+        final long atMs;
+        final UtpSocket.Packet packet;
+        final boolean dropped;
+
+        Sent(InetSocketAddress from, long atMs, UtpSocket.Packet packet, boolean dropped) {
+            this.from = from;
+            this.atMs = atMs;
+            this.packet = packet;
+            this.dropped = dropped;
+        }
+
+        boolean isData(InetSocketAddress sender) {
+            return from.equals(sender) && packet.type == UtpSocket.ST_DATA;
+        }
+    }
+
+    /** The network between A and B: every packet is logged, then dropped or delivered late. */
+    private static final class Link {
+        final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor();
+        final Random random = new Random(42);
+        final List<Sent> log = new ArrayList<>();
+        volatile long delayMs = 5;
+        volatile int jitterMs = 0;
+        volatile BiPredicate<InetSocketAddress, UtpSocket.Packet> drop = (from, p) -> false;
+        UtpManager a;
+        UtpManager b;
+
+        Link() {
+            a = new UtpManager((packet, to) -> carry(PEER_A, packet, b));
+            b = new UtpManager((packet, to) -> carry(PEER_B, packet, a));
+        }
+
+        private void carry(InetSocketAddress from, ByteBuffer packet, UtpManager to) {
+            byte[] data = new byte[packet.remaining()];
+            packet.get(data);
+            UtpSocket.Packet p = UtpSocket.Packet.parse(data);
+            boolean dropped = drop.test(from, p);
+            synchronized (log) {
+                log.add(new Sent(from, System.currentTimeMillis(), p, dropped));
+            }
+            if (dropped)
+                return;
+            long delay = delayMs + (jitterMs > 0 ? random.nextInt(jitterMs) : 0);
+            network.schedule(() -> to.receive(from, data), delay, TimeUnit.MILLISECONDS);
+        }
+
+        List<Sent> log() {
+            synchronized (log) {
+                return new ArrayList<>(log);
+            }
+        }
+
+        /** Connect A to B; returns {A's end, B's end}. */
+        UtpSocket[] connect() throws Exception {
+            CompletableFuture<UtpSocket> accepted = new CompletableFuture<>();
+            assertTrue(b.claimAcceptor(accepted::complete));
+            UtpSocket client = a.connect(PEER_B).get(5, TimeUnit.SECONDS);
+            UtpSocket server = accepted.get(5, TimeUnit.SECONDS);
+            server.setSoTimeout(30_000);
+            return new UtpSocket[] { client, server };
+        }
+    }
+
+    private Link link;
+
+    @AfterEach
+    void tearDown() {
+        if (link == null)
+            return;
+        link.a.close();
+        link.b.close();
+        link.network.shutdownNow();
+    }
+
+    @Test
+    void deliversInOrderOverReorderingLossyLink() throws Exception {
+        link = new Link();
+        link.jitterMs = 20;
+        AtomicInteger dropped = new AtomicInteger();
+        Random loss = new Random(7);
+        link.drop = (from, p) -> {
+            if (p.type != UtpSocket.ST_DATA || loss.nextInt(100) >= 3)
+                return false;
+            dropped.incrementAndGet();
+            return true;
+        };
+        UtpSocket[] ends = link.connect();
+
+        byte[] data = randomBytes(512 * 1024);
+        byte[] received = transfer(ends[0], ends[1], data);
+
+        assertTrue(dropped.get() > 0, "the link should have dropped some packets");
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    void selectiveAcksTriggerResendBeforeTimeout() throws Exception {
+        link = new Link();
+        AtomicInteger dataPackets = new AtomicInteger();
+        AtomicInteger droppedSeq = new AtomicInteger(-1);
+        link.drop = (from, p) -> {
+            // Lose the 30th data packet A sends, once
+            if (from.equals(PEER_A) && p.type == UtpSocket.ST_DATA && dataPackets.incrementAndGet() == 30) {
+                droppedSeq.set(p.seq);
+                return true;
+            }
+            return false;
+        };
+        UtpSocket[] ends = link.connect();
+
+        byte[] data = randomBytes(256 * 1024);
+        assertArrayEquals(data, transfer(ends[0], ends[1], data));
+
+        List<Sent> log = link.log();
+        Sent drop = null;
+        Sent resend = null;
+        for (Sent s : log) {
+            if (!s.isData(PEER_A) || s.packet.seq != droppedSeq.get())
+                continue;
+            if (s.dropped)
+                drop = s;
+            else if (drop != null && resend == null)
+                resend = s;
+        }
+        assertNotNull(drop, "a data packet should have been dropped");
+        assertNotNull(resend, "the dropped packet should have been sent again");
+
+        boolean sackBeforeResend = false;
+        for (Sent s : log) {
+            if (s.from.equals(PEER_B) && s.packet.type == UtpSocket.ST_STATE && s.packet.selectiveAck != null
+                    && s.atMs >= drop.atMs && s.atMs <= resend.atMs)
+                sackBeforeResend = true;
+        }
+        assertTrue(sackBeforeResend, "B should have selectively acked the packets after the gap");
+        long waited = resend.atMs - drop.atMs;
+        assertTrue(waited < MIN_RETRANSMIT_TIMEOUT_MS, "resent after " + waited + " ms, which is a timeout, not a fast resend");
+    }
+
+    @Test
+    void ledbatWindowShrinksWhenDelayRises() throws Exception {
+        link = new Link();
+        link.delayMs = 1;
+        UtpSocket[] ends = link.connect();
+        UtpSocket sender = ends[0];
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            byte[] chunk = randomBytes(64 * 1024);
+            try {
+                OutputStream out = sender.getOutputStream();
+                while (running.get())
+                    out.write(chunk);
+            } catch (Exception e) {
+                // The test is over
+            }
+        });
+        Thread reader = new Thread(() -> {
+            byte[] buf = new byte[64 * 1024];
+            try {
+                InputStream in = ends[1].getInputStream();
+                while (in.read(buf) >= 0) {
+                }
+            } catch (Exception e) {
+                // The test is over
+            }
+        });
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+
+        try {
+            Thread.sleep(2000);
+            int uncongested = sender.congestionWindow();
+            assertTrue(uncongested > LedbatController.INITIAL_WINDOW,
+                    "window should grow on an idle link, is " + uncongested);
+
+            // Queueing delay well above the 100 ms target, but a round trip still short of a timeout
+            long raisedAt = System.currentTimeMillis();
+            link.delayMs = 150;
+            Thread.sleep(4000);
+            int congested = sender.congestionWindow();
+            assertTrue(congested < uncongested,
+                    "window should shrink as delay rises: " + uncongested + " -> " + congested);
+
+            // Shrinking must come from the delay signal, not from losses or timeouts
+            List<Integer> seen = new ArrayList<>();
+            for (Sent s : link.log()) {
+                if (s.atMs >= raisedAt && s.isData(PEER_A)) {
+                    assertFalse(seen.contains(s.packet.seq), "packet " + s.packet.seq + " was resent");
+                    seen.add(s.packet.seq);
+                }
+            }
+        } finally {
+            running.set(false);
+            sender.close();
+            ends[1].close();
+        }
+    }
+
+    /** Write {@code data} on one end, close it, and read the other end to EOF. */
+    private static byte[] transfer(UtpSocket from, UtpSocket to, byte[] data) throws Exception {
+        CompletableFuture<Void> written = CompletableFuture.runAsync(() -> {
+            try {
+                from.getOutputStream().write(data);
+                from.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        byte[] received = to.getInputStream().readAllBytes();
+        written.get(5, TimeUnit.SECONDS);
+        return received;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] b = new byte[length];
+        new Random(length).nextBytes(b);
+        return b;
+    }
+}
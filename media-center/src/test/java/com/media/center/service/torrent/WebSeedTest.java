@@ -0,0 +1,229 @@
+package com.media.center.service.torrent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@link WebSeed} against a local HTTP mirror that serves byte ranges, can
+ * report itself busy, and can corrupt what it sends.
+ */
+@Timeout(30)
+class WebSeedTest {
+
+    private static final int PIECE_LENGTH = 32 * 1024;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private HttpServer server;
+    private String base;
+    // Raw request path -> file content
+    private final Map<String, byte[]> mirror = new ConcurrentHashMap<>();
+    // "path range" of every request, in order
+    private final List<String> requests = new ArrayList<>();
+    private final AtomicInteger busyReplies = new AtomicInteger();
+    private volatile String corruptPath;
+
+    @BeforeEach
+    void startMirror() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::serve);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stopMirror() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getRawPath();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        synchronized (requests) {
+            requests.add(path + " " + range);
+        }
+        if (busyReplies.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        byte[] content = mirror.get(path);
+        Matcher m = range == null ? null : RANGE.matcher(range);
+        if (content == null || m == null || !m.matches()) {
+            exchange.sendResponseHeaders(content == null ? 404 : 400, -1);
+            exchange.close();
+            return;
+        }
+        int from = Integer.parseInt(m.group(1));
+        int to = Integer.parseInt(m.group(2));
+        byte[] body = Arrays.copyOfRange(content, from, to + 1);
+        if (path.equals(corruptPath))
+            body[body.length / 2] ^= 1;
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+        exchange.sendResponseHeaders(206, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private List<String> takeRequests() {
+        synchronized (requests) {
+            List<String> taken = new ArrayList<>(requests);
+            requests.clear();
+            return taken;
+        }
+    }
+
+    @Test
+    void singleFileUrlNamesTheFileOrItsDirectory() throws IOException {
+        byte[] movie = randomBytes(20_000);
+        mirror.put("/files/movie.mkv", movie);
+        mirror.put("/files/my%20movie.mkv", movie);
+        List<TorrentDownloader.FileEntry> files = List.of(new TorrentDownloader.FileEntry("my movie.mkv", 20_000, 0));
+        byte[] piece = new byte[20_000];
+
+        // A URL naming the file is used as it is
+        WebSeed exact = new WebSeed(base + "/files/movie.mkv", "my movie.mkv", false);
+        assertTrue(exact.fetchPiece(files, 0, piece, hashOf(movie)));
+        assertEquals(List.of("/files/movie.mkv bytes=0-19999"), takeRequests());
+
+        // One ending in '/' gets the torrent name added
+        WebSeed directory = new WebSeed(base + "/files/", "my movie.mkv", false);
+        assertTrue(directory.fetchPiece(files, 0, piece, hashOf(movie)));
+        assertEquals(List.of("/files/my%20movie.mkv bytes=0-19999"), takeRequests());
+        assertArrayEquals(movie, piece);
+    }
+
+    @Test
+    void multiFilePiecesSpanFilesAndSkipPadding() throws IOException {
+        // cover.jpg [0, 1000), disc 1/01.flac [1000, 41000), padding to 65536, disc 1/02.flac [65536, 95536)
+        String track1 = "disc 1" + File.separator + "01.flac";
+        String track2 = "disc 1" + File.separator + "02.flac";
+        byte[] cover = randomBytes(1000);
+        byte[] flac1 = randomBytes(40_000);
+        byte[] flac2 = randomBytes(30_000);
+        mirror.put("/mirror/album/cover.jpg", cover);
+        mirror.put("/mirror/album/disc%201/01.flac", flac1);
+        mirror.put("/mirror/album/disc%201/02.flac", flac2);
+
+        TorrentDownloader.FileEntry pad = new TorrentDownloader.FileEntry(".pad" + File.separator + "24536", 24_536, 41_000);
+        pad.pad = true;
+        List<TorrentDownloader.FileEntry> files = List.of(
+                new TorrentDownloader.FileEntry("cover.jpg", 1000, 0),
+                new TorrentDownloader.FileEntry(track1, 40_000, 1000),
+                pad,
+                new TorrentDownloader.FileEntry(track2, 30_000, 65_536));
+        byte[] stream = new byte[95_536];
+        System.arraycopy(cover, 0, stream, 0, 1000);
+        System.arraycopy(flac1, 0, stream, 1000, 40_000);
+        System.arraycopy(flac2, 0, stream, 65_536, 30_000);
+
+        WebSeed seed = new WebSeed(base + "/mirror", "album", true);
+        List<List<String>> perPiece = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int start = i * PIECE_LENGTH;
+            byte[] expected = Arrays.copyOfRange(stream, start, Math.min(stream.length, start + PIECE_LENGTH));
+            byte[] piece = new byte[expected.length];
+            assertTrue(seed.fetchPiece(files, start, piece, hashOf(expected)), "piece " + i);
+            assertArrayEquals(expected, piece, "piece " + i);
+            perPiece.add(takeRequests());
+        }
+
+        assertEquals(List.of("/mirror/album/cover.jpg bytes=0-999", "/mirror/album/disc%201/01.flac bytes=0-31767"),
+                perPiece.get(0));
+        // The rest of 01.flac; the padding is zeros and never requested
+        assertEquals(List.of("/mirror/album/disc%201/01.flac bytes=31768-39999"), perPiece.get(1));
+        assertEquals(List.of("/mirror/album/disc%201/02.flac bytes=0-29999"), perPiece.get(2));
+        assertEquals(95_536 - 24_536, seed.bytesReceived());
+    }
+
+    @Test
+    void busyServerIsRetriedAfterRetryAfter() throws Exception {
+        byte[] file = randomBytes(5000);
+        mirror.put("/file.bin", file);
+        List<TorrentDownloader.FileEntry> files = List.of(new TorrentDownloader.FileEntry("file.bin", 5000, 0));
+        WebSeed seed = new WebSeed(base + "/file.bin", "file.bin", false);
+        byte[] piece = new byte[5000];
+
+        busyReplies.set(1);
+        long busyAt = System.currentTimeMillis();
+        IOException e = assertThrows(IOException.class, () -> seed.fetchPiece(files, 0, piece, hashOf(file)));
+        assertEquals("server busy", e.getMessage());
+        assertFalse(seed.isReady(), "should back off while the server is busy");
+        assertFalse(seed.isDead(), "a busy server isn't a broken one");
+
+        while (!seed.isReady())
+            Thread.sleep(50);
+        long waited = System.currentTimeMillis() - busyAt;
+        // Retry-After: 1, not the default 15 s backoff
+        assertTrue(waited >= 900 && waited < 5000, "backed off for " + waited + " ms");
+        assertTrue(seed.fetchPiece(files, 0, piece, hashOf(file)));
+        assertArrayEquals(file, piece);
+    }
+
+    @Test
+    void corruptPiecesAreRejectedAndTheMirrorDropped() throws IOException {
+        byte[] file = randomBytes(3 * PIECE_LENGTH);
+        mirror.put("/file.bin", file);
+        List<TorrentDownloader.FileEntry> files = List.of(new TorrentDownloader.FileEntry("file.bin", file.length, 0));
+        WebSeed seed = new WebSeed(base + "/file.bin", "file.bin", false);
+        corruptPath = "/file.bin";
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(seed.isDead(), "dropped after only " + i + " bad pieces");
+            int start = i * PIECE_LENGTH;
+            byte[] piece = new byte[PIECE_LENGTH];
+            Predicate<byte[]> check = hashOf(Arrays.copyOfRange(file, start, start + PIECE_LENGTH));
+            assertFalse(seed.fetchPiece(files, start, piece, check), "corrupt piece " + i + " accepted");
+        }
+        assertTrue(seed.isDead(), "a mirror that keeps serving bad data should be dropped");
+    }
+
+    /** The check the engine does: SHA-1 of the piece against the torrent's hash. */
+    private static Predicate<byte[]> hashOf(byte[] expected) {
+        byte[] hash = sha1(expected);
+        return data -> Arrays.equals(hash, sha1(data));
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] b = new byte[length];
+        new Random(length).nextBytes(b);
+        return b;
+    }
+}